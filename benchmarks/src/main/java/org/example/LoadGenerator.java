@@ -0,0 +1,409 @@
+package org.example;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * 集群压测工具：在本机回环地址上启动一个 Controller 和 N 个 Dstore（各自使用独立的临时目录），
+ * 用多个客户端线程按配置的比例并发执行 STORE / LOAD / REMOVE / LIST，
+ * 文件大小服从对数正态分布，文件名服从 Zipf 分布（热点），运行中可以周期性地杀掉一个 Dstore 并加入一个新的 Dstore，
+ * 最后输出每种操作的吞吐量、p50/p99/p999 延迟以及每次节点变化后的服务中断时间。
+ *
+ * Controller 和 Dstore 使用静态字段保存状态，同一个 JVM 中只能运行一个实例，因此它们作为子进程启动，
+ * 使用与本工具相同的 classpath。
+ *
+ * 用法（参数均为 key=value，括号中为默认值）：
+ *   java -cp benchmarks/target/benchmarks.jar org.example.LoadGenerator dstores=5 replicas=3 clients=16 duration=60
+ *
+ *   dstores(5) replicas(3) timeout(2000) rebalancePeriod(30)    集群配置
+ *   clients(16) duration(60) warmup(5)                          客户端线程数、压测时长和预热时长（秒）
+ *   mix(store:30,load:50,remove:10,list:10)                     操作比例
+ *   keys(1000) skew(1.1)                                        文件名数量和 Zipf 指数（0 为均匀分布）
+ *   sizeMedian(65536) sizeSigma(1.5) sizeMax(16777216)          文件大小的对数正态分布（字节）
+ *   chaosPeriod(0) joinDelay(2)                                 每隔多少秒杀掉一个 Dstore（0 为不启用），多少秒后加入新的 Dstore
+ *   controllerOpts()                                            传给 Controller 的 JVM 参数，多个参数用逗号分隔，例如 -Dfds.ec=4+2
+ */
+public class LoadGenerator {
+    private final static String[] OPERATIONS = {"store", "load", "remove", "list"};
+
+    private final Map<String, String> options;
+    private final Path workDir;
+    private final int controllerPort;
+    private final int metricsPort;
+    private final int timeout;
+    private Process controller;
+    // 正在运行的 Dstore 子进程，键为端口号
+    private final ConcurrentHashMap<Integer, Process> dstores = new ConcurrentHashMap<>();
+
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    // 最近一次操作成功完成的时间（System.nanoTime()），用于计算节点变化后的服务中断时间
+    private final AtomicLong lastSuccess = new AtomicLong(System.nanoTime());
+    private final List<String> chaosEvents = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean measuring = false;
+
+    private final double[] mixCdf;
+    private final double[] keyCdf;
+
+    public LoadGenerator(Map<String, String> options) throws IOException {
+        this.options = options;
+        this.workDir = Files.createTempDirectory("fds-load");
+        this.controllerPort = freePort();
+        this.metricsPort = freePort();
+        this.timeout = intOption("timeout", 2000);
+        for (var op : OPERATIONS) {
+            latencies.put(op, new LatencyHistogram());
+            errors.put(op, new LongAdder());
+        }
+        this.mixCdf = parseMix(options.getOrDefault("mix", "store:30,load:50,remove:10,list:10"));
+        this.keyCdf = zipfCdf(intOption("keys", 1000), Double.parseDouble(options.getOrDefault("skew", "1.1")));
+    }
+
+    public static void main(String[] args) throws Exception {
+        var options = new HashMap<String, String>();
+        for (var arg : args) {
+            var kv = arg.split("=", 2);
+            if (kv.length != 2) throw new IllegalArgumentException("expected key=value: " + arg);
+            options.put(kv[0], kv[1]);
+        }
+        var generator = new LoadGenerator(options);
+        try {
+            generator.run();
+        } finally {
+            generator.shutdown();
+        }
+    }
+
+    private void run() throws Exception {
+        startCluster();
+
+        int clients = intOption("clients", 16);
+        int warmup = intOption("warmup", 5);
+        int duration = intOption("duration", 60);
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmup + duration);
+        var pool = Executors.newFixedThreadPool(clients);
+        for (int i = 0; i < clients; i++) {
+            pool.submit(() -> clientLoop(deadline));
+        }
+
+        // 预热结束后清空统计，开始计时
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+        for (var op : OPERATIONS) {
+            latencies.put(op, new LatencyHistogram());
+            errors.put(op, new LongAdder());
+        }
+        measuring = true;
+        var start = System.nanoTime();
+
+        var chaos = intOption("chaosPeriod", 0) > 0 ? Thread.ofPlatform().daemon().start(this::chaosLoop) : null;
+
+        pool.shutdown();
+        pool.awaitTermination(duration + 60L, TimeUnit.SECONDS);
+        var elapsed = (System.nanoTime() - start) / 1e9;
+        if (chaos != null) chaos.interrupt();
+        report(elapsed);
+    }
+
+    // ---------------------------------------------------------------- 集群管理
+
+    private void startCluster() throws Exception {
+        var controllerCommand = new ArrayList<String>();
+        controllerCommand.add(javaBinary());
+        controllerCommand.add("-Dfds.metrics.port=" + metricsPort);
+        var controllerOpts = options.getOrDefault("controllerOpts", "");
+        if (!controllerOpts.isBlank()) controllerCommand.addAll(List.of(controllerOpts.split(",")));
+        controllerCommand.addAll(List.of("-cp", System.getProperty("java.class.path"), Controller.class.getName(),
+                String.valueOf(controllerPort), options.getOrDefault("replicas", "3"), String.valueOf(timeout),
+                options.getOrDefault("rebalancePeriod", "30")));
+        controller = new ProcessBuilder(controllerCommand)
+                .redirectErrorStream(true)
+                .redirectOutput(workDir.resolve("controller.log").toFile())
+                .start();
+        waitForPort(controllerPort);
+
+        // 依次加入 Dstore，每次等待 JOIN 触发的再平衡结束，避免多个再平衡同时进行
+        for (int i = 0; i < intOption("dstores", 5); i++) {
+            startDstore();
+            Thread.sleep(timeout + 500L);
+        }
+        System.out.println("cluster ready: controller " + controllerPort + ", dstores " + dstores.keySet() + ", logs in " + workDir);
+    }
+
+    private int startDstore() throws IOException {
+        int port = freePort();
+        var folder = workDir.resolve("dstore-" + port);
+        var process = new ProcessBuilder(javaBinary(), "-cp", System.getProperty("java.class.path"), Dstore.class.getName(),
+                String.valueOf(port), String.valueOf(controllerPort), String.valueOf(timeout), folder.toString())
+                .redirectErrorStream(true)
+                .redirectOutput(workDir.resolve("dstore-" + port + ".log").toFile())
+                .start();
+        dstores.put(port, process);
+        return port;
+    }
+
+    // 周期性地杀掉一个 Dstore，等待 joinDelay 秒后再加入一个新的 Dstore
+    private void chaosLoop() {
+        var random = new Random();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(intOption("chaosPeriod", 0)));
+                var ports = new ArrayList<>(dstores.keySet());
+                var victim = ports.get(random.nextInt(ports.size()));
+                dstores.remove(victim).destroyForcibly();
+                chaosEvents.add(measureDisruption("kill dstore " + victim));
+
+                Thread.sleep(TimeUnit.SECONDS.toMillis(intOption("joinDelay", 2)));
+                var joined = startDstore();
+                chaosEvents.add(measureDisruption("join dstore " + joined));
+            }
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * 节点变化后的服务中断时间：观察接下来的 10 秒内，相邻两次成功操作之间的最大间隔
+     */
+    private String measureDisruption(String event) throws InterruptedException {
+        var eventTime = System.nanoTime();
+        long maxGap = 0;
+        long previous = eventTime;
+        while (System.nanoTime() - eventTime < TimeUnit.SECONDS.toNanos(10)) {
+            Thread.sleep(5);
+            var last = lastSuccess.get();
+            var now = System.nanoTime();
+            maxGap = Math.max(maxGap, (last > previous ? last : now) - previous);
+            if (last > previous) previous = last;
+        }
+        return String.format("%-24s max gap between completed operations: %d ms", event, maxGap / 1_000_000);
+    }
+
+    private void shutdown() {
+        for (var process : dstores.values()) process.destroyForcibly();
+        if (controller != null) controller.destroyForcibly();
+    }
+
+    // ---------------------------------------------------------------- 客户端
+
+    private void clientLoop(long deadline) {
+        var random = ThreadLocalRandom.current();
+        Socket connection = null;
+        while (System.nanoTime() < deadline) {
+            var op = OPERATIONS[pick(mixCdf, random.nextDouble())];
+            var key = "key-" + pick(keyCdf, random.nextDouble());
+            try {
+                if (connection == null) {
+                    connection = new Socket(InetAddress.getLoopbackAddress(), controllerPort);
+                    connection.setSoTimeout(timeout * 5);
+                }
+                var start = System.nanoTime();
+                boolean ok = switch (op) {
+                    case "store" -> store(connection, key, fileSize(random));
+                    case "load" -> load(connection, key);
+                    case "remove" -> remove(connection, key);
+                    default -> list(connection);
+                };
+                if (ok) {
+                    lastSuccess.set(System.nanoTime());
+                    if (measuring) latencies.get(op).recordSince(start);
+                }
+            } catch (IOException e) {
+                // 与 Controller 的连接出错（超时或断开），重新建立连接
+                fail(op);
+                closeQuietly(connection);
+                connection = null;
+            }
+        }
+        closeQuietly(connection);
+    }
+
+    private boolean store(Socket controller, String key, int size) throws IOException {
+        var reply = request(controller, Protocol.STORE_TOKEN + " " + key + " " + size);
+        if (reply.startsWith(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN)) return true;
+        if (!reply.startsWith(Protocol.STORE_TO_TOKEN)) return fail("store");
+
+        var content = new byte[size];
+        ThreadLocalRandom.current().nextBytes(content);
+        var ports = reply.split(" ");
+        for (int i = 1; i < ports.length; i++) {
+            try (var dstore = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(ports[i]))) {
+                dstore.setSoTimeout(timeout);
+                var in = new BufferedReader(new InputStreamReader(dstore.getInputStream()));
+                MessageWriter.send(dstore, Protocol.STORE_TOKEN + " " + key + " " + size);
+                if (!Protocol.ACK_TOKEN.equals(in.readLine())) return fail("store");
+                dstore.getOutputStream().write(content);
+            }
+        }
+        return readLine(controller).equals(Protocol.STORE_COMPLETE_TOKEN) || fail("store");
+    }
+
+    private boolean load(Socket controller, String key) throws IOException {
+        var command = Protocol.LOAD_TOKEN;
+        while (true) {
+            var reply = request(controller, command + " " + key);
+            if (reply.startsWith(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN)) return true;
+            if (!reply.startsWith(Protocol.LOAD_FROM_TOKEN)) return fail("load");
+            var parts = reply.split(" ");
+            try (var dstore = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(parts[1]))) {
+                dstore.setSoTimeout(timeout);
+                MessageWriter.send(dstore, Protocol.LOAD_DATA_TOKEN + " " + key);
+                new DataInputStream(dstore.getInputStream()).readFully(new byte[Integer.parseInt(parts[2])]);
+                return true;
+            } catch (IOException e) {
+                // 从下一个 Dstore 重新加载
+                command = Protocol.RELOAD_TOKEN;
+            }
+        }
+    }
+
+    private boolean remove(Socket controller, String key) throws IOException {
+        var reply = request(controller, Protocol.REMOVE_TOKEN + " " + key);
+        return reply.equals(Protocol.REMOVE_COMPLETE_TOKEN) || reply.startsWith(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN) || fail("remove");
+    }
+
+    private boolean list(Socket controller) throws IOException {
+        return request(controller, Protocol.LIST_TOKEN).startsWith(Protocol.LIST_TOKEN) || fail("list");
+    }
+
+    private boolean fail(String op) {
+        if (measuring) errors.get(op).increment();
+        return false;
+    }
+
+    private static String request(Socket socket, String message) throws IOException {
+        MessageWriter.send(socket, message);
+        return readLine(socket);
+    }
+
+    // 逐字节读取一行，不使用带缓冲的读取器，以免多读走后续的数据
+    private static String readLine(Socket socket) throws IOException {
+        var in = socket.getInputStream();
+        var line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) throw new EOFException("connection closed");
+            if (b != '\r') line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    // ---------------------------------------------------------------- 分布
+
+    // 对数正态分布的文件大小
+    private int fileSize(Random random) {
+        var median = Double.parseDouble(options.getOrDefault("sizeMedian", "65536"));
+        var sigma = Double.parseDouble(options.getOrDefault("sizeSigma", "1.5"));
+        var size = median * Math.exp(sigma * random.nextGaussian());
+        return (int) Math.max(1, Math.min(size, intOption("sizeMax", 16 * 1024 * 1024)));
+    }
+
+    private static double[] parseMix(String mix) {
+        var weights = new double[OPERATIONS.length];
+        for (var part : mix.split(",")) {
+            var kv = part.split(":");
+            weights[Arrays.asList(OPERATIONS).indexOf(kv[0])] = Double.parseDouble(kv[1]);
+        }
+        return cdf(weights);
+    }
+
+    private static double[] zipfCdf(int keys, double skew) {
+        var weights = new double[keys];
+        for (int i = 0; i < keys; i++) {
+            weights[i] = 1.0 / Math.pow(i + 1, skew);
+        }
+        return cdf(weights);
+    }
+
+    private static double[] cdf(double[] weights) {
+        var cdf = new double[weights.length];
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            total += weights[i];
+            cdf[i] = total;
+        }
+        for (int i = 0; i < cdf.length; i++) {
+            cdf[i] /= total;
+        }
+        return cdf;
+    }
+
+    private static int pick(double[] cdf, double u) {
+        int i = Arrays.binarySearch(cdf, u);
+        return Math.min(i >= 0 ? i : -i - 1, cdf.length - 1);
+    }
+
+    // ---------------------------------------------------------------- 报告
+
+    private void report(double elapsed) {
+        System.out.println();
+        System.out.printf("%-8s %10s %8s %10s %10s %10s %10s %10s%n", "op", "count", "errors", "ops/s", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)");
+        long total = 0;
+        for (var op : OPERATIONS) {
+            var h = latencies.get(op);
+            total += h.count();
+            System.out.printf("%-8s %10d %8d %10.1f %10.2f %10.2f %10.2f %10.2f%n", op, h.count(), errors.get(op).sum(),
+                    h.count() / elapsed, h.percentile(0.5) / 1000.0, h.percentile(0.99) / 1000.0,
+                    h.percentile(0.999) / 1000.0, h.max() / 1000.0);
+        }
+        System.out.printf("%-8s %10d %8s %10.1f%n", "total", total, "", total / elapsed);
+
+        if (!chaosEvents.isEmpty()) {
+            System.out.println();
+            chaosEvents.forEach(System.out::println);
+        }
+
+        // Controller 自身统计的再平衡耗时
+        try (var in = URI.create("http://localhost:" + metricsPort + "/metrics").toURL().openStream()) {
+            System.out.println();
+            new String(in.readAllBytes(), StandardCharsets.UTF_8).lines()
+                    .filter(line -> line.startsWith("controller_rebalance_latency_us"))
+                    .forEach(System.out::println);
+        } catch (IOException e) {
+            System.out.println("controller metrics unavailable: " + e.getMessage());
+        }
+    }
+
+    // ---------------------------------------------------------------- 工具方法
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(options.getOrDefault(name, String.valueOf(defaultValue)));
+    }
+
+    private static String javaBinary() {
+        return Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    }
+
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline) {
+            try (var ignored = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("controller did not start on port " + port);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Controller 的放置逻辑：STORE 时选择 Dstore，以及再平衡计划的计算。
+ *
+ * 集群中有 dstores 个 Dstore、files 个文件，每个文件 3 个副本轮流放置；
+ * 再平衡的场景为最后一个 Dstore 下线后，补齐所有副本不足的文件。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlacementBenchmark {
+    private final static int REPLICAS = 3;
+
+    @Param({"10000", "100000"})
+    public int files;
+
+    @Param({"10", "50"})
+    public int dstores;
+
+    private HashMap<String, FileInfo> fileInfoMap;
+    private List<Integer> dstorePorts;
+    private FileInfo newFile;
+    // 每个 Dstore 报告的容量：使用的字节数与保存的副本数量成正比
+    private HashMap<Integer, DstoreLoad> loads;
+
+    @Setup(Level.Trial)
+    public void setupCluster() {
+        dstorePorts = new ArrayList<>();
+        for (int i = 0; i < dstores; i++) {
+            dstorePorts.add(4000 + i);
+        }
+        fileInfoMap = cluster(files, dstorePorts);
+        newFile = new FileInfo(1024);
+        loads = new HashMap<>();
+        for (var dstorePort : dstorePorts) {
+            var load = new DstoreLoad();
+            load.capacity(1024L * files * REPLICAS / dstores, 1L << 40, 0, 0);
+            loads.put(dstorePort, load);
+        }
+    }
+
+    @Benchmark
+    public List<Integer> selectDstoresForStore() {
+        return Placement.selectDstoresForStore(dstorePorts, newFile, 1024, REPLICAS, loads, 0);
+    }
+
+    /*
+     * 再平衡会修改文件信息，因此每次调用前重新构建集群状态（构建时间不计入结果）
+     */
+    @State(Scope.Thread)
+    public static class LostDstore {
+        HashMap<String, FileInfo> fileInfoMap;
+        List<Integer> dstorePorts;
+
+        @Setup(Level.Invocation)
+        public void setup(PlacementBenchmark benchmark) {
+            var ports = new ArrayList<>(benchmark.dstorePorts);
+            fileInfoMap = cluster(benchmark.files, ports);
+            var lost = ports.remove(ports.size() - 1);
+            for (var fileInfo : fileInfoMap.values()) {
+                fileInfo.dstoresSavingFiles.remove(lost);
+            }
+            dstorePorts = ports;
+        }
+    }
+
+    @Benchmark
+    public Object planRebalance(LostDstore state) {
+        var filesInDstore = Placement.filesInDstore(state.fileInfoMap);
+        return Placement.planRebalance(state.fileInfoMap, filesInDstore, state.dstorePorts, REPLICAS, new HashMap<>(), 0, 0.05);
+    }
+
+    private static HashMap<String, FileInfo> cluster(int files, List<Integer> ports) {
+        var fileInfoMap = new HashMap<String, FileInfo>();
+        for (int i = 0; i < files; i++) {
+            var fileInfo = new FileInfo(1024);
+            fileInfo.status = FileStatus.STORE_COMPLETE;
+            for (int r = 0; r < REPLICAS; r++) {
+                fileInfo.dstoresSavingFiles.add(ports.get((i + r) % ports.size()));
+            }
+            fileInfoMap.put("file-" + i, fileInfo);
+        }
+        return fileInfoMap;
+    }
+}
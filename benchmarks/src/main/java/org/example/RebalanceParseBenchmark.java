@@ -0,0 +1,40 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Dstore 解析 REBALANCE 命令的开销：命令中包含 files 个要发送的文件（每个发往 3 个 Dstore）和 files 个要删除的文件
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RebalanceParseBenchmark {
+    @Param({"1000", "100000"})
+    public int files;
+
+    private String line;
+
+    @Setup
+    public void setup() {
+        var message = new StringBuilder(Protocol.REBALANCE_TOKEN);
+        message.append(" ").append(files);
+        for (int i = 0; i < files; i++) {
+            message.append(" file-").append(i).append(".txt 3 4001 4002 4003");
+        }
+        message.append(" ").append(files);
+        for (int i = 0; i < files; i++) {
+            message.append(" removed-").append(i).append(".txt");
+        }
+        line = message.toString();
+    }
+
+    @Benchmark
+    public FilesToSendAndToRemove parse() {
+        return Dstore.parseSendFilesAndRemoveFiles(line);
+    }
+}
@@ -0,0 +1,93 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * 回环网络上的消息和文件传输：MessageWriter.send、Dstore.sendFile、Dstore.receiveFile
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+    @Param({"4096", "1048576"})
+    public int fileSize;
+
+    private File dir;
+    private byte[] content;
+    private ServerSocket serverSocket;
+    // 发送端和接收端，接收端由后台线程不断读取并丢弃数据
+    private Socket sender;
+    private Socket receiver;
+    private Thread drain;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("dstore-bench").toFile();
+        content = new byte[fileSize];
+        Files.write(new File(dir, "file.bin").toPath(), content);
+
+        serverSocket = new ServerSocket(0);
+        sender = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        receiver = serverSocket.accept();
+        drain = new Thread(() -> {
+            var buffer = new byte[65536];
+            try (var in = receiver.getInputStream()) {
+                while (in.read(buffer) != -1) {
+                    // 丢弃
+                }
+            } catch (IOException ignored) {
+            }
+        });
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sender.close();
+        receiver.close();
+        serverSocket.close();
+        for (var f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void sendMessage() {
+        MessageWriter.send(sender, "STORE_ACK file-name.txt");
+    }
+
+    @Benchmark
+    public void sendFile() {
+        Dstore.sendFile(sender, dir, "file.bin", null);
+    }
+
+    /*
+     * 每次调用新建一个连接，模拟另一个 Dstore 通过 REBALANCE_STORE 发送文件：
+     * 等待 ACK 后写入文件内容并关闭输出，receiveFile 读到流结束时写盘完成
+     */
+    @Benchmark
+    public void receiveFile() throws Exception {
+        try (var client = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+             var server = serverSocket.accept()) {
+            var words = new String[]{Protocol.REBALANCE_STORE_TOKEN, "received.bin", String.valueOf(fileSize)};
+            var receiving = Thread.ofVirtual().start(() -> Dstore.receiveFile(server, words, dir, null));
+            new BufferedReader(new InputStreamReader(client.getInputStream())).readLine();
+            client.getOutputStream().write(content);
+            client.shutdownOutput();
+            receiving.join();
+        }
+    }
+}
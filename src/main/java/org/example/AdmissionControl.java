@@ -0,0 +1,50 @@
+package org.example;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Controller 的准入控制：限制正在处理（已接收但还没有回复）的请求数量。
+ *   maxInFlight：全局上限
+ *   maxInFlightPerClient：每个客户端连接的上限，避免一个客户端占满全部名额
+ * 超过上限的请求立即回复 BUSY，不排队、不阻塞，也不需要全局锁。
+ */
+public class AdmissionControl {
+    private final int maxInFlight;
+    private final int maxInFlightPerClient;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // 每个客户端正在处理的请求数量，为 0 时删除
+    private final ConcurrentHashMap<Object, Integer> inFlightPerClient = new ConcurrentHashMap<>();
+
+    public AdmissionControl(int maxInFlight, int maxInFlightPerClient) {
+        this.maxInFlight = maxInFlight;
+        this.maxInFlightPerClient = maxInFlightPerClient;
+    }
+
+    // 尝试接收一个请求，成功后必须在回复客户端后调用 release
+    public boolean tryAcquire(Object client) {
+        if (inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            return false;
+        }
+        var admitted = new boolean[1];
+        inFlightPerClient.compute(client, (k, n) -> {
+            var count = n == null ? 0 : n;
+            if (count >= maxInFlightPerClient) return n;
+            admitted[0] = true;
+            return count + 1;
+        });
+        if (!admitted[0]) inFlight.decrementAndGet();
+        return admitted[0];
+    }
+
+    public void release(Object client) {
+        inFlightPerClient.computeIfPresent(client, (k, n) -> n <= 1 ? null : n - 1);
+        inFlight.decrementAndGet();
+    }
+
+    // 正在处理的请求数量
+    public int inFlight() {
+        return inFlight.get();
+    }
+}
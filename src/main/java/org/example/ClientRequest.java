@@ -0,0 +1,22 @@
+package org.example;
+
+import java.net.Socket;
+
+// 排队等待处理的客户端请求（STORE、REMOVE、LOAD、RELOAD）
+class ClientRequest {
+    public Socket socket;
+    public String command;
+    // 进入队列的时间（System.nanoTime()），用于统计排队等待时间
+    public long enqueueTime;
+    public String traceId;
+    // 排队阶段的 JFR 事件，开始处理时结束
+    public Tracing.ControllerPhase queued;
+
+    public ClientRequest(Socket socket, String command, String fileName, String traceId) {
+        this.socket = socket;
+        this.command = command;
+        this.enqueueTime = System.nanoTime();
+        this.traceId = traceId;
+        this.queued = Tracing.phase(traceId, "LOAD", "queue", fileName, 0);
+    }
+}
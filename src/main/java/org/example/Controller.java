@@ -7,9 +7,16 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
 
 
 /*
@@ -38,221 +45,617 @@ public class Controller {
     // 再平衡操作的周期时间（秒）
     private static int rebalancePeriod;
 
+    // 写入的法定确认数 W（1 <= W <= 副本数），收到 W 个 STORE_ACK 即回复客户端，其余副本在后台完成
+    private static int writeQuorum;
+    // 后台副本写入失败、副本数不足的文件，交给修复队列，修复失败的由下一次再平衡补齐
+    private static Set<String> underReplicatedFiles = ConcurrentHashMap.newKeySet();
+    // 每个 Dstore 保存的文件（反向索引），Dstore 断开时据此找到受影响的文件
+    private static ReplicaIndex replicaIndex = new ReplicaIndex();
+    // 副本不足、等待修复的文件，剩余副本少的优先；修复并发数
+    private static RepairQueue repairQueue = new RepairQueue();
+    private static int repairConcurrency = Integer.getInteger("fds.repair.concurrency", 4);
+    // 热点文件：LOAD 速率（次/秒）达到 hotLoadsPerSec 时增加一个额外副本，最多 maxExtraReplicas 个；
+    // 速率降到一半以下后，每次再平衡收回一个。hotLoadsPerSec 为 0 表示关闭
+    private static double hotLoadsPerSec = Double.parseDouble(System.getProperty("fds.hot.loadsPerSec", "50"));
+    private static int maxExtraReplicas = Integer.getInteger("fds.hot.maxExtraReplicas", 2);
+    // 容量：写入后热层剩余空间少于 minFreeBytes 的 Dstore 不再接收新文件；
+    // 再平衡时字节数超过平均值 (1 + byteTolerance) 倍的 Dstore 才移出文件
+    private static long minFreeBytes = Long.getLong("fds.capacity.minFreeBytes", 64L << 20);
+    private static double byteTolerance = Double.parseDouble(System.getProperty("fds.rebalance.byteTolerance", "0.05"));
+
+    // 纠删码模式的数据分片数量 k 和校验分片数量 m，通过 -Dfds.ec=k+m 开启，为 0 表示使用多副本模式
+    private static int dataFragments;
+    private static int parityFragments;
+
     // 存储当前已连接的 Dstore 节点的端口号及其对应的 Socket 对象
-    private static HashMap<Integer, Socket> dstoreMap = new HashMap<>();
+    private static ConcurrentHashMap<Integer, Socket> dstoreMap = new ConcurrentHashMap<>();
 
     // 存储文件和它的详细信息
-    private static HashMap<String, FileInfo> fileInfoMap = new HashMap<>();
-
-    // 是否平衡
-    private static boolean isRebalancing = false;
+    private static ConcurrentHashMap<String, FileInfo> fileInfoMap = new ConcurrentHashMap<>();
+
+    // Dstore 心跳间隔（毫秒），与 Dstore 的 -Dfds.heartbeat.interval 保持一致
+    private static long heartbeatInterval = Long.getLong("fds.heartbeat.interval", 100);
+    // 根据心跳判断 Dstore 是否可疑的故障检测器
+    private static FailureDetector failureDetector = new FailureDetector(
+            Double.parseDouble(System.getProperty("fds.phi.threshold", "8")), heartbeatInterval, heartbeatInterval / 2, 100);
+    // 当前被怀疑的 Dstore：不再用于存储、加载和再平衡，收到心跳后立即恢复
+    private static Set<Integer> suspectedDstores = ConcurrentHashMap.newKeySet();
+
+    // 每个 Dstore 的负载估计（心跳中报告的连接数、新分配的 LOAD 数、STORE 确认耗时），用于 LOAD 时选择副本
+    private static ConcurrentHashMap<Integer, DstoreLoad> dstoreLoads = new ConcurrentHashMap<>();
+    // LOAD 选择副本的策略：p2c（随机选两个取负载低的）、least（负载最低）、first（第一个可用的副本）
+    private static String loadPolicy = System.getProperty("fds.load.policy", "p2c");
+
+    // 是否正在再平衡（同一时间只有一次），以及运行期间是否又有新的再平衡请求
+    private static AtomicBoolean isRebalancing = new AtomicBoolean();
+    private static volatile boolean rebalanceRequested;
+    // 每个 Dstore 已经同步到的文件清单版本，再平衡时的 LIST 只获取之后的变化
+    private static ConcurrentHashMap<Integer, InventoryCursor> inventoryCursors = new ConcurrentHashMap<>();
+    // 再平衡中等待确认的新副本，键为文件名
+    private static ConcurrentHashMap<String, PendingReplicas> pendingReplicas = new ConcurrentHashMap<>();
+    // 等待再平衡新副本确认的时间（毫秒），传输受限速影响，默认为 10 倍的 timeout
+    private static long rebalanceCopyTimeout;
+    // 再平衡计划分块发送：每块最多包含的文件数量，以及每个 Dstore 同时执行的块数
+    private static int rebalanceChunkSize = Integer.getInteger("fds.rebalance.chunkSize", 256);
+    private static int rebalanceChunkWindow = Integer.getInteger("fds.rebalance.chunkWindow", 2);
+    // 当前再平衡的轮次，用于忽略上一轮迟到的 REBALANCE_CHUNK_ACK
+    private static volatile long rebalanceRound;
+    // 每个 Dstore 还可以发送的块数，收到 REBALANCE_CHUNK_ACK 后加一
+    private static ConcurrentHashMap<Integer, Semaphore> rebalanceWindows = new ConcurrentHashMap<>();
 
     // 用于在再平衡操作中，等待所有 Dstore 节点返回文件列表信息。同步多个 Dstore 的响应。
     private static CountDownLatch waitForAllDstoresListCommand;
-    // 用于在再平衡操作中，等待某个特定 Dstore 完成文件的再平衡操作。用于同步再平衡任务的进度。
-    private static CountDownLatch oneDstoreCompleteRebalance;
-
-    /// 删除文件的请求队列，
-    private static HashMap<String, ArrayBlockingQueue<Socket>> removeRequestQueue = new HashMap<>();
-    private static HashMap<String, Thread> removeThread = new HashMap<>();
 
-    /// 存储文件的请求队列，应对并发
-    private static HashMap<String, ArrayBlockingQueue<Socket>> storeRequestQueue = new HashMap<>();
-    private static HashMap<String, Thread> storeThread = new HashMap<>();
+    // STORE 和 REMOVE 等待确认的超时共用一个时间轮，等待期间不占用线程
+    private static TimerWheel timerWheel = new TimerWheel("ack timeouts", 10, 512);
 
     /// 下载文件的请求队列，应对并发
 
-    private static HashMap<String, ArrayBlockingQueue<LoadOrReLoadRequest>> loadRequestQueue = new HashMap<>();
-    private static HashMap<String, Thread> loadThread = new HashMap<>();
+    private static ConcurrentHashMap<String, ArrayBlockingQueue<ClientRequest>> loadRequestQueue = new ConcurrentHashMap<>();
+    // 每个文件的 LOAD 队列长度
+    private static int loadQueueCapacity = Integer.getInteger("fds.controller.loadQueueCapacity", 64);
+
+    // 准入控制：全局和每个客户端连接正在处理的请求上限
+    private static AdmissionControl admission = new AdmissionControl(
+            Integer.getInteger("fds.controller.maxInFlight", 10000), Integer.getInteger("fds.controller.maxInFlightPerClient", 64));
+    // 建议客户端重试的等待时间（毫秒），附在 BUSY 回复中
+    private static int busyRetryAfter = Integer.getInteger("fds.controller.busyRetryAfter", 100);
+    // 分段上传的段数上限，STORE_PARTS_TO 的长度与段数成正比
+    private static int maxParts = Integer.getInteger("fds.multipart.maxParts", 10000);
+    // 集群的再平衡总带宽（字节/秒，0 表示不限速），平均分配给各个 Dstore，可以通过 REBALANCE_RATE 命令随时修改
+    private static volatile long clusterRebalanceRate = Long.getLong("fds.rebalance.clusterBytesPerSec", 0);
+    // 除本机以外，可以发送管理命令（REBALANCE_RATE）的地址，例如 -Dfds.admin.hosts=10.0.0.5,10.0.0.6（Router 所在的主机）
+    private static Set<String> adminHosts = Set.of(System.getProperty("fds.admin.hosts", "").split(","));
+
+    // STORE、REMOVE 按文件名分段加锁
+    private static Object[] fileLocks = new Object[256];
+
+    static {
+        for (int i = 0; i < fileLocks.length; i++) {
+            fileLocks[i] = new Object();
+        }
+    }
 
 
-    // 再平衡函数
-    public static void rebalance() {
-        // 记录当前时间
-        var t1 = System.currentTimeMillis();
+    // 当前打开的客户端连接数量（Dstore 的连接交给 DstoreHandler 后不再计入）
+    private static AtomicInteger activeConnections = new AtomicInteger();
 
-        // 标记系统进入再平衡状态，其他操作将会被阻塞
-        isRebalancing = true;
+    // 各个文件请求队列中排队的请求总数
+    private static long queueDepth(ConcurrentHashMap<String, ArrayBlockingQueue<ClientRequest>> queues) {
+        long depth = 0;
+        for (var queue : queues.values()) {
+            depth += queue.size();
+        }
+        return depth;
+    }
 
-        // 只有当连接的 Dstore 节点数量大于等于副本数量时，才进行再平衡操作，此时说明可以进行再平衡，否则无法保证有足够的副本
-        if (dstoreMap.size() >= replicaNumber) {
-            System.out.println("enter rebalance（开始再平衡操作）");
+    // 所有已连接的 Dstore 在心跳中报告的某一项容量之和
+    private static long sumCapacity(ToLongFunction<DstoreLoad> capacity) {
+        long sum = 0;
+        for (var dstorePort : dstoreMap.keySet()) {
+            var load = dstoreLoads.get(dstorePort);
+            if (load != null) sum += capacity.applyAsLong(load);
+        }
+        return sum;
+    }
 
-            // 对系统中每个文件进行检查，确保没有文件正在存储或删除过程中
-            for (var fileName : fileInfoMap.keySet()) {
-                var fileInfo = fileInfoMap.get(fileName);
-                // 如果文件正在存储或删除，则暂停再平衡操作，等待这些操作完成
-                while (fileInfo.status == FileStatus.STORE_IN_PROGRESS || fileInfo.status == FileStatus.REMOVE_IN_PROGRESS) {
-                    // 等待，直到文件的存储或删除操作完成
-                }
-            }
+    // 当前可用（已连接且未被怀疑）的 Dstore
+    private static List<Integer> availableDstores() {
+        var dstores = new ArrayList<Integer>();
+        for (var dstorePort : new ArrayList<>(dstoreMap.keySet())) {
+            if (!suspectedDstores.contains(dstorePort)) dstores.add(dstorePort);
+        }
+        return dstores;
+    }
 
-            // 向所有 Dstore 发送 LIST_TOKEN 命令，获取它们当前存储的文件列表
-            for (var dstorePort : dstoreMap.keySet()) {
-                System.out.println("send list to dstore: " + dstorePort);
-                Util.sendMessage(dstoreMap.get(dstorePort), Protocol.LIST_TOKEN);
+    /*
+     * 定期检查每个 Dstore 的怀疑值，超过阈值的 Dstore 立即从可用结点中移除
+     */
+    private static void monitorHeartbeats() {
+        while (true) {
+            try {
+                Thread.sleep(Math.max(1, heartbeatInterval / 2));
+            } catch (InterruptedException e) {
+                return;
             }
-
-            // 使用 CountDownLatch 等待所有 Dstore 返回它们的文件列表
-            waitForAllDstoresListCommand = new CountDownLatch(dstoreMap.size());
+            // 单次检查出错时打印并继续，监控线程不能退出
             try {
-                // 等待 Dstore 响应，最多等待指定的超时时间
-                if (waitForAllDstoresListCommand.await(timeout, TimeUnit.MILLISECONDS)) {
+                for (var dstorePort : dstoreMap.keySet()) {
+                    if (!suspectedDstores.contains(dstorePort) && failureDetector.isSuspected(dstorePort)) {
+                        suspectedDstores.add(dstorePort);
+                        Metrics.counter("dstore_suspicions").increment();
+                        System.out.println("dstore " + dstorePort + " suspected, phi = " + failureDetector.phi(dstorePort));
+                    }
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-                    // 计算每个 Dstore 节点应存储的文件数量范围
-                    // 有 n 个文件，每个文件 x 个副本，y 个结点，每个结点应有 n*x/y 个值，如果不在这个范围，则需要进行调整
-                    var filesNumberInEveryDstore = (double) (replicaNumber * fileInfoMap.size()) / dstoreMap.size();
-                    var low = Math.floor(filesNumberInEveryDstore);  // 最低文件数量
-                    var high = Math.ceil(filesNumberInEveryDstore);  // 最高文件数量
+    /*
+     * 在线再平衡：客户端的操作不会被阻塞。
+     *   1. 向所有可用的 Dstore 发送 LIST，等待它们返回文件列表
+     *   2. 在文件列表的快照上计算计划，把需要发送的文件分块交给各个 Dstore 并行传输
+     *   3. 每个新副本收到 REBALANCE_STORE_ACK 后立即提交（加入 dstoresSavingFiles），LOAD 马上可以使用；
+     *      一个文件的新副本全部确认（或超时）后，才删除计划中该文件多余的旧副本，删除前先从 dstoresSavingFiles 中去掉
+     * 同一时间只有一次再平衡，运行期间的新请求会在本次结束后再执行一次。
+     */
+    public static void rebalance() {
+        if (!isRebalancing.compareAndSet(false, true)) {
+            rebalanceRequested = true;
+            return;
+        }
+        rebalanceRequested = false;
+        // 记录当前时间
+        var t1 = System.nanoTime();
+        var round = CompletableFuture.<Void>completedFuture(null);
+        // 本次再平衡的追踪编号，与 dispatchRebalance 分配的轮次一致（同一时间只有一次再平衡）
+        var traceId = Tracing.rebalanceTraceId(controllerPort, rebalanceRound + 1);
+        var complete = Tracing.phase(traceId, "REBALANCE", "complete", null, 0);
+
+        try {
+            // 只有当可用的 Dstore 节点数量大于等于副本数量时，才进行再平衡操作，此时说明可以进行再平衡，否则无法保证有足够的副本
+            // 被怀疑的 Dstore 不参与再平衡，避免等待它们的回复
+            var dstores = availableDstores();
+            if (dstores.size() >= replicaNumber) {
+                System.out.println("enter rebalance（开始再平衡操作）");
+
+                // 向所有 Dstore 发送 LIST_TOKEN 命令，获取上次同步之后文件列表的变化；先创建 CountDownLatch，避免回复先于它到达
+                waitForAllDstoresListCommand = new CountDownLatch(dstores.size());
+                // 选出 Dstore 之后有结点断开时，不等待它的回复，本次不制定计划，结束后按新的 Dstore 集合重新再平衡
+                var departed = false;
+                for (var dstorePort : dstores) {
+                    var socket = dstoreMap.get(dstorePort);
+                    if (socket == null) {
+                        departed = true;
+                        continue;
+                    }
+                    var cursor = inventoryCursors.getOrDefault(dstorePort, new InventoryCursor(0, 0));
+                    MessageWriter.send(socket, Protocol.LIST_TOKEN + " " + cursor.epoch + " " + cursor.generation);
+                }
+                if (departed) rebalanceRequested = true;
 
+                // 等待 Dstore 响应，最多等待指定的超时时间
+                var listStart = System.nanoTime();
+                var listPhase = Tracing.phase(traceId, "REBALANCE", "list", null, 0);
+                var allListed = !departed && waitForAllDstoresListCommand.await(timeout, TimeUnit.MILLISECONDS);
+                listPhase.commit();
+                Metrics.histogram("rebalance_list").recordSince(listStart);
+                if (allListed) {
                     // 创建一个映射，存储每个 Dstore 当前保存的文件列表
-                    var filesInDstore = new HashMap<Integer, HashSet<String>>();
-                    for (var fileName : fileInfoMap.keySet()) {
-                        var fileInfo = fileInfoMap.get(fileName);
-                        for (var dp : fileInfo.dstoresSavingFiles) {
-                            filesInDstore.computeIfAbsent(dp, k -> new HashSet<>()).add(fileName);
-                        }
-                    }
+                    var filesInDstore = Placement.filesInDstore(fileInfoMap);
 
-                    // 遍历每个 Dstore，检查并调整它们的文件分布
-                    for (var dstore : dstoreMap.keySet()) {
-                        // 用来记录需要从该 Dstore 发送到其他 Dstore 的文件及目标 Dstore 列表
-                        var filesToSendToDstore = new HashMap<String, HashSet<Integer>>();
-                        // 用来记录需要从该 Dstore 删除的文件列表
-                        var filesToRemoveInDstore = new HashSet<String>();
+                    // 重建纠删码文件丢失的分片
+                    repairFragments(filesInDstore, dstores);
 
-                        // 获取当前 Dstore 保存的文件列表，如果没有任何文件，则跳过
-                        var files = filesInDstore.get(dstore);
-                        if (files == null) continue;
+                    // 已经冷却的热点文件减少一个额外副本，多出的副本由再平衡计划删除
+                    coolDownHotFiles();
 
-                        try {
-                            // 遍历每个文件，检查是否需要移动或删除
-                            for (var file : files) {
-                                var fileInfo = fileInfoMap.get(file);
+                    // 计算每个 Dstore 需要发送和删除的文件
+                    var planStart = System.nanoTime();
+                    var planPhase = Tracing.phase(traceId, "REBALANCE", "plan", null, 0);
+                    var plans = Placement.planRebalance(fileInfoMap, filesInDstore, dstores, replicaNumber,
+                            dstoreLoads, minFreeBytes, byteTolerance);
+                    planPhase.commit();
+                    Metrics.histogram("rebalance_plan").recordSince(planStart);
 
-                                // Case 1: （文件异常、不要了）如果文件未完成存储或删除，则从该 Dstore 删除该文件
-                                if (fileInfo.status == null) {
-                                    filesToRemoveInDstore.add(file);
-                                    fileInfo.dstoresSavingFiles.remove(dstore);
-                                    filesInDstore.get(dstore).remove(file);
-                                    continue;
-                                }
+                    var dispatchStart = System.nanoTime();
+                    round = dispatchRebalance(plans, traceId);
+                    Metrics.histogram("rebalance_dispatch").recordSince(dispatchStart);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
 
-                                // Case 2: （文件过多，删除）如果该文件的副本数量超过了所需的副本数，则删除该文件的副本
-                                if (fileInfo.dstoresSavingFiles.size() > replicaNumber) {
-                                    filesToRemoveInDstore.add(file);
-                                    fileInfo.dstoresSavingFiles.remove(dstore);
-                                    filesInDstore.get(dstore).remove(file);
-                                    continue;
-                                }
+        // 所有文件的副本变化都提交后，本次再平衡结束
+        round.whenComplete((ignored, e) -> {
+            // 已经为后台写入失败的文件补齐了副本
+            underReplicatedFiles.removeIf(file -> !fileInfoMap.containsKey(file)
+                    || fileInfoMap.get(file).dstoresSavingFiles.size() >= replicaNumber);
+            Metrics.histogram("rebalance").recordSince(t1);
+            complete.commit();
+            System.out.println("rebalance time: " + (System.nanoTime() - t1) / 1_000_000 + " ms");
+            isRebalancing.set(false);
+            if (rebalanceRequested) Thread.ofVirtual().start(Controller::rebalance);
+        });
+    }
 
-                                // Case 3: （dstore 文件过多，不过遍历的文件副本数量刚刚达标），则移动文件
-                                if (filesInDstore.get(dstore).size() - filesToRemoveInDstore.size() > high &&
-                                        fileInfo.dstoresSavingFiles.size() == replicaNumber) {
-                                    filesToRemoveInDstore.add(file);
-                                    fileInfo.dstoresSavingFiles.remove(dstore);
-                                    filesInDstore.get(dstore).remove(file);
-
-                                    // 将文件发送到另一个 Dstore
-                                    for (Integer anotherDstore : dstoreMap.keySet()) {
-                                        if (anotherDstore.equals(dstore)) continue;
-
-                                        // 如果另一个 Dstore 已经包含该文件或已满，则跳过
-                                        if (filesInDstore.get(anotherDstore).contains(file) || filesInDstore.get(anotherDstore).size() > low)
-                                            continue;
-
-                                        // 添加到发送列表中
-                                        filesToSendToDstore.computeIfAbsent(file, k -> new HashSet<>()).add(anotherDstore);
-                                        fileInfo.dstoresSavingFiles.add(anotherDstore);
-                                        filesInDstore.get(anotherDstore).add(file);
-                                        break;
-                                    }
-                                    continue;
-                                }
+    /*
+     * 把计划中的发送任务交给各个 Dstore，并为每个涉及的文件登记等待中的新副本。
+     * 返回的 future 在所有文件的新副本确认（或超时）、多余的副本删除之后完成。
+     */
+    private static CompletableFuture<Void> dispatchRebalance(LinkedHashMap<Integer, FilesToSendAndToRemove> plans, String traceId) {
+        // 每个文件：新副本的目标 Dstore 和需要删除副本的 Dstore
+        var copies = new HashMap<String, HashSet<Integer>>();
+        var removals = new HashMap<String, HashSet<Integer>>();
+        for (var dstore : plans.keySet()) {
+            var plan = plans.get(dstore);
+            for (var fileToSend : plan.filesToSendList) {
+                for (var target : fileToSend.dstores) {
+                    copies.computeIfAbsent(fileToSend.fileName, k -> new HashSet<>()).add(Integer.parseInt(target));
+                }
+            }
+            for (var file : plan.filesToRemoveList) {
+                removals.computeIfAbsent(file, k -> new HashSet<>()).add(dstore);
+            }
+        }
 
-                                // Case 4: 如果 Dstore 文件数过多，但文件副本数不足，则移动文件
-                                if (filesInDstore.get(dstore).size() - filesToRemoveInDstore.size() > high &&
-                                        fileInfo.dstoresSavingFiles.size() < replicaNumber) {
-                                    filesToRemoveInDstore.add(file);
-                                    fileInfo.dstoresSavingFiles.remove(dstore);
-                                    filesInDstore.get(dstore).remove(file);
-
-                                    // 将文件发送到另一个 Dstore
-                                    for (Integer anotherDstore : dstoreMap.keySet()) {
-                                        if (anotherDstore.equals(dstore)) continue;
-
-                                        // 如果另一个 Dstore 已经包含该文件或已满，则跳过
-                                        if (filesInDstore.get(anotherDstore).contains(file) || filesInDstore.get(anotherDstore).size() > low)
-                                            continue;
-
-                                        // 添加到发送列表中
-                                        filesToSendToDstore.computeIfAbsent(file, k -> new HashSet<>()).add(anotherDstore);
-                                        fileInfo.dstoresSavingFiles.add(anotherDstore);
-                                        filesInDstore.get(anotherDstore).add(file);
-                                        if (fileInfo.dstoresSavingFiles.size() == replicaNumber) {
-                                            break;
-                                        }
-                                    }
-                                    continue;
-                                }
+        // 先登记等待中的副本，再让 Dstore 开始发送，避免确认先于登记到达
+        var files = new HashSet<String>(copies.keySet());
+        files.addAll(removals.keySet());
+        var futures = new ArrayList<CompletableFuture<Void>>();
+        for (var file : files) {
+            var targets = copies.getOrDefault(file, new HashSet<>());
+            var pending = new PendingAcks(targets.size()).withTimeout(timerWheel, rebalanceCopyTimeout);
+            var replicas = new PendingReplicas(targets, pending, Tracing.AckPhases.begin(traceId, "REBALANCE", file, targets));
+            if (!targets.isEmpty()) {
+                pendingReplicas.put(file, replicas);
+                Metrics.counter("rebalance_copies").add(targets.size());
+            }
+            var toRemove = removals.getOrDefault(file, new HashSet<>());
+            futures.add(pending.future.handle((ignored, e) -> {
+                pendingReplicas.remove(file, replicas);
+                if (e != null) Metrics.counter("rebalance_copy_timeouts").increment();
+                commitRemovals(file, toRemove);
+                return null;
+            }));
+        }
 
-                                // Case 5: 如果 Dstore 文件数过少，文件数量不足，则只移动文件
-                                if (filesInDstore.get(dstore).size() - filesToRemoveInDstore.size() <= high &&
-                                        fileInfo.dstoresSavingFiles.size() < replicaNumber) {
-                                    for (Integer anotherDstore : dstoreMap.keySet()) {
-                                        if (anotherDstore.equals(dstore)) continue;
-                                        if (!filesInDstore.containsKey(anotherDstore)) continue;
-                                        if (filesInDstore.get(anotherDstore).contains(file) || filesInDstore.get(anotherDstore).size() > low)
-                                            continue;
-
-                                        filesToSendToDstore.computeIfAbsent(file, k -> new HashSet<>()).add(anotherDstore);
-                                        fileInfo.dstoresSavingFiles.add(anotherDstore);
-                                        filesInDstore.get(anotherDstore).add(file);
-                                        if (fileInfo.dstoresSavingFiles.size() == replicaNumber) {
-                                            break;
-                                        }
-                                    }
-                                }
-                            }
-                        } catch (ConcurrentModificationException e) {
-                            e.printStackTrace();
-                        }
+        // 只把发送任务交给 Dstore，删除等新副本确认后由 Controller 逐个发送；每个 Dstore 的计划在单独的虚拟线程中分块发送
+        var round = ++rebalanceRound;
+        for (var dstore : plans.keySet()) {
+            var plan = plans.get(dstore);
+            if (plan.filesToSendList.isEmpty()) continue;
+            var sends = new FilesToSendAndToRemove(plan.filesToSendList, new ArrayList<>());
+            Thread.ofVirtual().start(() -> streamPlan(round, dstore, sends, traceId));
+        }
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture<?>[]::new));
+    }
 
-                        // 构建并发送 REBALANCE 命令，包含需要发送和删除的文件列表
-                        var message = new StringBuilder(Protocol.REBALANCE_TOKEN);
-                        message.append(" ").append(filesToSendToDstore.size());
-                        for (var file : filesToSendToDstore.keySet()) {
-                            message.append(" ").append(file);
-                            message.append(" ").append(filesToSendToDstore.get(file).size());
-                            for (var ds : filesToSendToDstore.get(file)) {
-                                message.append(" ").append(ds);
-                            }
-                        }
-                        message.append(" ").append(filesToRemoveInDstore.size());
-                        for (var fileToRemove : filesToRemoveInDstore) {
-                            message.append(" ").append(fileToRemove);
-                        }
+    /*
+     * 把一个 Dstore 的再平衡计划分块发送：Dstore 收到第一块就开始传输，
+     * 同时最多有 rebalanceChunkWindow 块未确认，避免一次发送很长的命令。
+     * 等待确认超时后不再发送剩下的块，其中的文件在新副本确认超时后由下一次再平衡处理。
+     */
+    private static void streamPlan(long round, int dstore, FilesToSendAndToRemove plan, String traceId) {
+        var window = new Semaphore(rebalanceChunkWindow);
+        rebalanceWindows.put(dstore, window);
+        var dispatch = Tracing.phase(traceId, "REBALANCE", "dispatch", null, dstore);
+        try {
+            var chunks = plan.chunks(rebalanceChunkSize);
+            for (int seq = 0; seq < chunks.size(); seq++) {
+                if (!window.tryAcquire(rebalanceCopyTimeout, TimeUnit.MILLISECONDS)) {
+                    Metrics.counter("rebalance_chunk_timeouts").increment();
+                    return;
+                }
+                var socket = dstoreMap.get(dstore);
+                if (socket == null) return;
+                MessageWriter.send(socket, chunks.get(seq).toChunkMessage(round, seq));
+                Metrics.counter("rebalance_chunks").increment();
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            dispatch.commit();
+            rebalanceWindows.remove(dstore, window);
+        }
+    }
 
-                        // 如果有文件需要发送或删除，则发送命令并等待确认
-                        if (!filesToSendToDstore.isEmpty() || !filesToRemoveInDstore.isEmpty()) {
-                            oneDstoreCompleteRebalance = new CountDownLatch(1);
-                            Util.sendMessage(dstoreMap.get(dstore), message.toString());
-                            var ignored = oneDstoreCompleteRebalance.await(timeout, TimeUnit.MILLISECONDS);
-                        }
+    /*
+     * 删除计划中某个文件多余的副本：先从 dstoresSavingFiles 中去掉（之后的 LOAD 不会再选它），再通知 Dstore 删除。
+     * 删除后剩余的副本必须不少于副本数，否则保留（新副本没有按时确认）；不属于任何已知文件的副本直接删除。
+     */
+    private static void commitRemovals(String file, Set<Integer> dstores) {
+        synchronized (lockFor(file)) {
+            var fileInfo = fileInfoMap.get(file);
+            for (var dstore : dstores) {
+                if (fileInfo != null && fileInfo.status == FileStatus.STORE_COMPLETE && fileInfo.dstoresSavingFiles.contains(dstore)) {
+                    if (fileInfo.dstoresSavingFiles.size() - 1 < replicaNumber) {
+                        Metrics.counter("rebalance_removals_skipped").increment();
+                        continue;
                     }
+                    removeReplica(file, fileInfo, dstore);
+                } else if (fileInfo != null && fileInfo.status != null && fileInfo.status != FileStatus.STORE_COMPLETE) {
+                    // 文件正在存储或删除，交给对应的操作处理
+                    continue;
                 }
+                var socket = dstoreMap.get(dstore);
+                if (socket != null) {
+                    MessageWriter.send(socket, Protocol.REMOVE_TOKEN + " " + file);
+                    Metrics.counter("rebalance_removals").increment();
+                }
+            }
+            // 不属于任何已知文件的副本都已删除
+            if (fileInfo != null && fileInfo.status == null) fileInfoMap.remove(file, fileInfo);
+        }
+    }
+
+    /*
+     * 为新文件选择 count 个 Dstore，并把 bytes 计入它们还没有报告的使用量，避免同一时间的 STORE 都选中同一批结点：
+     * 确认时转入 ackedBytes（下一次容量报告中已经包含），存储结束时释放还没有确认的部分。
+     * 有空间的结点不足 count 个时返回的结点较少，不计入使用量
+     */
+    private static List<Integer> selectDstoresForStore(FileInfo fileInfo, long bytes, int count) {
+        var dstores = Placement.selectDstoresForStore(availableDstores(), fileInfo, bytes, count, dstoreLoads, minFreeBytes);
+        if (dstores.size() < count) {
+            Metrics.counter("store_rejected_capacity").increment();
+            return dstores;
+        }
+        for (var dstorePort : dstores) {
+            dstoreLoads.computeIfAbsent(dstorePort, k -> new DstoreLoad()).assignedBytes.addAndGet(bytes);
+        }
+        var assigned = ConcurrentHashMap.<Integer>newKeySet();
+        assigned.addAll(dstores);
+        fileInfo.assignedDstores = assigned;
+        return dstores;
+    }
+
+    // 分配给 dstorePort 的副本（分片）已经确认
+    private static void assignedStored(FileInfo fileInfo, int dstorePort) {
+        var assigned = fileInfo.assignedDstores;
+        if (assigned == null || !assigned.remove(dstorePort)) return;
+        var load = dstoreLoads.get(dstorePort);
+        if (load != null) load.stored(Placement.bytesOn(fileInfo, dstorePort));
+    }
+
+    // 存储结束：释放分配了但没有确认的字节数
+    private static void releaseAssignedBytes(FileInfo fileInfo) {
+        var assigned = fileInfo.assignedDstores;
+        if (assigned == null) return;
+        fileInfo.assignedDstores = null;
+        for (var dstorePort : assigned) {
+            var load = dstoreLoads.get(dstorePort);
+            if (assigned.remove(dstorePort) && load != null) load.assignedBytes.addAndGet(-Placement.bytesOn(fileInfo, dstorePort));
+        }
+    }
+
+    // 记录 dstorePort 保存了文件的一个副本（或分片），同时更新反向索引
+    private static void addReplica(String file, FileInfo fileInfo, int dstorePort) {
+        fileInfo.dstoresSavingFiles.add(dstorePort);
+        replicaIndex.add(dstorePort, file);
+    }
+
+    // 去掉 dstorePort 上的副本，返回之前是否记录了该副本
+    private static boolean removeReplica(String file, FileInfo fileInfo, int dstorePort) {
+        replicaIndex.remove(dstorePort, file);
+        return fileInfo.dstoresSavingFiles.remove(dstorePort);
+    }
+
+    /*
+     * 修复线程：按优先级取出副本不足的文件，每个线程同时只修复一个文件，等新副本确认（或超时）后再取下一个
+     */
+    private static void repairLoop() {
+        while (true) {
+            try {
+                repair(repairQueue.take()).join();
             } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
                 e.printStackTrace();
             }
         }
+    }
 
+    /*
+     * 补齐一个多副本文件的副本：从一个可用的副本直接复制到负载最轻（其次是使用字节数最少）、有空间、还没有该文件的 Dstore，
+     * 新副本通过 REBALANCE_STORE_ACK 提交，与再平衡相同。再平衡正在复制该文件时跳过。
+     * 热点文件的额外副本也通过这里添加。
+     */
+    private static CompletableFuture<Void> repair(String file) {
+        PendingReplicas replicas;
+        synchronized (lockFor(file)) {
+            var fileInfo = fileInfoMap.get(file);
+            if (fileInfo == null || fileInfo.status != FileStatus.STORE_COMPLETE || fileInfo.isErasureCoded()
+                    || fileInfo.isMultipart() || pendingReplicas.containsKey(file)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            var available = availableDstores();
+            var sources = new ArrayList<Integer>();
+            for (var dstorePort : fileInfo.dstoresSavingFiles) {
+                if (available.contains(dstorePort)) sources.add(dstorePort);
+            }
+            if (sources.isEmpty()) {
+                // 没有可用的副本，只能等保存该文件的 Dstore 恢复
+                Metrics.counter("repair_lost").increment();
+                return CompletableFuture.completedFuture(null);
+            }
+            var candidates = new ArrayList<Integer>();
+            for (var dstorePort : available) {
+                if (!fileInfo.dstoresSavingFiles.contains(dstorePort)) candidates.add(dstorePort);
+            }
+            candidates.removeIf(dstorePort -> {
+                var load = dstoreLoads.get(dstorePort);
+                return load != null && !load.hasRoom(fileInfo.size, minFreeBytes);
+            });
+            candidates.sort(Comparator.comparingInt((Integer dstorePort) -> {
+                var load = dstoreLoads.get(dstorePort);
+                return load == null ? 0 : load.outstanding();
+            }).thenComparingLong(dstorePort -> Placement.usedBytes(dstorePort, dstoreLoads)));
+            var targets = new ArrayList<String>();
+            var target = replicaNumber + fileInfo.extraReplicas.get();
+            for (int i = 0; i < candidates.size() && sources.size() + targets.size() < target; i++) {
+                targets.add(String.valueOf(candidates.get(i)));
+            }
+            if (targets.isEmpty()) return CompletableFuture.completedFuture(null);
+            var source = Placement.selectReplicaForLoad(sources, dstoreLoads, loadPolicy);
+            var sourceSocket = dstoreMap.get(source);
+            // 源 Dstore 刚刚断开：它的断开处理会重新检查这个文件的副本数
+            if (sourceSocket == null) return CompletableFuture.completedFuture(null);
+
+            var pending = new PendingAcks(targets.size()).withTimeout(timerWheel, rebalanceCopyTimeout);
+            var targetPorts = new HashSet<>(targets.stream().map(Integer::parseInt).toList());
+            replicas = new PendingReplicas(targetPorts, pending, Tracing.AckPhases.begin("repair-" + Tracing.newTraceId(), "REPAIR", file, targetPorts));
+            pendingReplicas.put(file, replicas);
+            MessageWriter.send(sourceSocket, new FilesToSendAndToRemove(
+                    List.of(new FileToSend(file, targets)), new ArrayList<>()).toMessage());
+            Metrics.counter("repair_copies").add(targets.size());
+        }
+        return replicas.acks.future.handle((ignored, e) -> {
+            pendingReplicas.remove(file, replicas);
+            if (e != null) Metrics.counter("repair_timeouts").increment();
+            return null;
+        });
+    }
+
+    // LOAD 速率达到阈值、前一个额外副本已经就位的文件，再增加一个额外副本，新副本出现在之后的 LOAD_FROM 中
+    private static void recordLoad(String file, FileInfo fileInfo) {
+        if (hotLoadsPerSec <= 0) return;
+        fileInfo.loadRate.record();
+        if (fileInfo.loadRate.rate() < hotLoadsPerSec) return;
+        // 并发的 LOAD 看到同一个副本数时只有一个能增加额外副本
+        var extra = fileInfo.extraReplicas.get();
+        if (extra < maxExtraReplicas
+                && fileInfo.dstoresSavingFiles.size() >= replicaNumber + extra
+                && fileInfo.extraReplicas.compareAndSet(extra, extra + 1)) {
+            repairQueue.offer(file, fileInfo.dstoresSavingFiles.size());
+            Metrics.counter("hot_replicas_added").increment();
+        }
+    }
 
-        // 标记系统退出再平衡状态
-        isRebalancing = false;
+    // 收回已经冷却的热点文件的额外副本，每次再平衡每个文件最多收回一个
+    private static void coolDownHotFiles() {
+        for (var fileInfo : fileInfoMap.values()) {
+            if (fileInfo.loadRate.rate() < hotLoadsPerSec / 2
+                    && fileInfo.extraReplicas.getAndUpdate(extra -> extra > 0 ? extra - 1 : extra) > 0) {
+                Metrics.counter("hot_replicas_reclaimed").increment();
+            }
+        }
+    }
 
-        // 记录结束时间，并打印再平衡操作花费的时间
-        var t2 = System.currentTimeMillis();
-        System.out.println("rebalance time: " + (t2 - t1) / 1000);
+    /*
+     * 文件清单中 Dstore 保存的文件：记录该 Dstore 保存了这个文件（纠删码分片记录分片编号）；
+     * 不认识的文件记录为没有状态的文件，再平衡时从该 Dstore 删除
+     */
+    private static void addToInventory(String file, int dstorePort) {
+        if (ReedSolomon.isFragmentName(file) && fileInfoMap.containsKey(ReedSolomon.fileOfFragment(file))
+                && fileInfoMap.get(ReedSolomon.fileOfFragment(file)).isErasureCoded()) {
+            var fileInfo = fileInfoMap.get(ReedSolomon.fileOfFragment(file));
+            fileInfo.fragmentLocations.put(dstorePort, ReedSolomon.indexOfFragment(file));
+            addReplica(ReedSolomon.fileOfFragment(file), fileInfo, dstorePort);
+        } else if (Multipart.isPartName(file) && fileInfoMap.containsKey(Multipart.fileOfPart(file))
+                && fileInfoMap.get(Multipart.fileOfPart(file)).isMultipart()) {
+            var fileInfo = fileInfoMap.get(Multipart.fileOfPart(file));
+            fileInfo.partLocations.computeIfAbsent(Multipart.indexOfPart(file), k -> new CopyOnWriteArraySet<>()).add(dstorePort);
+            addReplica(Multipart.fileOfPart(file), fileInfo, dstorePort);
+        } else {
+            var fileInfo = fileInfoMap.computeIfAbsent(file, k -> {
+                var unknown = new FileInfo(0);
+                unknown.status = null;
+                return unknown;
+            });
+            addReplica(file, fileInfo, dstorePort);
+        }
+    }
+
+    /*
+     * 文件清单中 Dstore 已经删除的文件：正在删除的文件由 REMOVE_ACK 处理，其余的去掉该 Dstore
+     */
+    private static void removeFromInventory(String file, int dstorePort) {
+        if (ReedSolomon.isFragmentName(file) && fileInfoMap.containsKey(ReedSolomon.fileOfFragment(file))) {
+            var fileInfo = fileInfoMap.get(ReedSolomon.fileOfFragment(file));
+            if (fileInfo == null || fileInfo.status == FileStatus.REMOVE_IN_PROGRESS) return;
+            fileInfo.fragmentLocations.remove(dstorePort);
+            removeReplica(ReedSolomon.fileOfFragment(file), fileInfo, dstorePort);
+            return;
+        }
+        if (Multipart.isPartName(file) && fileInfoMap.containsKey(Multipart.fileOfPart(file))) {
+            var fileInfo = fileInfoMap.get(Multipart.fileOfPart(file));
+            if (fileInfo == null || fileInfo.status == FileStatus.REMOVE_IN_PROGRESS) return;
+            var locations = fileInfo.partLocations.get(Multipart.indexOfPart(file));
+            if (locations != null) locations.remove(dstorePort);
+            if (!fileInfo.holdsAnyPart(dstorePort)) removeReplica(Multipart.fileOfPart(file), fileInfo, dstorePort);
+            return;
+        }
+        var fileInfo = fileInfoMap.get(file);
+        if (fileInfo == null || fileInfo.status == FileStatus.REMOVE_IN_PROGRESS) return;
+        removeReplica(file, fileInfo, dstorePort);
+        // 不认识的文件已经从所有 Dstore 上删除
+        if (fileInfo.status == null && fileInfo.dstoresSavingFiles.isEmpty()) fileInfoMap.remove(file, fileInfo);
+    }
+
+    /*
+     * 再平衡的新副本已保存：如果文件仍然存在，提交新的副本位置；否则（文件在传输期间被删除）通知该 Dstore 删除这个副本
+     */
+    private static void commitReplica(String file, int dstorePort) {
+        synchronized (lockFor(file)) {
+            var fileInfo = fileInfoMap.get(file);
+            if (fileInfo != null && fileInfo.status == FileStatus.STORE_COMPLETE) {
+                addReplica(file, fileInfo, dstorePort);
+            } else {
+                var socket = dstoreMap.get(dstorePort);
+                if (socket != null) MessageWriter.send(socket, Protocol.REMOVE_TOKEN + " " + file);
+            }
+        }
+        var pending = pendingReplicas.get(file);
+        if (pending != null && pending.targets.contains(dstorePort)) {
+            pending.phases.ack(dstorePort);
+            pending.acks.ack(dstorePort);
+        }
+    }
+
+    /*
+     * 对于丢失了分片（但剩余分片不少于 k 个）的纠删码文件，选择一个没有保存该文件分片、且文件最少的 Dstore，
+     * 让它从其他 Dstore 收集 k 个分片重建丢失的分片，重建完成后该 Dstore 会回复 FRAGMENT_ACK，收到后才记录新的分片位置；
+     * 重建失败时文件仍然缺少该分片，下一次再平衡会重新选择
+     */
+    private static void repairFragments(HashMap<Integer, HashSet<String>> filesInDstore, List<Integer> dstores) {
+        for (var fileName : fileInfoMap.keySet()) {
+            var fileInfo = fileInfoMap.get(fileName);
+            if (fileInfo.status != FileStatus.STORE_COMPLETE || !fileInfo.isErasureCoded()) continue;
+            if (fileInfo.fragmentLocations.size() >= fileInfo.totalFragments()) continue;
+            if (fileInfo.fragmentLocations.size() < fileInfo.dataFragments) {
+                System.out.println("file " + fileName + " lost too many fragments to repair");
+                continue;
+            }
+
+            var present = new HashSet<>(fileInfo.fragmentLocations.values());
+            var locations = fileInfo.fragmentLocationsToString();
+            // 本次已经选为重建目标的 Dstore，每个结点最多保存一个分片
+            var chosen = new HashSet<Integer>();
+            for (int index = 0; index < fileInfo.totalFragments(); index++) {
+                if (present.contains(index)) continue;
+
+                Integer target = null;
+                for (var dstore : dstores) {
+                    if (fileInfo.dstoresSavingFiles.contains(dstore) || chosen.contains(dstore) || !dstoreMap.containsKey(dstore)) continue;
+                    var count = filesInDstore.getOrDefault(dstore, new HashSet<>()).size();
+                    if (target == null || count < filesInDstore.getOrDefault(target, new HashSet<>()).size()) {
+                        target = dstore;
+                    }
+                }
+                if (target == null) break;
+                // 选中之后断开了，下一次再平衡重新选择
+                var socket = dstoreMap.get(target);
+                if (socket == null) break;
+
+                filesInDstore.computeIfAbsent(target, k -> new HashSet<>()).add(fileName);
+                chosen.add(target);
+                MessageWriter.send(socket, Protocol.EC_REPAIR_TOKEN + " " + fileName + " " + fileInfo.size + " "
+                        + fileInfo.dataFragments + " " + fileInfo.parityFragments + " " + index + " " + locations);
+            }
+        }
     }
 
     public static class DstoreHandler implements Runnable {
@@ -260,6 +663,12 @@ public class Controller {
         private int dstorePort;
         // 与 dstore 节点通信的 Socket 实例
         private Socket dstoreSocket;
+        // 正在接收的分块文件清单（LIST_BEGIN 到 LIST_END 之间）：版本、是否完整，以及完整清单中出现过的文件
+        private InventoryCursor listing;
+        private boolean listingFull;
+        private HashSet<String> listed;
+        // 处理线程的结束标记
+        private final static String[] END_OF_MESSAGES = new String[0];
 
 
         // 构造函数，初始化
@@ -277,75 +686,60 @@ public class Controller {
                 // 获取 dstore 节点的输入流，并创建一个 BufferedReader 以读取数据
                 var in = new BufferedReader(new InputStreamReader(dstoreSocket.getInputStream()));
                 String inputLine;
+                // 心跳在读取线程直接处理，其他消息交给处理线程按到达顺序处理：
+                // 处理很长的清单时心跳不会排在后面，到达时间不被推迟，不会因此被误判为可疑
+                var messages = new LinkedBlockingQueue<String[]>();
+                var processor = new Thread(() -> process(messages));
+                processor.start();
 
                 // 持续读取 dstore 节点发送的数据直到 dstore 关闭连接
-                while ((inputLine = in.readLine()) != null) {
-                    // 将接收到的行数据按空格分割成字符串数组
-                    var tokens = inputLine.split(" ");
-
-                    // 根据接收到的数据的第一个令牌进行处理
-                    switch (tokens[0]) {
-                        //
-                        case Protocol.LIST_TOKEN -> {
-                            // 处理 LIST 请求，使用虚拟线程进行异步处理
-                            Thread.ofVirtual().start(() -> {
-                                // 从 tokens 中提取文件名列表
-                                var files = new ArrayList<>(Arrays.asList(tokens).subList(1, tokens.length));
-                                for (var file : files) {
-                                    if (fileInfoMap.containsKey(file)) {
-                                        // 如果文件信息存在，则更新保存该文件的 dstore 列表
-                                        var fileInfo = fileInfoMap.get(file);
-                                        fileInfo.dstoresSavingFiles.add(dstorePort);
-                                    } else {
-                                        // 如果文件信息不存在，则创建新的 FileInfo 对象并添加到文件信息映射中
-                                        var fileInfo = new FileInfo("0");
-                                        fileInfo.status = null;
-                                        fileInfoMap.put(file, fileInfo);
-                                    }
-                                }
-                                // 文件列表处理完毕，倒计时器减一
-                                waitForAllDstoresListCommand.countDown();
-                            });
-                        }
-
-                        case Protocol.STORE_ACK_TOKEN -> {
-                            // 处理 STORE_ACK 请求，使用虚拟线程进行异步处理
-                            Thread.ofVirtual().start(() -> {
-                                var fileName = tokens[1];
-                                var fileInfo = fileInfoMap.get(fileName);
-                                // 文件存储确认，倒计时器减一，并更新 dstore 保存文件的列表
-                                fileInfo.storeLatch.countDown();
-                                fileInfo.dstoresSavingFiles.add(dstorePort);
-                            });
-                        }
-
-                        case Protocol.REMOVE_ACK_TOKEN, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN -> {
-                            // 处理 REMOVE_ACK 或 ERROR_FILE_DOES_NOT_EXIST 请求，使用虚拟线程进行异步处理
-                            Thread.ofVirtual().start(() -> {
-                                var fileName = tokens[1];
-                                var fileInfo = fileInfoMap.get(fileName);
-                                // 文件移除确认，倒计时器减一，并更新 dstore 保存文件的列表
-                                fileInfo.removeLatch.countDown();
-                                fileInfo.dstoresSavingFiles.remove(dstorePort);
-                            });
-                        }
-
-                        case Protocol.REBALANCE_COMPLETE_TOKEN -> {
-                            // 处理 REBALANCE_COMPLETE 请求，倒计时器减一
-                            oneDstoreCompleteRebalance.countDown();
+                try {
+                    while ((inputLine = in.readLine()) != null) {
+                        // 将接收到的行数据按空格分割成字符串数组
+                        var tokens = inputLine.split(" ");
+
+                        if (tokens[0].equals(Protocol.HEARTBEAT_TOKEN)) {
+                            // 格式错误的心跳与 process 中的其他消息一样只打印，不能结束读取，否则断开时的清理不会执行
+                            try {
+                                heartbeat(tokens);
+                            } catch (RuntimeException e) {
+                                System.out.println("Malformed message received: " + inputLine);
+                                e.printStackTrace();
+                            }
+                        } else {
+                            messages.add(tokens);
                         }
                     }
+                } finally {
+                    // 等待已经收到的消息处理完，再清理该 dstore 的记录
+                    messages.add(END_OF_MESSAGES);
+                    processor.join();
                 }
 
                 // 当 dstore 关闭连接时，执行以下操作
                 // 从 dstoreMap 中移除该 dstore 节点的记录
                 dstoreMap.remove(dstorePort);
-
-                // 遍历所有文件信息，移除 dstore 节点的相关记录
-                for (var file : fileInfoMap.keySet()) {
+                failureDetector.remove(dstorePort);
+                suspectedDstores.remove(dstorePort);
+                dstoreLoads.remove(dstorePort);
+                inventoryCursors.remove(dstorePort);
+                pushRebalanceRate();
+
+                // 通过反向索引找到该 dstore 保存的文件，移除相关记录，副本不足的文件立即加入修复队列
+                var available = availableDstores();
+                for (var file : replicaIndex.removeDstore(dstorePort)) {
                     var fileInfo = fileInfoMap.get(file);
+                    if (fileInfo == null) continue;
                     fileInfo.loadHistory.remove(dstorePort);
                     fileInfo.dstoresSavingFiles.remove(dstorePort);
+                    fileInfo.fragmentLocations.remove(dstorePort);
+                    for (var locations : fileInfo.partLocations.values()) {
+                        locations.remove(dstorePort);
+                    }
+                    if (fileInfo.status == FileStatus.STORE_COMPLETE && !fileInfo.isErasureCoded() && !fileInfo.isMultipart()) {
+                        var replicas = (int) fileInfo.dstoresSavingFiles.stream().filter(available::contains).count();
+                        if (replicas < replicaNumber + fileInfo.extraReplicas.get()) repairQueue.offer(file, replicas);
+                    }
                 }
 
                 // 关闭 dstore 的 Socket 连接
@@ -359,6 +753,176 @@ public class Controller {
             } catch (IOException e) {
                 // 处理读取 dstore 节点输入流时的异常
                 e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // 处理线程：依次处理除心跳以外的消息，单条消息出错不影响之后的消息
+        private void process(LinkedBlockingQueue<String[]> messages) {
+            while (true) {
+                String[] tokens;
+                try {
+                    tokens = messages.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (tokens == END_OF_MESSAGES) return;
+                try {
+                    handle(tokens);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void heartbeat(String[] tokens) {
+            // 处理心跳，被怀疑的 Dstore 收到心跳后立即恢复可用
+            failureDetector.heartbeat(dstorePort);
+            if (tokens.length > 1) {
+                var load = dstoreLoads.computeIfAbsent(dstorePort, k -> new DstoreLoad());
+                load.heartbeat(Integer.parseInt(tokens[1]));
+                // 各层的容量：已经使用的字节数和剩余空间
+                if (tokens.length > 5) {
+                    load.capacity(Long.parseLong(tokens[2]), Long.parseLong(tokens[3]),
+                            Long.parseLong(tokens[4]), Long.parseLong(tokens[5]));
+                }
+            }
+            if (suspectedDstores.remove(dstorePort)) {
+                System.out.println("dstore " + dstorePort + " recovered");
+            }
+        }
+
+        private void handle(String[] tokens) {
+            // 根据接收到的数据的第一个令牌进行处理
+            switch (tokens[0]) {
+                //
+                case Protocol.LIST_TOKEN -> {
+                    // 处理不带版本号的 LIST 回复（一行完整的文件列表），使用虚拟线程进行异步处理
+                    Thread.ofVirtual().start(() -> {
+                        for (var file : Arrays.asList(tokens).subList(1, tokens.length)) {
+                            addToInventory(file, dstorePort);
+                        }
+                        // 文件列表处理完毕，倒计时器减一
+                        waitForAllDstoresListCommand.countDown();
+                    });
+                }
+
+                /*
+                 * 分块的文件清单：在当前线程按顺序处理，与同一连接上的各种确认保持先后关系。
+                 * 增量清单中的删除直接去掉该 Dstore；完整清单结束时，去掉所有没有出现在清单中的文件上的该 Dstore。
+                 */
+                case Protocol.LIST_BEGIN_TOKEN -> {
+                    listing = new InventoryCursor(Long.parseLong(tokens[1]), Long.parseLong(tokens[2]));
+                    listingFull = tokens[3].equals(Protocol.LIST_FULL);
+                    listed = listingFull ? new HashSet<>() : null;
+                    Metrics.counter(listingFull ? "list_full" : "list_delta").increment();
+                }
+
+                case Protocol.LIST_CHUNK_TOKEN -> {
+                    for (int i = 1; i < tokens.length; i++) {
+                        var file = tokens[i].substring(1);
+                        if (tokens[i].charAt(0) == '+') {
+                            addToInventory(file, dstorePort);
+                            if (listed != null) listed.add(file);
+                        } else {
+                            removeFromInventory(file, dstorePort);
+                        }
+                    }
+                    Metrics.counter("list_entries").add(tokens.length - 1);
+                }
+
+                case Protocol.LIST_END_TOKEN -> {
+                    if (listing == null) return;
+                    if (listingFull) {
+                        for (var file : fileInfoMap.keySet()) {
+                            var fileInfo = fileInfoMap.get(file);
+                            if (fileInfo == null || !fileInfo.dstoresSavingFiles.contains(dstorePort)) continue;
+                            // 分段上传的文件在清单中是各个段的文件名
+                            if (fileInfo.isMultipart()) {
+                                for (var part : fileInfo.partLocations.keySet()) {
+                                    var partName = Multipart.partName(file, part);
+                                    if (fileInfo.partLocations.get(part).contains(dstorePort) && !listed.contains(partName)) {
+                                        removeFromInventory(partName, dstorePort);
+                                    }
+                                }
+                                continue;
+                            }
+                            // 纠删码文件在清单中是分片名
+                            var name = fileInfo.isErasureCoded() && fileInfo.fragmentLocations.containsKey(dstorePort)
+                                    ? ReedSolomon.fragmentName(file, fileInfo.fragmentLocations.get(dstorePort)) : file;
+                            if (!listed.contains(name)) removeFromInventory(name, dstorePort);
+                        }
+                    }
+                    inventoryCursors.put(dstorePort, listing);
+                    listing = null;
+                    listed = null;
+                    // 文件列表处理完毕，倒计时器减一
+                    waitForAllDstoresListCommand.countDown();
+                }
+
+                case Protocol.STORE_ACK_TOKEN -> {
+                    // 处理 STORE_ACK 请求：直接在当前线程完成确认，最后一个确认会回复客户端 STORE_COMPLETE
+                    // 分段上传的段（文件名@段编号）计入所属文件的确认
+                    if (Multipart.isPartName(tokens[1]) && !fileInfoMap.containsKey(tokens[1])) {
+                        partStored(tokens[1], dstorePort);
+                        return;
+                    }
+                    var fileInfo = fileInfoMap.get(tokens[1]);
+                    if (fileInfo == null) return;
+                    // 更新 dstore 保存文件的列表，再完成确认
+                    addReplica(tokens[1], fileInfo, dstorePort);
+                    assignedStored(fileInfo, dstorePort);
+                    dstoreLoads.computeIfAbsent(dstorePort, k -> new DstoreLoad())
+                            .recordLatency((System.nanoTime() - fileInfo.storeStartTime) / 1000);
+                    fileInfo.storeAckPhases.ack(dstorePort);
+                    fileInfo.storeAcks.ack(dstorePort);
+                }
+
+                case Protocol.EC_STORE_ACK_TOKEN -> {
+                    // 负责编码的 Dstore 已经记录分片的放置计划，可以让客户端上传
+                    var fileInfo = fileInfoMap.get(tokens[1]);
+                    if (fileInfo != null) fileInfo.encodePlanAcked.complete(null);
+                }
+
+                case Protocol.FRAGMENT_ACK_TOKEN -> {
+                    // 处理 FRAGMENT_ACK 请求，记录分片位置并完成确认
+                    var fileInfo = fileInfoMap.get(tokens[1]);
+                    if (fileInfo == null) return;
+                    fileInfo.fragmentLocations.put(dstorePort, Integer.parseInt(tokens[2]));
+                    addReplica(tokens[1], fileInfo, dstorePort);
+                    assignedStored(fileInfo, dstorePort);
+                    fileInfo.storeAckPhases.ack(dstorePort);
+                    fileInfo.storeAcks.ack(dstorePort);
+                }
+
+                case Protocol.REMOVE_ACK_TOKEN, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN -> {
+                    // 处理 REMOVE_ACK 或 ERROR_FILE_DOES_NOT_EXIST 请求，更新 dstore 保存文件的列表并完成确认
+                    // 再平衡删除的副本已经提前从列表中去掉，它的确认不计入客户端的 REMOVE
+                    var fileInfo = fileInfoMap.get(tokens[1]);
+                    if (fileInfo == null) return;
+                    if (removeReplica(tokens[1], fileInfo, dstorePort)) {
+                        fileInfo.removeAckPhases.ack(dstorePort);
+                        fileInfo.removeAcks.ack(dstorePort);
+                    }
+                }
+
+                case Protocol.REBALANCE_STORE_ACK_TOKEN -> {
+                    // 再平衡的新副本已保存，提交该文件的副本位置
+                    commitReplica(tokens[1], dstorePort);
+                }
+
+                case Protocol.REBALANCE_CHUNK_ACK_TOKEN -> {
+                    // Dstore 完成了一块再平衡计划，可以发送下一块
+                    if (Long.parseLong(tokens[1]) != rebalanceRound) return;
+                    var window = rebalanceWindows.get(dstorePort);
+                    if (window != null) window.release();
+                }
+
+                case Protocol.REBALANCE_COMPLETE_TOKEN -> {
+                    // Dstore 完成了本次的发送任务，副本的提交以 REBALANCE_STORE_ACK 为准
+                    Metrics.counter("rebalance_dstores_complete").increment();
+                }
             }
         }
     }
@@ -372,16 +936,48 @@ public class Controller {
         timeout = Integer.parseInt(args[2]);
         // 再平衡时间 3，每过这个时间，开始一次再平衡操作
         rebalancePeriod = Integer.parseInt(args[3]);
+        rebalanceCopyTimeout = Long.getLong("fds.rebalance.copyTimeout", timeout * 10L);
+        // 写入的法定确认数，例如 -Dfds.write.quorum=2，默认等待全部副本
+        writeQuorum = Math.max(1, Math.min(replicaNumber, Integer.getInteger("fds.write.quorum", replicaNumber)));
+        // 纠删码模式，例如 -Dfds.ec=4+2 表示 4 个数据分片和 2 个校验分片
+        var ec = System.getProperty("fds.ec");
+        if (ec != null) {
+            var parts = ec.split("\\+");
+            dataFragments = Integer.parseInt(parts[0]);
+            parityFragments = Integer.parseInt(parts[1]);
+        }
+
+        // 导出指标
+        Metrics.start("controller");
+        Metrics.gauge("dstores", () -> dstoreMap.size());
+        Metrics.gauge("suspected_dstores", () -> suspectedDstores.size());
+        Metrics.gauge("files", () -> fileInfoMap.size());
+        Metrics.gauge("active_connections", activeConnections::get);
+        Metrics.gauge("pending_timeouts", timerWheel::size);
+        Metrics.gauge("under_replicated_files", () -> underReplicatedFiles.size());
+        Metrics.gauge("repair_queue_depth", () -> repairQueue.size());
+        Metrics.gauge("hot_bytes", () -> sumCapacity(load -> load.hotBytes));
+        Metrics.gauge("hot_free_bytes", () -> sumCapacity(load -> load.hotFreeBytes));
+        Metrics.gauge("cold_bytes", () -> sumCapacity(load -> load.coldBytes));
+        Metrics.gauge("cold_free_bytes", () -> sumCapacity(load -> load.coldFreeBytes));
+        for (int i = 0; i < repairConcurrency; i++) {
+            Thread.ofVirtual().name("repair-" + i).start(Controller::repairLoop);
+        }
+        Metrics.gauge("load_queue_depth", () -> queueDepth(loadRequestQueue));
+        Metrics.gauge("in_flight_requests", admission::inFlight);
 
         // 定时任务
         TimerTask rebalanceTask = new TimerTask() {
             @Override
             public void run() {
-                // 如果isRebalancing为 false，则执行 rebalance() 函数
-                if (!isRebalancing) rebalance();
+                // rebalance() 内部保证同一时间只有一次再平衡
+                rebalance();
             }
         };
 
+        // 根据心跳检测可疑的 Dstore
+        Thread.ofPlatform().daemon().name("heartbeat monitor").start(Controller::monitorHeartbeats);
+
         // rebalanceTask：要执行的任务
         // rebalancePeriod * 1000L ： 首次执行时间
         // rebalancePeriod * 1000L ： 执行周期
@@ -395,6 +991,7 @@ public class Controller {
                 Socket socket = serverSocket.accept();
 
                 // 为每个连接创建一个新的线程来处理该连接
+                activeConnections.incrementAndGet();
                 new Thread(() -> {
                     try {
                         // 获取客户端输入流，并创建一个 BufferedReader 以读取输入
@@ -416,14 +1013,19 @@ public class Controller {
 
                                 // 将 dstore 端口号和对应的 Socket 信息存入 dstoreMap 中
                                 dstoreMap.put(dstorePort, socket);
-
-                                // 如果当前不在重新平衡状态，启动一个新的线程来执行 rebalance 方法
-                                if (!isRebalancing) {
-                                    new Thread(Controller::rebalance).start();
+                                // JOIN 中带有各层的容量，放置新文件时不必等到第一次心跳
+                                if (tokens.length > 5) {
+                                    dstoreLoads.computeIfAbsent(dstorePort, k -> new DstoreLoad()).capacity(Long.parseLong(tokens[2]),
+                                            Long.parseLong(tokens[3]), Long.parseLong(tokens[4]), Long.parseLong(tokens[5]));
                                 }
 
+                                // 启动一个新的线程来执行 rebalance 方法（正在再平衡时，会在本次结束后再执行一次）
+                                new Thread(Controller::rebalance).start();
+
                                 // 启动一个新的线程来处理与 dstore 相关的任务
                                 new Thread(new DstoreHandler(dstorePort, socket)).start();
+                                // 结点数量变化，重新分配再平衡带宽
+                                pushRebalanceRate();
 
                                 // 处理完 JOIN 请求后，退出当前循环
                                 break;
@@ -435,6 +1037,8 @@ public class Controller {
                     } catch (IOException e) {
                         // 处理输入输出异常
                         e.printStackTrace();
+                    } finally {
+                        activeConnections.decrementAndGet();
                     }
                 }).start();
             }
@@ -446,331 +1050,532 @@ public class Controller {
 
     public static void handleCommandFromClient(Socket client, String command) {
         var tokens = command.split(" ");
+        // 准入控制：正在处理的请求超过上限时立即回复 BUSY，由客户端稍后重试
+        if (!admission.tryAcquire(client)) {
+            Metrics.counter("admission_rejections").increment();
+            MessageWriter.send(client, Protocol.BUSY_TOKEN + " " + busyRetryAfter);
+            return;
+        }
+        // 每个分支负责在回复后释放准入名额；格式错误的命令（缺少参数、大小不是数字等）在这里释放，连接继续处理之后的命令
+        try {
+            handleAdmittedCommand(client, tokens);
+        } catch (RuntimeException e) {
+            System.out.println("Malformed message received: " + command);
+            e.printStackTrace();
+            admission.release(client);
+        }
+    }
+
+    private static void handleAdmittedCommand(Socket client, String[] tokens) {
         switch (tokens[0]) {
             // list命令，返回当前的文件列表
             case Protocol.LIST_TOKEN -> {
                 Thread.ofVirtual().start(() -> {
-                    if (dstoreMap.size() < replicaNumber) {
-                        Util.sendMessage(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
-                    } else {
-                        System.out.println("LIST Start");
-                        var t1 = System.currentTimeMillis();
-                        while (isRebalancing) {
-                        }
-                        System.out.println("LIST End");
-                        var t2 = System.currentTimeMillis();
-                        System.out.println("list time: " + (t2 - t1) / 1000);
-                        var message = new StringBuilder(Protocol.LIST_TOKEN);
-                        for (var file : fileInfoMap.keySet()) {
-                            var fileInfo = fileInfoMap.get(file);
-                            if (fileInfo.status == FileStatus.STORE_COMPLETE) {
-                                message.append(" ").append(file);
+                    try {
+                        if (dstoreMap.size() < replicaNumber) {
+                            MessageWriter.send(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+                        } else {
+                            var t1 = System.nanoTime();
+                            var message = new StringBuilder(Protocol.LIST_TOKEN);
+                            for (var file : fileInfoMap.keySet()) {
+                                var fileInfo = fileInfoMap.get(file);
+                                if (fileInfo.status == FileStatus.STORE_COMPLETE) {
+                                    message.append(" ").append(file);
+                                }
                             }
+                            MessageWriter.send(client, message.toString());
+                            Metrics.histogram("list").recordSince(t1);
                         }
-                        Util.sendMessage(client, message.toString());
+                    } finally {
+                        admission.release(client);
                     }
                 });
             }
             // 存储set
             case Protocol.STORE_TOKEN -> {
-                // 如果正在平衡状态，则进行阻塞
-                while (isRebalancing) {
+                // 只做状态检查和发送消息，不等待确认；只锁住该文件所在的分段，锁的持有时间很短
+                CompletableFuture<Void> done;
+                synchronized (lockFor(tokens[1])) {
+                    done = storeFile(client, tokens[1], Long.parseLong(tokens[2]), Tracing.traceId(tokens, 3));
                 }
-                var fileName = tokens[1];
-                var fileSize = tokens[2];
-                synchronized (Controller.class) {
-                    // 将文件名加入到存储队列
-                    if (!storeRequestQueue.containsKey(fileName)) {
-                        storeRequestQueue.put(fileName, new ArrayBlockingQueue<>(10));
-                    }
-                    // 将文件名加入到线程队列，线程内容为存储任务，然后启动线程
-                    if (!storeThread.containsKey(fileName)) {
-                        var t = new Thread(() -> storeTask(fileName, fileSize));
-                        storeThread.put(fileName, t);
-                        t.start();
-                    }
-                    try {
-                        //
-                        storeRequestQueue.get(fileName).put(client);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
+                done.whenComplete((ignored, e) -> admission.release(client));
+            }
+            // 分段上传 STORE_MULTIPART 文件名 大小 每段大小
+            case Protocol.STORE_MULTIPART_TOKEN -> {
+                CompletableFuture<Void> done;
+                synchronized (lockFor(tokens[1])) {
+                    done = storeMultipart(client, tokens[1], Long.parseLong(tokens[2]), Long.parseLong(tokens[3]), Tracing.traceId(tokens, 4));
                 }
+                done.whenComplete((ignored, e) -> admission.release(client));
             }
             // 删除del
             case Protocol.REMOVE_TOKEN -> {
-                while (isRebalancing) {
-                }
-                var fileName = tokens[1];
-                synchronized (Controller.class) {
-                    if (!removeRequestQueue.containsKey(fileName)) {
-                        removeRequestQueue.put(fileName, new ArrayBlockingQueue<>(10));
-                    }
-                    if (!removeThread.containsKey(fileName)) {
-                        var t = new Thread(() -> removeTask(fileName));
-                        removeThread.put(fileName, t);
-                        t.start();
-                    }
-                    try {
-                        removeRequestQueue.get(fileName).put(client);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
+                CompletableFuture<Void> done;
+                synchronized (lockFor(tokens[1])) {
+                    done = removeFile(client, tokens[1], Tracing.traceId(tokens, 2));
                 }
+                done.whenComplete((ignored, e) -> admission.release(client));
             }
             // 获取get
             case Protocol.LOAD_TOKEN, Protocol.RELOAD_TOKEN -> {
-                while (isRebalancing) {
-                }
                 var fileName = tokens[1];
-                synchronized (Controller.class) {
-                    if (!loadRequestQueue.containsKey(fileName)) {
-                        loadRequestQueue.put(fileName, new ArrayBlockingQueue<>(10));
-                    }
-                    if (!loadThread.containsKey(fileName)) {
-                        var t = new Thread(() -> loadTask(fileName));
-                        loadThread.put(fileName, t);
-                        t.start();
-                    }
-                    try {
-                        loadRequestQueue.get(fileName).put(new LoadOrReLoadRequest(client, tokens[0]));
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
+                // 每个文件一个请求队列和处理线程，computeIfAbsent 保证只创建一次
+                var queue = loadRequestQueue.computeIfAbsent(fileName, k -> {
+                    var q = new ArrayBlockingQueue<ClientRequest>(loadQueueCapacity);
+                    Thread.ofVirtual().start(() -> loadTask(k, q));
+                    return q;
+                });
+                // 队列已满时不阻塞，直接回复 BUSY
+                if (!queue.offer(new ClientRequest(client, tokens[0], fileName, Tracing.traceId(tokens, 2)))) {
+                    Metrics.counter("load_queue_rejections").increment();
+                    MessageWriter.send(client, Protocol.BUSY_TOKEN + " " + busyRetryAfter);
+                    admission.release(client);
                 }
             }
+            // 加载分段上传文件的一段 LOAD_PART 文件名 段编号，只查询元数据，不需要排队
+            case Protocol.LOAD_PART_TOKEN -> {
+                loadPart(client, tokens[1], Integer.parseInt(tokens[2]));
+                admission.release(client);
+            }
+            // 修改集群的再平衡带宽，只接受受信任的地址
+            case Protocol.REBALANCE_RATE_TOKEN -> {
+                if (!isAdmin(client)) {
+                    Metrics.counter("admin_rejections").increment();
+                    MessageWriter.send(client, Protocol.ERROR_NOT_PERMITTED_TOKEN);
+                } else {
+                    clusterRebalanceRate = Long.parseLong(tokens[1]);
+                    pushRebalanceRate();
+                    MessageWriter.send(client, Protocol.ACK_TOKEN);
+                }
+                admission.release(client);
+            }
+            default -> admission.release(client);
+        }
+    }
+
+    // 管理命令是否来自本机或 adminHosts 中的地址
+    private static boolean isAdmin(Socket client) {
+        var address = client.getInetAddress();
+        return address.isLoopbackAddress() || adminHosts.contains(address.getHostAddress());
+    }
+
+    // 把集群的再平衡带宽平均分给当前的每个 Dstore
+    private static void pushRebalanceRate() {
+        var dstores = new ArrayList<>(dstoreMap.entrySet());
+        var share = clusterRebalanceRate <= 0 || dstores.isEmpty() ? 0 : Math.max(1, clusterRebalanceRate / dstores.size());
+        for (var dstore : dstores) {
+            MessageWriter.send(dstore.getValue(), Protocol.REBALANCE_RATE_TOKEN + " " + share);
         }
     }
 
-    public static void loadTask(String file) {
-        var bq = loadRequestQueue.get(file);
+    // 同一个文件的 STORE 和 REMOVE 使用同一把锁，不同文件的请求大多不会互相等待
+    private static Object lockFor(String fileName) {
+        return fileLocks[(fileName.hashCode() & 0x7fffffff) % fileLocks.length];
+    }
+
+    public static void loadTask(String file, ArrayBlockingQueue<ClientRequest> bq) {
         while (true) {
+            ClientRequest loadOrReLoadRequest;
+            try {
+                loadOrReLoadRequest = bq.take();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return;
+            }
             try {
-                var loadOrReLoadRequest = bq.take();
+                Metrics.histogram("load_queue_wait").recordSince(loadOrReLoadRequest.enqueueTime);
+                loadOrReLoadRequest.queued.commit();
+                var start = System.nanoTime();
+                var loadFrom = Tracing.phase(loadOrReLoadRequest.traceId, "LOAD", "load_from", file, 0);
                 if (dstoreMap.size() < replicaNumber) {
-                    Util.sendMessage(loadOrReLoadRequest.socket, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+                    MessageWriter.send(loadOrReLoadRequest.socket, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
                 } else if (!fileInfoMap.containsKey(file)) {
-                    Util.sendMessage(loadOrReLoadRequest.socket, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                    MessageWriter.send(loadOrReLoadRequest.socket, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
                 } else if (fileInfoMap.get(file).status == FileStatus.STORE_IN_PROGRESS || fileInfoMap.get(file).status == FileStatus.REMOVE_IN_PROGRESS) {
-                    Util.sendMessage(loadOrReLoadRequest.socket, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                    MessageWriter.send(loadOrReLoadRequest.socket, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
                 } else {
                     var fileInfo = fileInfoMap.get(file);
                     if (fileInfo.status == FileStatus.STORE_COMPLETE) {
                         if (loadOrReLoadRequest.command.equals(Protocol.LOAD_TOKEN)) {
                             fileInfo.loadHistory = new HashSet<>();
                         }
-                        boolean isFileFound = false;
+                        // 分段上传的文件：回复 LOAD_PARTS 大小 每段大小 段0的端口 段1的端口 ...，客户端分别加载每一段（可以并行）
+                        if (fileInfo.isMultipart()) {
+                            var replicas = selectPartReplicas(fileInfo);
+                            if (replicas == null) {
+                                MessageWriter.send(loadOrReLoadRequest.socket, Protocol.ERROR_LOAD_TOKEN);
+                                continue;
+                            }
+                            var message = new StringBuilder(Protocol.LOAD_PARTS_TOKEN);
+                            message.append(" ").append(fileInfo.size).append(" ").append(fileInfo.partSize);
+                            for (var dstorePort : replicas) {
+                                message.append(" ").append(dstorePort);
+                            }
+                            MessageWriter.send(loadOrReLoadRequest.socket, message.toString());
+                            Metrics.histogram("load").recordSince(start);
+                            continue;
+                        }
+                        // 纠删码文件：剩余分片少于 k 个时无法还原
+                        if (fileInfo.isErasureCoded() && fileInfo.fragmentLocations.size() < fileInfo.dataFragments) {
+                            MessageWriter.send(loadOrReLoadRequest.socket, Protocol.ERROR_LOAD_TOKEN);
+                            continue;
+                        }
+                        // 候选副本：没有加载过（RELOAD 时排除已经失败的结点）且未被怀疑的 Dstore
+                        var candidates = new ArrayList<Integer>();
                         for (var dstorePort : fileInfo.dstoresSavingFiles) {
-                            if (!fileInfo.loadHistory.contains(dstorePort)) {
-                                Util.sendMessage(loadOrReLoadRequest.socket, Protocol.LOAD_FROM_TOKEN + " " + dstorePort + " " + fileInfo.size);
-                                fileInfo.loadHistory.add(dstorePort);
-                                isFileFound = true;
-                                break;
+                            if (!fileInfo.loadHistory.contains(dstorePort) && !suspectedDstores.contains(dstorePort)) {
+                                candidates.add(dstorePort);
+                            }
+                        }
+                        var dstorePort = Placement.selectReplicaForLoad(candidates, dstoreLoads, loadPolicy);
+                        if (dstorePort != null) {
+                            // 纠删码文件：任意一个保存分片的 Dstore 都可以收集 k 个分片还原出完整文件，先告诉它分片的位置；
+                            // 该 Dstore 刚刚断开时不发送，客户端的 LOAD_DATA 失败后会 RELOAD 换一个结点
+                            var dstoreSocket = dstoreMap.get(dstorePort);
+                            if (fileInfo.isErasureCoded() && dstoreSocket != null) {
+                                MessageWriter.send(dstoreSocket, Protocol.EC_LOAD_TOKEN + " " + file + " " + fileInfo.size + " "
+                                        + fileInfo.dataFragments + " " + fileInfo.parityFragments + " " + fileInfo.fragmentLocationsToString());
                             }
+                            dstoreLoads.computeIfAbsent(dstorePort, k -> new DstoreLoad()).assignedLoads.incrementAndGet();
+                            MessageWriter.send(loadOrReLoadRequest.socket, Protocol.LOAD_FROM_TOKEN + " " + dstorePort + " " + fileInfo.size);
+                            Metrics.histogram("load").recordSince(start);
+                            loadFrom.dstore = dstorePort;
+                            loadFrom.commit();
+                            Metrics.counter("load_from_" + dstorePort).increment();
+                            fileInfo.loadHistory.add(dstorePort);
+                            if (!fileInfo.isErasureCoded() && loadOrReLoadRequest.command.equals(Protocol.LOAD_TOKEN)) {
+                                recordLoad(file, fileInfo);
+                            }
+                        } else {
+                            MessageWriter.send(loadOrReLoadRequest.socket, Protocol.ERROR_LOAD_TOKEN);
                         }
-                        if (!isFileFound) Util.sendMessage(loadOrReLoadRequest.socket, Protocol.ERROR_LOAD_TOKEN);
                     } else {
-                        Util.sendMessage(loadOrReLoadRequest.socket, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                        MessageWriter.send(loadOrReLoadRequest.socket, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
                     }
                 }
-            } catch (InterruptedException e) {
+            } catch (RuntimeException e) {
+                // 一个请求出错不能结束这个文件的处理线程，否则队列留在 loadRequestQueue 中，之后的 LOAD 不再有回复
                 e.printStackTrace();
+                MessageWriter.send(loadOrReLoadRequest.socket, Protocol.ERROR_LOAD_TOKEN);
+            } finally {
+                // 已经回复客户端，释放准入名额
+                admission.release(loadOrReLoadRequest.socket);
             }
         }
     }
 
-    public static void storeTask(String file, String size) {
-        // 从 storeRequestQueue 中获取与该文件名对应的存储请求队列
-        var bq = storeRequestQueue.get(file);
-
-        // 无限循环，持续处理存储请求
-        while (true) {
-            try {
-                // 从队列中取出下一个客户端的存储请求
-                Socket client = bq.take();
-
-                // 检查当前连接的 Dstore 数量是否足够副本数量（replicaNumber），如果不足，发送错误消息给客户端
-                if (dstoreMap.size() < replicaNumber) {
-                    Util.sendMessage(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
-                    // 检查文件是否正在存储过程中
-                } else if (fileInfoMap.containsKey(file) && fileInfoMap.get(file).status == FileStatus.STORE_IN_PROGRESS) {
-                    Util.sendMessage(client, Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+    /*
+     * 处理一个 STORE 请求：检查文件状态并发送 STORE_TO 后立即返回，不等待确认。
+     * 所有 Dstore 确认后由收到最后一个 STORE_ACK 的线程回复 STORE_COMPLETE，超时由时间轮处理。
+     * 调用方持有该文件的锁，保证同一个文件的状态检查和创建是原子的。返回的 future 在回复客户端后完成。
+     */
+    public static CompletableFuture<Void> storeFile(Socket client, String file, long size, String traceId) {
+        var start = System.nanoTime();
+        var complete = Tracing.phase(traceId, "STORE", "complete", file, 0);
+        var storeTo = Tracing.phase(traceId, "STORE", "store_to", file, 0);
+
+        if (!validFileName(file)) {
+            MessageWriter.send(client, Protocol.ERROR_INVALID_FILE_NAME_TOKEN);
+            return CompletableFuture.completedFuture(null);
+        }
+        // 检查当前可用的 Dstore 数量是否足够副本数量（replicaNumber），如果不足，发送错误消息给客户端
+        if (availableDstores().size() < replicaNumber) {
+            MessageWriter.send(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return CompletableFuture.completedFuture(null);
+        }
+        // 文件正在存储、已经存在或正在删除
+        if (fileInfoMap.containsKey(file) && fileInfoMap.get(file).status != null) {
+            MessageWriter.send(client, Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+            return CompletableFuture.completedFuture(null);
+        }
 
-                    // 检查文件是否已经存在
-                } else if (fileInfoMap.containsKey(file) && fileInfoMap.get(file).status == FileStatus.STORE_COMPLETE) {
-                    Util.sendMessage(client, Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+        // 创建新的 FileInfo 对象，表示该文件的元数据，并将其存入 fileInfoMap 中
+        var fileInfo = new FileInfo(size);
+        fileInfo.traceId = traceId;
+        fileInfoMap.put(file, fileInfo);
 
-                    // 检查文件是否正在删除过程中
-                } else if (fileInfoMap.containsKey(file) && fileInfoMap.get(file).status == FileStatus.REMOVE_IN_PROGRESS) {
-                    Util.sendMessage(client, Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+        // 纠删码模式：文件被切分为 k + m 个分片，分别放在不同的 Dstore 上
+        if (dataFragments > 0) {
+            return storeErasureCoded(client, file, size, fileInfo, start, complete, storeTo);
+        }
 
-                    // 如果文件不存在且没有冲突状态，则可以进行存储操作
-                } else {
-                    // 初始化文件名和文件大小
-                    String fileName = file;
-
-                    // 创建新的 FileInfo 对象，表示该文件的元数据，并将其存入 fileInfoMap 中
-                    // fileInfoMap
-                    fileInfoMap.put(fileName, new FileInfo(size));
-                    // 获取新建的 FileInfo
-
-                    // 创建一个映射，用于记录每个 Dstore 存储的文件列表（所有文件和结点！！！！）
-                    var dstoreFileNameList = new HashMap<Integer, HashSet<String>>();
-                    // 遍历所有文件
-                    for (var filename : fileInfoMap.keySet()) {
-                        // 获取其中一个文件的详细信息
-                        FileInfo f = fileInfoMap.get(filename);
-                        // 遍历这个文件存储的结点
-                        for (var dstore : f.dstoresSavingFiles) {
-                            // 如果map 中没有这个结点，则将这个结点加入到 map 中
-                            if (!dstoreFileNameList.containsKey(dstore)) {
-                                dstoreFileNameList.put(dstore, new HashSet<>());
-                            }
-                            dstoreFileNameList.get(dstore).add(fileName);
-                        }
-                    }
+        // 选择使用字节数最少、有足够空间的 Dstore，有空间的结点不足 R 个时拒绝
+        var dstores = selectDstoresForStore(fileInfo, size, replicaNumber);
+        if (dstores.size() < replicaNumber) {
+            fileInfoMap.remove(file, fileInfo);
+            MessageWriter.send(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return CompletableFuture.completedFuture(null);
+        }
 
-                    // 计算每个 Dstore 平均应存储的文件数量 = （文件数量*每个文件的副本数量）/结点数量
-                    var filesInEveryDstore = (double) ((fileInfoMap.size() * replicaNumber) / dstoreMap.size());
-                    // 上取整
-                    var high = Math.ceil(filesInEveryDstore);
-
-
-                    FileInfo fileInfo = fileInfoMap.get(fileName);
-
-                    // 构建要发送给客户端的存储命令消息
-                    var message = new StringBuilder(Protocol.STORE_TO_TOKEN);
-                    int storeCount = 0;
-                    for (var dstorePort : dstoreMap.keySet()) {
-                        // 如果已经选择了足够的 Dstore 节点，则退出循环
-                        if (storeCount == replicaNumber) break;
-
-                        // 如果 Dstore 没有保存该文件，且当前结点没有存储文件，则选择该 Dstore 进行存储
-                        if (!fileInfo.dstoresSavingFiles.contains(dstorePort) && dstoreFileNameList.get(dstorePort) == null) {
-                            storeCount++;
-                            dstoreFileNameList.put(dstorePort, new HashSet<>());
-                            dstoreFileNameList.get(dstorePort).add(fileName);
-                            message.append(" ").append(dstorePort);
-
-                            // 如果 Dstore 没有保存该文件，且文件数量低于高水位限制，则选择该 Dstore 进行存储
-                        } else if (!fileInfo.dstoresSavingFiles.contains(dstorePort) && dstoreFileNameList.get(dstorePort).size() < high) {
-                            storeCount++;
-                            dstoreFileNameList.get(dstorePort).add(fileName);
-                            message.append(" ").append(dstorePort);
-                        }
-                    }
+        // 构建要发送给客户端的存储命令消息
+        var message = new StringBuilder(Protocol.STORE_TO_TOKEN);
+        for (var dstorePort : dstores) {
+            message.append(" ").append(dstorePort);
+        }
 
-                    // 等待所有 Dstore 确认存储成功（store_ack），通过 CountDownLatch 实现同步
-                    fileInfo.storeLatch = new CountDownLatch(replicaNumber);
-                    Util.sendMessage(client, message.toString());
-                    try {
-                        // 等待存储确认，超时时间为 timeout 毫秒
-                        if (fileInfo.storeLatch.await(timeout, TimeUnit.MILLISECONDS)) {
-                            // 如果所有 Dstore 成功存储文件，更新文件状态为 STORE_COMPLETE
-                            fileInfo.status = FileStatus.STORE_COMPLETE;
-                            // 发送存储完成的消息给客户端
-                            Util.sendMessage(client, Protocol.STORE_COMPLETE_TOKEN);
-                            // 重置 CountDownLatch，以便后续操作
-                            fileInfo.storeLatch = new CountDownLatch(0);
-                        } else {
-                            // 如果存储失败（超时），从 fileInfoMap 中移除该文件的元数据
-                            fileInfoMap.remove(fileName);
-                        }
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        // 等待 Dstore 确认存储成功（store_ack），必须在发送 STORE_TO 之前创建
+        // 收到 writeQuorum 个确认即回复客户端，其余副本在后台完成，超时未完成的副本交给再平衡补齐
+        fileInfo.storeAcks = new PendingAcks(replicaNumber, writeQuorum).withTimeout(timerWheel, timeout);
+        fileInfo.storeAckPhases = Tracing.AckPhases.begin(traceId, "STORE", file, dstores);
+        completeStore(client, file, fileInfo, start, complete);
+        fileInfo.storeAcks.future.whenComplete((ignored, e) -> {
+            releaseAssignedBytes(fileInfo);
+            if (e != null && fileInfo.status == FileStatus.STORE_COMPLETE) {
+                underReplicatedFiles.add(file);
+                repairQueue.offer(file, fileInfo.storeAcks.acked());
+                Metrics.counter("store_background_failures").increment();
+                System.out.println("file " + file + " stored with " + fileInfo.storeAcks.acked() + " of " + replicaNumber + " replicas");
             }
-        }
+        });
+        fileInfo.storeStartTime = System.nanoTime();
+        MessageWriter.send(client, message.toString());
+        storeTo.commit();
+        return fileInfo.storeAcks.quorum;
     }
 
-    //
-    public static void removeTask(String file) {
-        // 从 removeRequestQueue 中获取与该文件名对应的删除请求队列
-        var bq = removeRequestQueue.get(file);
-        // 进入一个无限循环，持续处理删除请求
-        while (true) {
-            try {
-                // 从请求队列中取出下一个客户端的删除请求
-                Socket client = bq.take();
-
-                // 检查当前连接的 Dstore 数量是否小于副本数，小于则不能删除
-                if (dstoreMap.size() < replicaNumber) {
-                    Util.sendMessage(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
-
-                    // 文件不存在，发送错误信息给客户端
-                } else if (fileInfoMap.get(file) == null) {
-                    Util.sendMessage(client, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-
-                    // 正在存储过程中，无法删除
-                } else if (fileInfoMap.get(file) != null && fileInfoMap.get(file).status == FileStatus.STORE_IN_PROGRESS) {
-                    Util.sendMessage(client, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-
-                    // 文件正在删除中
-                } else if (fileInfoMap.get(file) != null && fileInfoMap.get(file).status == FileStatus.REMOVE_IN_PROGRESS) {
-                    Util.sendMessage(client, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-
-                    // 如果文件状态为存储完成（STORE_COMPLETE），则可以执行删除操作
-                } else if (fileInfoMap.get(file) != null && fileInfoMap.get(file).status == FileStatus.STORE_COMPLETE) {
-                    //
-                    String fileName = file;
-                    // 获取文件详细信息
-                    var fileInfo = fileInfoMap.get(fileName);
-                    // 更新文件状态为正在删除中（REMOVE_IN_PROGRESS），防止其他操作干扰
-                    fileInfo.status = FileStatus.REMOVE_IN_PROGRESS;
-
-                    // 创建一个 CountDownLatch，用于同步等待所有 Dstore 完成删除操作
-                    fileInfo.removeLatch = new CountDownLatch(fileInfo.dstoresSavingFiles.size());
-
-                    // 向保存该文件的所有 Dstore 发送删除命令
-                    for (var dstorePort : fileInfo.dstoresSavingFiles) {
-                        Util.sendMessage(dstoreMap.get(dstorePort), Protocol.REMOVE_TOKEN + " " + fileName);
-                    }
+    // 用户的文件名不能包含分片和分段的分隔符，否则会和纠删码分片、分段上传的段的文件名冲突
+    private static boolean validFileName(String file) {
+        return !file.isEmpty() && !file.contains(ReedSolomon.FRAGMENT_SEPARATOR) && !file.contains(Multipart.PART_SEPARATOR);
+    }
 
-                    try {
-                        // 等待所有 Dstore 的删除确认，超时时间为 timeout 毫秒
-                        if (fileInfo.removeLatch.await(timeout, TimeUnit.MILLISECONDS)) {
-                            // 如果在超时时间内收到所有确认，发送删除完成的消息给客户端
-                            Util.sendMessage(client, Protocol.REMOVE_COMPLETE_TOKEN);
-                            // 从 fileInfoMap 中移除文件信息，表示删除已完成
-                            fileInfoMap.remove(fileName);
-                        } else {
-                            // 如果超时，依然从 fileInfoMap 中移除文件信息，表示删除操作已完成但可能不完全成功
-                            fileInfoMap.remove(fileName);
-                        }
-                    } catch (InterruptedException e) {
-                        // 如果在等待过程中发生异常，打印堆栈跟踪信息
-                        e.printStackTrace();
-                    }
-                }
+    /*
+     * 纠删码模式下的存储：选择 k + m 个不同的 Dstore，第一个 Dstore 负责接收客户端上传的完整文件，
+     * 编码后把各个分片发送到对应的 Dstore，每个分片保存完成后对应的 Dstore 会回复 FRAGMENT_ACK
+     */
+    private static CompletableFuture<Void> storeErasureCoded(Socket client, String fileName, long size, FileInfo fileInfo, long start,
+                                                             Tracing.ControllerPhase complete, Tracing.ControllerPhase storeTo) {
+        fileInfo.dataFragments = dataFragments;
+        fileInfo.parityFragments = parityFragments;
+        // 每个分片必须放在不同的 Dstore 上，每个结点保存一个分片
+        var dstores = selectDstoresForStore(fileInfo, ReedSolomon.shardSize(size, dataFragments), fileInfo.totalFragments());
+        if (dstores.size() < fileInfo.totalFragments()) {
+            fileInfoMap.remove(fileName);
+            MessageWriter.send(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return CompletableFuture.completedFuture(null);
+        }
 
-            } catch (InterruptedException e) {
-                // 如果在从队列获取请求的过程中被中断，抛出运行时异常并打印堆栈信息
-                throw new RuntimeException(e);
-            }
+        // 先把分片的放置计划发给负责编码的 Dstore，再让客户端把文件上传给它
+        var plan = new StringBuilder(Protocol.EC_STORE_TOKEN);
+        plan.append(" ").append(fileName).append(" ").append(size)
+                .append(" ").append(dataFragments).append(" ").append(parityFragments);
+        for (var dstorePort : dstores) {
+            plan.append(" ").append(dstorePort);
         }
+        var encoder = dstores.get(0);
+        var encoderSocket = dstoreMap.get(encoder);
+        if (encoderSocket == null) {
+            fileInfoMap.remove(fileName);
+            MessageWriter.send(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return CompletableFuture.completedFuture(null);
+        }
+        // 等待所有分片保存完成
+        fileInfo.storeAcks = new PendingAcks(fileInfo.totalFragments()).withTimeout(timerWheel, timeout);
+        fileInfo.storeAcks.future.whenComplete((ignored, e) -> releaseAssignedBytes(fileInfo));
+        fileInfo.storeAckPhases = Tracing.AckPhases.begin(fileInfo.traceId, "STORE", fileName, dstores);
+        completeStore(client, fileName, fileInfo, start, complete);
+        // 负责编码的 Dstore 记录了计划（EC_STORE_ACK）之后才让客户端上传，否则它可能把文件当作普通副本保存；
+        // 在此之前超时的存储不再发送 STORE_TO
+        fileInfo.encodePlanAcked.thenRun(() -> {
+            if (fileInfo.storeAcks.future.isDone()) return;
+            MessageWriter.send(client, Protocol.STORE_TO_TOKEN + " " + encoder);
+            storeTo.commit();
+        });
+        MessageWriter.send(encoderSocket, plan.toString());
+        return fileInfo.storeAcks.quorum;
     }
-}
-
-
-
-
-
-
-
-
-
 
+    /*
+     * 分段上传：每一段选择 R 个 Dstore，相邻的段从文件最少的结点开始轮流放置，使各段可以并行上传到不同的 Dstore。
+     * 回复 STORE_PARTS_TO 段数 R 段0的端口... 段1的端口...，客户端向每个 Dstore 发送 STORE 文件名@段编号 段大小。
+     * 全部段的全部副本确认后，文件才变为 STORE_COMPLETE（原子提交）；超时则删除元数据，并通知 Dstore 删除已上传的段。
+     */
+    public static CompletableFuture<Void> storeMultipart(Socket client, String file, long size, long partSize, String traceId) {
+        var start = System.nanoTime();
+        var complete = Tracing.phase(traceId, "STORE_MULTIPART", "complete", file, 0);
+        if (!validFileName(file)) {
+            MessageWriter.send(client, Protocol.ERROR_INVALID_FILE_NAME_TOKEN);
+            return CompletableFuture.completedFuture(null);
+        }
+        // 在创建文件记录之前检查：段大小为 0 时计算段数会抛出异常，留下永远不会超时删除的 STORE_IN_PROGRESS 记录
+        if (!Multipart.validParts(size, partSize, maxParts)) {
+            MessageWriter.send(client, Protocol.ERROR_INVALID_PART_SIZE_TOKEN);
+            return CompletableFuture.completedFuture(null);
+        }
+        var available = availableDstores();
+        if (available.size() < replicaNumber) {
+            MessageWriter.send(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return CompletableFuture.completedFuture(null);
+        }
+        if (fileInfoMap.containsKey(file) && fileInfoMap.get(file).status != null) {
+            MessageWriter.send(client, Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+            return CompletableFuture.completedFuture(null);
+        }
 
+        var fileInfo = new FileInfo(size);
+        fileInfo.traceId = traceId;
+        fileInfo.partSize = partSize;
+        fileInfoMap.put(file, fileInfo);
+
+        // 各段轮流放在使用字节数最少、至少还能放下一段的 Dstore 上
+        available.removeIf(dstorePort -> {
+            var load = dstoreLoads.get(dstorePort);
+            return load != null && !load.hasRoom(partSize, minFreeBytes);
+        });
+        available.sort(Comparator.comparingLong(dstorePort -> Placement.usedBytes(dstorePort, dstoreLoads)));
+        if (available.size() < replicaNumber) {
+            fileInfoMap.remove(file, fileInfo);
+            Metrics.counter("store_rejected_capacity").increment();
+            MessageWriter.send(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return CompletableFuture.completedFuture(null);
+        }
+        var parts = fileInfo.parts();
+        var message = new StringBuilder(Protocol.STORE_PARTS_TO_TOKEN);
+        message.append(" ").append(parts).append(" ").append(replicaNumber);
+        for (int i = 0; i < parts; i++) {
+            for (int j = 0; j < replicaNumber; j++) {
+                message.append(" ").append(available.get((i * replicaNumber + j) % available.size()));
+            }
+        }
 
+        // 每一段给一个 timeout 的时间
+        fileInfo.storeAcks = new PendingAcks(parts * replicaNumber).withTimeout(timerWheel, (long) timeout * parts);
+        completeStore(client, file, fileInfo, start, complete);
+        fileInfo.storeAcks.future.whenComplete((ignored, e) -> {
+            if (e == null) return;
+            // 删除已经上传的段
+            for (var dstorePort : fileInfo.dstoresSavingFiles) {
+                replicaIndex.remove(dstorePort, file);
+                var socket = dstoreMap.get(dstorePort);
+                if (socket != null) MessageWriter.send(socket, Protocol.REMOVE_TOKEN + " " + file);
+            }
+        });
+        MessageWriter.send(client, message.toString());
+        return fileInfo.storeAcks.future;
+    }
 
+    // 分段上传的一段保存完成：记录这一段的位置
+    private static void partStored(String partName, int dstorePort) {
+        var file = Multipart.fileOfPart(partName);
+        var fileInfo = fileInfoMap.get(file);
+        if (fileInfo == null || !fileInfo.isMultipart()) return;
+        fileInfo.partLocations.computeIfAbsent(Multipart.indexOfPart(partName), k -> new CopyOnWriteArraySet<>()).add(dstorePort);
+        addReplica(file, fileInfo, dstorePort);
+        if (fileInfo.status == FileStatus.STORE_IN_PROGRESS) fileInfo.storeAcks.ack(List.of(partName, dstorePort));
+    }
 
+    // 为分段上传文件的每一段选择一个副本，任意一段没有可用的副本时返回 null
+    private static List<Integer> selectPartReplicas(FileInfo fileInfo) {
+        var replicas = new ArrayList<Integer>();
+        for (int i = 0; i < fileInfo.parts(); i++) {
+            var candidates = new ArrayList<Integer>();
+            for (var dstorePort : fileInfo.partLocations.getOrDefault(i, new CopyOnWriteArraySet<>())) {
+                if (!suspectedDstores.contains(dstorePort)) candidates.add(dstorePort);
+            }
+            var dstorePort = Placement.selectReplicaForLoad(candidates, dstoreLoads, loadPolicy);
+            if (dstorePort == null) return null;
+            dstoreLoads.computeIfAbsent(dstorePort, k -> new DstoreLoad()).assignedLoads.incrementAndGet();
+            replicas.add(dstorePort);
+        }
+        return replicas;
+    }
 
+    /*
+     * LOAD_PART 文件名 段编号：回复 LOAD_FROM 端口 段大小，客户端向该 Dstore 发送 LOAD_DATA 文件名@段编号
+     */
+    private static void loadPart(Socket client, String file, int index) {
+        var fileInfo = fileInfoMap.get(file);
+        if (fileInfo == null || fileInfo.status != FileStatus.STORE_COMPLETE || !fileInfo.isMultipart()
+                || index < 0 || index >= fileInfo.parts()) {
+            MessageWriter.send(client, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+            return;
+        }
+        var candidates = new ArrayList<Integer>();
+        for (var dstorePort : fileInfo.partLocations.getOrDefault(index, new CopyOnWriteArraySet<>())) {
+            if (!suspectedDstores.contains(dstorePort)) candidates.add(dstorePort);
+        }
+        var dstorePort = Placement.selectReplicaForLoad(candidates, dstoreLoads, loadPolicy);
+        if (dstorePort == null) {
+            MessageWriter.send(client, Protocol.ERROR_LOAD_TOKEN);
+            return;
+        }
+        dstoreLoads.computeIfAbsent(dstorePort, k -> new DstoreLoad()).assignedLoads.incrementAndGet();
+        MessageWriter.send(client, Protocol.LOAD_FROM_TOKEN + " " + dstorePort + " " + Multipart.partSize(fileInfo.size, fileInfo.partSize, index));
+    }
 
+    // 存储确认达到法定数量后回复客户端；超时则删除文件的元数据（客户端自行超时）
+    private static void completeStore(Socket client, String fileName, FileInfo fileInfo, long start, Tracing.ControllerPhase complete) {
+        fileInfo.storeAcks.quorum.whenComplete((ignored, e) -> {
+            complete.phase = e == null ? "complete" : "timeout";
+            complete.commit();
+            if (e == null) {
+                // 如果所有 Dstore 成功存储文件，更新文件状态为 STORE_COMPLETE
+                fileInfo.status = FileStatus.STORE_COMPLETE;
+                // 发送存储完成的消息给客户端
+                MessageWriter.send(client, Protocol.STORE_COMPLETE_TOKEN);
+                Metrics.histogram("store").recordSince(start);
+            } else {
+                // 如果存储失败（超时），从 fileInfoMap 中移除该文件的元数据
+                fileInfo.status = null;
+                fileInfoMap.remove(fileName, fileInfo);
+                Metrics.counter("store_timeouts").increment();
+            }
+        });
+    }
 
+    /*
+     * 处理一个 REMOVE 请求：向保存该文件的 Dstore 发送 REMOVE 后立即返回，
+     * 所有 Dstore 确认后回复 REMOVE_COMPLETE，超时则直接删除文件的元数据。调用方持有该文件的锁。
+     */
+    public static CompletableFuture<Void> removeFile(Socket client, String fileName, String traceId) {
+        var start = System.nanoTime();
+        var complete = Tracing.phase(traceId, "REMOVE", "complete", fileName, 0);
+        var fileInfo = fileInfoMap.get(fileName);
+
+        // 检查当前连接的 Dstore 数量是否小于副本数，小于则不能删除
+        if (dstoreMap.size() < replicaNumber) {
+            MessageWriter.send(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return CompletableFuture.completedFuture(null);
+        }
+        // 文件不存在、正在存储或正在删除
+        if (fileInfo == null || fileInfo.status != FileStatus.STORE_COMPLETE) {
+            MessageWriter.send(client, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+            return CompletableFuture.completedFuture(null);
+        }
 
+        // 更新文件状态为正在删除中（REMOVE_IN_PROGRESS），防止其他操作干扰
+        fileInfo.status = FileStatus.REMOVE_IN_PROGRESS;
+        fileInfo.traceId = traceId;
 
+        // 被怀疑的 Dstore 不参与删除，它们上面残留的副本会在再平衡时作为未知文件删除
+        var dstores = new ArrayList<Integer>();
+        for (var dstorePort : fileInfo.dstoresSavingFiles) {
+            if (!suspectedDstores.contains(dstorePort)) dstores.add(dstorePort);
+        }
 
+        // 等待所有 Dstore 完成删除操作，无论成功还是超时都删除文件的元数据
+        fileInfo.removeAcks = new PendingAcks(dstores.size()).withTimeout(timerWheel, timeout);
+        fileInfo.removeAckPhases = Tracing.AckPhases.begin(traceId, "REMOVE", fileName, dstores);
+        fileInfo.removeAcks.future.whenComplete((ignored, e) -> {
+            complete.phase = e == null ? "complete" : "timeout";
+            complete.commit();
+            fileInfoMap.remove(fileName, fileInfo);
+            for (var dstorePort : fileInfo.dstoresSavingFiles) {
+                replicaIndex.remove(dstorePort, fileName);
+            }
+            if (e == null) {
+                MessageWriter.send(client, Protocol.REMOVE_COMPLETE_TOKEN);
+                Metrics.histogram("remove").recordSince(start);
+            } else {
+                Metrics.counter("remove_timeouts").increment();
+            }
+        });
 
+        // 向保存该文件的所有 Dstore 发送删除命令
+        // 已经断开的 Dstore 收不到命令，等待它的确认超时后按删除失败处理
+        for (var dstorePort : dstores) {
+            var socket = dstoreMap.get(dstorePort);
+            if (socket != null) MessageWriter.send(socket, Protocol.REMOVE_TOKEN + " " + fileName + Tracing.suffix(traceId));
+        }
+        return fileInfo.removeAcks.future;
+    }
+}
@@ -0,0 +1,34 @@
+package org.example;
+
+/*
+ * 指数衰减的事件计数器，用于估计最近的事件速率（例如每个文件每秒的 LOAD 次数）。
+ * 计数值每经过 window 时间衰减为原来的 1/e；事件速率稳定为 r 时，计数值约为 r * window，
+ * 因此 rate() = 计数值 / window。只保存一个计数值和上次更新的时间，不需要记录每个事件。
+ */
+public class DecayingRate {
+    private final double windowNanos;
+    private double value;
+    private long lastUpdate = System.nanoTime();
+
+    public DecayingRate(long windowMillis) {
+        this.windowNanos = windowMillis * 1_000_000.0;
+    }
+
+    // 记录一次事件
+    public synchronized void record() {
+        decay();
+        value += 1;
+    }
+
+    // 最近的事件速率（次/秒）
+    public synchronized double rate() {
+        decay();
+        return value * 1_000_000_000.0 / windowNanos;
+    }
+
+    private void decay() {
+        var now = System.nanoTime();
+        value *= Math.exp(-(now - lastUpdate) / windowNanos);
+        lastUpdate = now;
+    }
+}
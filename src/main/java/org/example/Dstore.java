@@ -2,33 +2,90 @@ package org.example;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class Dstore {
     // 本节点的端口号
     private static int port;
     // 控制器端口号
     private static int cport;
+    // 各个分区的控制器端口，按分区编号排列（fds.controllers=端口0,端口1,...），没有设置时只有命令行中的一个控制器
+    private static int[] controllerPorts;
     // 超时时间
     private static int timeout;
     // 对应的文件夹、收到的文件都在这个文件夹中。
     private static String fileFolder;
     // 对应的文件夹类、封装上述文件夹路径
     private static File dir;
-    // 拥有的文件列表，元素为文件名
-    private static ArrayList<String> filesInDstore;
-    // 控制器节点建立的Socket连接，用于接收来自控制器的指令和发送状态信息
-    private static Socket controllerConnection;
+    // 拥有的文件列表，元素为文件名（会被多个连接线程同时修改），带有版本号，LIST 时只返回控制器还不知道的变化
+    private static Inventory filesInDstore = new Inventory(Integer.getInteger("fds.dstore.inventoryLog", 1 << 16));
+    // LIST 回复中每一行最多包含的文件数量
+    private static int listChunkSize = Integer.getInteger("fds.dstore.listChunkSize", 1000);
+    // 与各个分区的控制器建立的Socket连接（下标为分区编号），用于接收来自控制器的指令和发送状态信息
+    private static Socket[] controllerConnections;
     // 用来存储文件名和其大小的映射关系，方便快速查找文件大小，键为文件名、值为文件大小
-    private static ConcurrentHashMap<String, Integer> fileSizes = new ConcurrentHashMap<>();
-    // 用于控制文件发送操作的同步，确保在发送文件之前接收到了来自目标客户端节点的确认
-    private static CountDownLatch waitForSendFileToDstore;
+    private static ConcurrentHashMap<String, Long> fileSizes = new ConcurrentHashMap<>();
+    // 分段上传的段和纠删码分片按所属的文件名索引：REMOVE 和 LOAD_DATA 不需要遍历整个清单查找
+    private static ConcurrentHashMap<String, Set<String>> piecesOfFile = new ConcurrentHashMap<>();
+    // 保存的所有文件的大小之和
+    private static AtomicLong storedBytes = new AtomicLong();
+    // 纠删码：本结点负责编码的文件及其分片放置计划（EC_STORE 命令），键为文件名
+    private static ConcurrentHashMap<String, String[]> ecStorePlans = new ConcurrentHashMap<>();
+    // 纠删码：还原文件所需的分片位置（EC_LOAD 命令），键为文件名；每个 LOAD 对应一条，被一次 LOAD_DATA 取走
+    private static ConcurrentHashMap<String, LinkedBlockingQueue<EcLoad>> ecLoadLocations = new ConcurrentHashMap<>();
+    // 当前打开的客户端和其他 Dstore 的连接数量
+    private static AtomicInteger activeConnections = new AtomicInteger();
+    // 向控制器发送心跳的间隔（毫秒）
+    private static long heartbeatInterval = Long.getLong("fds.heartbeat.interval", 100);
+    // 同时进行的客户端传输（STORE、LOAD_DATA）上限，超过时 STORE 回复 BUSY，LOAD_DATA 直接关闭连接
+    private static int maxTransfers = Integer.getInteger("fds.dstore.maxTransfers", 64);
+    // 同时打开的连接上限，超过时读出第一条命令后按命令拒绝并关闭连接
+    private static int maxConnections = Integer.getInteger("fds.dstore.maxConnections", 1024);
+    // 拒绝超出上限的连接时，等待第一条命令的时间（毫秒）
+    private static int rejectReadTimeout = Integer.getInteger("fds.dstore.rejectReadTimeout", 1000);
+    // 等待 accept 的连接队列长度
+    private static int acceptBacklog = Integer.getInteger("fds.dstore.backlog", 128);
+    // 建议客户端重试的等待时间（毫秒），附在 BUSY 回复中
+    private static int busyRetryAfter = Integer.getInteger("fds.dstore.busyRetryAfter", 100);
+    // 启动时等待各个分区的控制器开始监听的最长时间（毫秒），超过后退出
+    private static int controllerWait = Integer.getInteger("fds.dstore.controllerWait", 10000);
+    // 客户端传输的许可
+    private static Semaphore transfers;
+    // 再平衡传输（发送和接收）的限速：本结点上限、Controller 分配的集群份额、有客户端传输时的上限，取其中最小的非零值
+    private static long nodeRebalanceRate = Long.getLong("fds.rebalance.bytesPerSec", 0);
+    // 每个分区的 Controller 分配的份额，按分区编号分开保存，不互相覆盖；所有分区的再平衡共用一个限速器，
+    // 因此与其他上限一样取最小的非零值（通过 Router 设置时各分区的总带宽相同）
+    private static AtomicLongArray clusterRebalanceShares;
+    private static long foregroundRebalanceRate = Long.getLong("fds.rebalance.foregroundBytesPerSec", 4 << 20);
+    private static TokenBucket rebalanceLimiter = new TokenBucket(0);
+    // 小文件打包存储：不超过该大小（字节）的文件追加写入段文件，0 表示关闭，每个文件单独保存；
+    // 没有设置时，group 持久化模式默认打包 1 MB 以下的文件（见 main）
+    private static long packThreshold;
+    private static SegmentStore segments;
+    // 分层存储：设置了冷层文件夹 fds.dstore.coldDir 时，超过 fds.dstore.demoteAfter 毫秒没有被访问的文件降级到冷层
+    private static TieredStorage tiers;
+    // 确认之前的持久化方式（fds.dstore.durability）：none 不 fsync，file 每个文件 fsync，group 组提交（同一个段只 fsync 一次）
+    private static Durability durability;
+    // 每个连接一个虚拟线程，阻塞读写不占用平台线程
+    private static ExecutorService connectionExecutor = Executors.newVirtualThreadPerTaskExecutor();
 
     public static void main(String[] args) {
         if (args.length != 4) {
@@ -36,29 +93,79 @@ public class Dstore {
         }
         port = Integer.parseInt(args[0]);
         cport = Integer.parseInt(args[1]);
+        var controllers = System.getProperty("fds.controllers");
+        controllerPorts = controllers == null ? new int[]{cport} : Partitioning.parsePorts(controllers);
+        clusterRebalanceShares = new AtomicLongArray(controllerPorts.length);
+        controllerConnections = connectToControllers();
         timeout = Integer.parseInt(args[2]);
         fileFolder = args[3];
-        filesInDstore = new ArrayList<>();
         dir = new File(fileFolder);
+        transfers = new Semaphore(maxTransfers);
+        // 连接空闲（收不到数据）超过该时间后关闭，默认与 timeout 相同
+        var idleTimeout = Integer.getInteger("fds.dstore.idleTimeout", timeout);
+        // 接收其他 Dstore 的再平衡、分片传输时的读取超时：发送方限速时会在两块数据之间等待令牌，
+        // 不能按空闲超时关闭；默认与 Controller 等待再平衡副本的时间（timeout 的 10 倍）相同
+        var peerTimeout = Integer.getInteger("fds.dstore.peerTimeout", Math.max(idleTimeout, timeout * 10));
 
         // 先清空文件夹
         cleanDirectory(dir);
+        durability = new Durability(Durability.parseMode(System.getProperty("fds.dstore.durability", "none")),
+                Long.getLong("fds.dstore.groupCommitMicros", 1000), Integer.getInteger("fds.dstore.groupCommitMaxBatch", 1024));
+        // 单独保存的文件只能各自 fsync，组提交只有在小文件共享段文件时才能把并发写入合并成一次 fsync
+        packThreshold = Long.getLong("fds.dstore.packThreshold", durability.mode() == Durability.Mode.GROUP ? 1 << 20 : 0);
+        if (packThreshold > 0) {
+            segments = new SegmentStore(dir, Long.getLong("fds.dstore.segmentSize", 64 << 20),
+                    Double.parseDouble(System.getProperty("fds.dstore.compactRatio", "0.5")));
+            Thread.ofPlatform().daemon().name("compaction").start(Dstore::compactSegments);
+        }
+        var coldDir = System.getProperty("fds.dstore.coldDir");
+        if (coldDir != null) {
+            cleanDirectory(new File(coldDir));
+            tiers = new TieredStorage(dir, new File(coldDir), Long.getLong("fds.dstore.demoteAfter", 600_000),
+                    Boolean.parseBoolean(System.getProperty("fds.dstore.coldCompress", "true")), durability);
+            Thread.ofPlatform().daemon().name("tiering").start(Dstore::demoteIdleFiles);
+        }
+
+        // 导出指标
+        Metrics.start("dstore");
+        Metrics.gauge("port", () -> port);
+        Metrics.gauge("files", () -> filesInDstore.size());
+        Metrics.gauge("active_connections", activeConnections::get);
+        Metrics.gauge("active_transfers", () -> maxTransfers - transfers.availablePermits());
+        Metrics.gauge("rebalance_rate_limit", Dstore::rebalanceRate);
+        if (segments != null) {
+            Metrics.gauge("packed_files", segments::files);
+            Metrics.gauge("segments", segments::segments);
+            Metrics.gauge("segment_garbage_bytes", segments::garbageBytes);
+        }
+        Metrics.gauge("hot_bytes", Dstore::hotBytes);
+        if (tiers != null) {
+            Metrics.gauge("cold_files", tiers::coldFiles);
+            Metrics.gauge("cold_bytes", tiers::coldBytes);
+            Metrics.gauge("cold_disk_bytes", tiers::coldDiskBytes);
+        }
 
         // 首先连接到controller
-        new Thread(Dstore::ConnectionToController).start();
+        Thread.ofVirtual().name("controller connection").start(Dstore::ConnectionToController);
 
 
         // 不断监听controller的信息
         try {
             // 新建一个服务端套接字
-            ServerSocket serverSocket = new ServerSocket(port);
+            ServerSocket serverSocket = new ServerSocket(port, acceptBacklog);
             while (true) {
                 try {
                     // 从服务端获取连接信息
                     Socket clientSocket = serverSocket.accept();
-                    clientSocket.setSoTimeout(timeout);
-                    // 获取到连接后，新建一个线程：
-                    new Thread(() -> {
+                    clientSocket.setSoTimeout(idleTimeout);
+                    // 连接数超过上限：在虚拟线程中读出第一条命令再拒绝，不阻塞 accept
+                    if (activeConnections.incrementAndGet() > maxConnections) {
+                        activeConnections.decrementAndGet();
+                        Thread.ofVirtual().start(() -> rejectConnection(clientSocket));
+                        continue;
+                    }
+                    // 获取到连接后，交给虚拟线程处理：
+                    connectionExecutor.execute(() -> {
                         try {
                             // 获取输入进来的命令流
                             BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
@@ -68,27 +175,73 @@ public class Dstore {
                                 var command = words[0];
                                 // 解析命令
                                 switch (command) {
-                                    // 如果为存储、平衡命令，
-                                    case Protocol.STORE_TOKEN, Protocol.REBALANCE_STORE_TOKEN -> {
-                                        // 接收文件
-                                        receiveFile(clientSocket, words, dir, controllerConnection);
+                                    // 客户端存储，受传输数量限制
+                                    case Protocol.STORE_TOKEN -> {
+                                        if (!transfers.tryAcquire()) {
+                                            reject(clientSocket, command);
+                                            break;
+                                        }
+                                        try {
+                                            receiveFile(clientSocket, words, dir, controllerFor(words[1]));
+                                        } finally {
+                                            transfers.release();
+                                        }
+                                    }
+                                    // 再平衡、分片存储命令来自其他 Dstore，不受客户端传输数量限制
+                                    case Protocol.REBALANCE_STORE_TOKEN, Protocol.STORE_FRAGMENT_TOKEN -> {
+                                        // 接收文件，期间使用 peerTimeout
+                                        clientSocket.setSoTimeout(peerTimeout);
+                                        receiveFile(clientSocket, words, dir, controllerFor(words[1]));
+                                        clientSocket.setSoTimeout(idleTimeout);
+                                    }
+                                    // 再平衡：一次接收多个打包保存的小文件
+                                    case Protocol.REBALANCE_STORE_BATCH_TOKEN -> {
+                                        clientSocket.setSoTimeout(peerTimeout);
+                                        receiveRebalanceBatch(clientSocket, words);
+                                        clientSocket.setSoTimeout(idleTimeout);
                                     }
                                     // 如果为加载数据命令
                                     case Protocol.LOAD_DATA_TOKEN -> {
-                                        // 如果没有该文件、则：
-                                        if (!filesInDstore.contains(words[1])) {
-                                            clientSocket.close();
+                                        if (!transfers.tryAcquire()) {
+                                            reject(clientSocket, command);
+                                            break;
+                                        }
+                                        try {
+                                            // 纠删码文件：本结点只保存了分片，需要收集 k 个分片还原后再发送
+                                            if (!filesInDstore.contains(words[1]) && localFragmentOf(words[1]) != null) {
+                                                sendErasureCodedFile(clientSocket, words[1]);
+                                            } else if (!filesInDstore.contains(words[1])) {
+                                                // 如果没有该文件，直接关闭连接，客户端读不到数据会改为 RELOAD
+                                                clientSocket.close();
+                                            } else {
+                                                // 冷层的文件：这次从冷层读取，同时在后台提升回热层
+                                                if (tiers != null && tiers.touch(words[1])) {
+                                                    Thread.ofVirtual().start(() -> promote(words[1]));
+                                                }
+                                                // 发送文件
+                                                sendFile(clientSocket, dir, words[1], Tracing.traceIdOrNull(words, 2));
+                                            }
+                                        } finally {
+                                            transfers.release();
                                         }
-                                        // 发送文件
-                                        sendFile(clientSocket, words[1]);
                                     }
                                     default -> System.out.println("Malformed message received: " + line);
                                 }
                             }
+                        } catch (SocketTimeoutException e) {
+                            // 连接空闲超时
+                            Metrics.counter("idle_timeouts").increment();
                         } catch (Exception e) {
-                            e.printStackTrace();
+                            if (!clientSocket.isClosed()) e.printStackTrace();
+                        } finally {
+                            activeConnections.decrementAndGet();
+                            try {
+                                clientSocket.close();
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
                         }
-                    }).start();
+                    });
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -98,132 +251,737 @@ public class Dstore {
         }
     }
 
-    private static void ConnectionToController() {
-        try {
-            // 创建一个socket，并向服务器发送join命令
-            controllerConnection = new Socket(InetAddress.getLocalHost(), cport);
-            Util.sendMessage(controllerConnection, Protocol.JOIN_TOKEN + " " + port);
-
-            // 处理返回的信息
-            try {
-                while (true) {
+    /*
+     * 启动时先连接所有分区的控制器，控制器还没有开始监听时在 controllerWait 内重试：
+     * 仍然有连不上的就关闭已经建立的连接并退出，而不是带着缺少的分区运行（该分区文件的确认无处可发）
+     */
+    private static Socket[] connectToControllers() {
+        var connections = new Socket[controllerPorts.length];
+        var deadline = System.currentTimeMillis() + controllerWait;
+        for (int partition = 0; partition < controllerPorts.length; partition++) {
+            while (connections[partition] == null) {
+                try {
+                    connections[partition] = new Socket(InetAddress.getLocalHost(), controllerPorts[partition]);
+                } catch (IOException e) {
+                    if (System.currentTimeMillis() >= deadline) {
+                        for (int i = 0; i < partition; i++) {
+                            try {
+                                connections[i].close();
+                            } catch (IOException ignored) {
+                            }
+                        }
+                        throw new RuntimeException("cannot connect to controller " + controllerPorts[partition], e);
+                    }
                     try {
-                        // 获取controller返回的数据
-                        var in = new BufferedReader(new InputStreamReader(controllerConnection.getInputStream()));
-                        String line;
-                        // 分析返回的命令
-                        while ((line = in.readLine()) != null) {
-                            var words = line.split(" ");
-                            var command = words[0];
-                            // 解析得到的命令
-                            switch (command) {
-                                // 获取文件列表、返回
-                                case Protocol.LIST_TOKEN -> listFilesInDstore(controllerConnection);
-                                // 删除文件
-                                case Protocol.REMOVE_TOKEN -> removeFileInDstore(words[1], controllerConnection);
-                                // 再平衡
-                                case Protocol.REBALANCE_TOKEN -> {
-                                    // files_to_send ：要发送的文件列表
-                                    FilesToSendAndToRemove t = parseSendFilesAndRemoveFiles(line);
-                                    // 获取要发送的文件列表，列表的值为文件名和对应的 dstore 列表
-                                    List<FileToSend> filesToSend = t.filesToSendList;
-
-                                    for (var fileToSend : filesToSend) {
-                                        Integer fileSize = fileSizes.get(fileToSend.fileName);
-                                        // 遍历要发送的 dstore 列表
-                                        for (var dstorePort : fileToSend.dstores) {
-                                            // 新建一个 socket，用于向另一个 dstore 发送文件
-                                            var dstoreSocket = new Socket(InetAddress.getLocalHost(), Integer.parseInt(dstorePort));
-                                            // 发送 Rebalance Store 命令和文件信息
-                                            Util.sendMessage(dstoreSocket, Protocol.REBALANCE_STORE_TOKEN + " " + fileToSend.fileName + " " + fileSize);
-                                            // 创建一个 CountDownLatch 用于同步等待文件发送的确认
-                                            waitForSendFileToDstore = new CountDownLatch(1);
-                                            // 创建并启动一个虚拟线程，监听来自 dstore 的 ACK 确认消息
-                                            Thread.ofVirtual().start(() -> sendFileToDstore(dstoreSocket));
-                                            // 等待 ACK，如果在超时前收到 ACK，发送文件
-                                            if (waitForSendFileToDstore.await(timeout, TimeUnit.MILLISECONDS)) {
-                                                sendFile(dstoreSocket, fileToSend.fileName);
-                                            }
-                                            // 关闭 socket
-                                            dstoreSocket.close();
-                                        }
-                                    }
+                        Thread.sleep(200);
+                    } catch (InterruptedException interrupted) {
+                        throw new RuntimeException(interrupted);
+                    }
+                }
+            }
+        }
+        return connections;
+    }
 
-                                    var filesToRemove = t.filesToRemoveList;
-                                    for (var fileToRemove : filesToRemove) {
-                                        if (filesInDstore.contains(fileToRemove)) {
-                                            var file = new File(dir, fileToRemove);
-                                            if (file.delete()) {
-                                                filesInDstore.remove(fileToRemove);
-                                            }
-                                        }
-                                    }
+    // 向所有分区的控制器发送 join 命令，每个连接由一个线程处理来自该控制器的命令
+    private static void ConnectionToController() {
+        for (int partition = 0; partition < controllerPorts.length; partition++) {
+            try {
+                var controllerConnection = controllerConnections[partition];
+                MessageWriter.send(controllerConnection, Protocol.JOIN_TOKEN + " " + port + " " + capacity());
+                // 定期发送心跳，控制器据此尽快发现卡住或网络不通的结点
+                Thread.ofPlatform().daemon().name("heartbeat-" + partition).start(() -> sendHeartbeats(controllerConnection));
+                var p = partition;
+                Thread.ofVirtual().name("controller-" + partition).start(() -> handleController(controllerConnection, p));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-                                    Util.sendMessage(controllerConnection, Protocol.REMOVE_COMPLETE_TOKEN);
-                                }
-                                default -> System.out.println("Malformed Message");
+    // 处理一个控制器发来的命令，回复发回同一个控制器
+    private static void handleController(Socket controllerConnection, int partition) {
+        // 处理返回的信息
+        try {
+            while (true) {
+                try {
+                    // 获取controller返回的数据
+                    var in = new BufferedReader(new InputStreamReader(controllerConnection.getInputStream()));
+                    String line;
+                    // 分析返回的命令
+                    while ((line = in.readLine()) != null) {
+                        var words = line.split(" ");
+                        var command = words[0];
+                        // 解析得到的命令
+                        switch (command) {
+                            // 获取文件列表、返回
+                            case Protocol.LIST_TOKEN -> listFilesInDstore(controllerConnection, partition, words);
+                            // 删除文件
+                            case Protocol.REMOVE_TOKEN -> {
+                                var transfer = Tracing.transfer(Tracing.traceIdOrNull(words, 2), words[0], words[1], 0, 0);
+                                removeFileInDstore(words[1], controllerConnection);
+                                transfer.commit();
+                            }
+                            // 纠删码：记录分片放置计划，等待客户端上传完整文件后编码
+                            // 记录之后确认，控制器收到确认后才让客户端上传，保证客户端的 STORE 到达时计划已经存在
+                            case Protocol.EC_STORE_TOKEN -> {
+                                ecStorePlans.put(words[1], words);
+                                MessageWriter.send(controllerConnection, Protocol.EC_STORE_ACK_TOKEN + " " + words[1]);
+                            }
+                            // 纠删码：记录分片位置，等待客户端来加载文件
+                            case Protocol.EC_LOAD_TOKEN -> ecLoadLocations.computeIfAbsent(words[1], k -> new LinkedBlockingQueue<>())
+                                    .offer(new EcLoad(words));
+                            // 纠删码：重建丢失的分片
+                            case Protocol.EC_REPAIR_TOKEN -> Thread.ofVirtual().start(() -> repairFragment(words));
+                            // Controller 分配的再平衡带宽份额
+                            case Protocol.REBALANCE_RATE_TOKEN -> clusterRebalanceShares.set(partition, Long.parseLong(words[1]));
+                            // 再平衡：传输可能持续较长时间（并且受限速），在单独的虚拟线程中执行，不阻塞来自控制器的其他命令
+                            case Protocol.REBALANCE_TOKEN -> {
+                                var plan = parseSendFilesAndRemoveFiles(line);
+                                Thread.ofVirtual().start(() -> {
+                                    rebalance(plan, null);
+                                    MessageWriter.send(controllerConnection, Protocol.REBALANCE_COMPLETE_TOKEN);
+                                });
                             }
+                            // 分块的再平衡：收到一块就开始传输，这一块完成后回复 REBALANCE_CHUNK_ACK，控制器再发送后面的块
+                            case Protocol.REBALANCE_CHUNK_TOKEN -> {
+                                var plan = parseSendFilesAndRemoveFiles(words, 3);
+                                var traceId = Tracing.rebalanceTraceId(controllerPorts[partition], Long.parseLong(words[1]));
+                                Thread.ofVirtual().start(() -> {
+                                    rebalance(plan, traceId);
+                                    MessageWriter.send(controllerConnection, Protocol.REBALANCE_CHUNK_ACK_TOKEN + " " + words[1] + " " + words[2]);
+                                });
+                            }
+                            default -> System.out.println("Malformed Message");
                         }
-                    } catch (Exception e) {
-                        e.printStackTrace();
                     }
+                } catch (Exception e) {
+                    e.printStackTrace();
                 }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * 超过连接或传输上限时拒绝 command，然后关闭连接：
+     *   按行应答的命令（STORE 等）回复 BUSY 和建议的重试时间
+     *   LOAD_DATA 的回复是原始的文件数据，不能在其中插入文本，只关闭连接：客户端读不到数据，会改为 RELOAD
+     */
+    private static void reject(Socket clientSocket, String command) {
+        Metrics.counter("busy_rejections").increment();
+        if (!command.equals(Protocol.LOAD_DATA_TOKEN)) {
+            MessageWriter.send(clientSocket, Protocol.BUSY_TOKEN + " " + busyRetryAfter);
+        }
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // 连接数超过上限：最多等待 rejectReadTimeout 读出第一条命令，再按命令拒绝；读不到命令时直接关闭
+    private static void rejectConnection(Socket clientSocket) {
+        var command = Protocol.LOAD_DATA_TOKEN;
+        try {
+            clientSocket.setSoTimeout(rejectReadTimeout);
+            var line = new BufferedReader(new InputStreamReader(clientSocket.getInputStream())).readLine();
+            if (line != null) command = line.split(" ")[0];
+        } catch (IOException e) {
+            // 超时或连接断开，按不能插入文本的情况处理
+        }
+        reject(clientSocket, command);
+    }
+
+    /*
+     * 当前的再平衡限速（字节/秒，0 表示不限速）：有客户端正在 STORE 或 LOAD_DATA 时进一步降低，让前台传输优先
+     */
+    private static long rebalanceRate() {
+        var limits = new long[clusterRebalanceShares.length() + 2];
+        limits[0] = nodeRebalanceRate;
+        limits[1] = transfers.availablePermits() < maxTransfers ? foregroundRebalanceRate : 0;
+        for (int partition = 0; partition < clusterRebalanceShares.length(); partition++) {
+            limits[partition + 2] = clusterRebalanceShares.get(partition);
+        }
+        long rate = 0;
+        for (var limit : limits) {
+            if (limit > 0 && (rate == 0 || limit < rate)) rate = limit;
+        }
+        return rate;
+    }
+
+    // 再平衡传输了 bytes 个字节，超过限速时阻塞
+    private static void throttleRebalance(int bytes) throws InterruptedException {
+        rebalanceLimiter.setRate(rebalanceRate());
+        rebalanceLimiter.acquire(bytes);
+        Metrics.counter("rebalance_bytes").add(bytes);
+    }
+
+    // 再平衡时把文件分块发送给另一个 Dstore，每一块都经过限速
+    private static void sendRebalanceFile(Socket socket, String fileName) {
+        try (var in = openLocal(dir, fileName)) {
+            var out = socket.getOutputStream();
+            var buffer = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                throttleRebalance(bytesRead);
+                out.write(buffer, 0, bytesRead);
+                Metrics.counter("bytes_out").add(bytesRead);
+            }
+            out.flush();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // 是否打包保存该大小的文件
+    private static boolean packs(long size) {
+        return segments != null && size <= packThreshold;
+    }
+
+    // 打开本地保存的文件（打包的小文件、热层或冷层的单独文件）用于读取
+    private static InputStream openLocal(File dir, String fileName) throws IOException {
+        if (segments != null) {
+            var data = segments.get(fileName);
+            if (data != null) return new ByteArrayInputStream(data);
+        }
+        if (tiers != null) return tiers.open(fileName);
+        return new FileInputStream(new File(dir, fileName));
+    }
+
+    // 删除本地保存的文件（打包的小文件只留下墓碑，由压缩回收空间）
+    private static boolean deleteLocal(String fileName) {
+        if (segments != null && segments.remove(fileName)) return true;
+        if (tiers != null) return tiers.delete(fileName);
+        return new File(dir, fileName).delete();
+    }
+
+    // 记录保存了一个文件
+    private static void recordFile(String fileName, long size) {
+        filesInDstore.add(fileName);
+        var file = fileOfPiece(fileName);
+        if (file != null) {
+            piecesOfFile.compute(file, (k, pieces) -> {
+                if (pieces == null) pieces = ConcurrentHashMap.newKeySet();
+                pieces.add(fileName);
+                return pieces;
+            });
+        }
+        var old = fileSizes.put(fileName, size);
+        storedBytes.addAndGet(size - (old == null ? 0 : old));
+        if (tiers != null) tiers.touch(fileName);
+    }
+
+    // 记录删除了一个文件
+    private static void forgetFile(String fileName) {
+        filesInDstore.remove(fileName);
+        var file = fileOfPiece(fileName);
+        if (file != null) {
+            piecesOfFile.computeIfPresent(file, (k, pieces) -> {
+                pieces.remove(fileName);
+                return pieces.isEmpty() ? null : pieces;
+            });
+        }
+        var old = fileSizes.remove(fileName);
+        if (old != null) storedBytes.addAndGet(-old);
+    }
+
+    // 热层（包括打包的小文件）保存的字节数
+    private static long hotBytes() {
+        return storedBytes.get() - (tiers == null ? 0 : tiers.coldBytes());
+    }
+
+    /*
+     * 定期把空闲的文件降级到冷层。打包的小文件和纠删码分片留在热层：
+     * 前者已经在段文件中，后者在编码、还原时直接按文件读取
+     */
+    private static void demoteIdleFiles() {
+        var interval = Long.getLong("fds.dstore.tierInterval", 10_000);
+        while (true) {
+            try {
+                Thread.sleep(interval);
+                for (var entry : fileSizes.entrySet()) {
+                    var fileName = entry.getKey();
+                    if (ReedSolomon.isFragmentName(fileName) || (segments != null && segments.contains(fileName))
+                            || tiers.isCold(fileName) || !tiers.idle(fileName)) {
+                        continue;
+                    }
+                    var start = System.nanoTime();
+                    if (tiers.demote(fileName, entry.getValue())) {
+                        Metrics.histogram("demote").recordSince(start);
+                        Metrics.counter("demoted_files").increment();
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
             } catch (Exception e) {
                 e.printStackTrace();
             }
-        } catch (Exception e) {
+        }
+    }
+
+    // 把冷层的文件提升回热层
+    private static void promote(String fileName) {
+        try {
+            var start = System.nanoTime();
+            if (tiers.promote(fileName)) {
+                Metrics.histogram("promote").recordSince(start);
+                Metrics.counter("promoted_files").increment();
+            }
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    // 读取dstoreSocket中的输入流，当接收到了 ACK 时 触发同步机制，通知其他线程文件传输已完成或可以继续进行
-    private static void sendFileToDstore(Socket dstoreSocket) {
+    // 定期压缩垃圾较多的段文件
+    private static void compactSegments() {
+        var interval = Long.getLong("fds.dstore.compactInterval", 5000);
+        while (true) {
+            try {
+                Thread.sleep(interval);
+                var start = System.nanoTime();
+                if (segments.compact() > 0) Metrics.histogram("compaction").recordSince(start);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /*
+     * 再平衡：把多个打包保存的小文件通过一个连接发给同一个 Dstore
+     *   REBALANCE_STORE_BATCH 文件数量 文件名1 大小1 文件名2 大小2 ...，收到 ACK 后依次发送所有文件的内容
+     */
+    private static void sendRebalanceBatch(String dstorePort, List<String> fileNames, String traceId) {
+        var header = new StringBuilder();
+        var contents = new ArrayList<byte[]>();
         try {
+            for (var fileName : fileNames) {
+                var data = segments.get(fileName);
+                if (data == null) continue;
+                header.append(" ").append(fileName).append(" ").append(data.length);
+                contents.add(data);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (contents.isEmpty()) return;
+        try (var dstoreSocket = new Socket(InetAddress.getLocalHost(), Integer.parseInt(dstorePort))) {
+            dstoreSocket.setSoTimeout(timeout);
+            MessageWriter.send(dstoreSocket, Protocol.REBALANCE_STORE_BATCH_TOKEN + " " + contents.size() + header + Tracing.suffix(traceId));
             var in = new BufferedReader(new InputStreamReader(dstoreSocket.getInputStream()));
-            String line;
-            while ((line = in.readLine()) != null) {
-                var parts = line.split(" ");
-                if (parts[0].equals(Protocol.ACK_TOKEN)) {
-                    waitForSendFileToDstore.countDown();
-                }
+            if (!Protocol.ACK_TOKEN.equals(in.readLine())) return;
+            var start = System.nanoTime();
+            var out = dstoreSocket.getOutputStream();
+            for (var data : contents) {
+                throttleRebalance(data.length);
+                out.write(data);
+                Metrics.counter("bytes_out").add(data.length);
             }
-        } catch (Exception e) {
+            out.flush();
+            Metrics.histogram("rebalance_send").recordSince(start);
+            Metrics.counter("rebalance_batches").increment();
+        } catch (IOException | InterruptedException e) {
             e.printStackTrace();
         }
     }
 
-    // 返回当前的文件列表到 socket
-    private static void listFilesInDstore(Socket controllerConnection) {
-        var msg = new StringBuilder(Protocol.LIST_TOKEN);
-        for (var file : filesInDstore) {
-            msg.append(" ").append(file);
+    /*
+     * 接收 REBALANCE_STORE_BATCH 中的所有文件，全部保存并持久化后，每个文件向控制器发送一次 REBALANCE_STORE_ACK
+     * （打包的文件大多在同一个段中，只需要持久化一次）
+     */
+    private static void receiveRebalanceBatch(Socket socket, String[] words) throws IOException, InterruptedException {
+        var in = new DataInputStream(socket.getInputStream());
+        MessageWriter.send(socket, Protocol.ACK_TOKEN);
+        int count = Integer.parseInt(words[1]);
+        var traceId = Tracing.traceIdOrNull(words, 2 + 2 * count);
+        var transfer = Tracing.transfer(traceId, words[0], null, 0, 0);
+        var fileNames = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            var fileName = words[2 + 2 * i];
+            var data = new byte[Integer.parseInt(words[3 + 2 * i])];
+            in.readFully(data);
+            throttleRebalance(data.length);
+            Metrics.counter("bytes_in").add(data.length);
+            if (packs(data.length)) {
+                segments.put(fileName, data);
+            } else {
+                Files.write(new File(dir, fileName).toPath(), data);
+            }
+            fileNames.add(fileName);
+            transfer.bytes += data.length;
+        }
+        transfer.commit();
+        syncLocal(fileNames, traceId);
+        for (int i = 0; i < fileNames.size(); i++) {
+            var fileName = fileNames.get(i);
+            recordFile(fileName, Integer.parseInt(words[3 + 2 * i]));
+            MessageWriter.send(controllerFor(fileName), Protocol.REBALANCE_STORE_ACK_TOKEN + " " + fileName);
+        }
+    }
+
+    // 持久化本地保存的文件（打包的小文件持久化所在的段，同一个段只持久化一次）
+    private static void syncLocal(List<String> fileNames, String traceId) throws IOException {
+        if (durability.mode() == Durability.Mode.NONE) return;
+        var transfer = Tracing.transfer(traceId, "SYNC", fileNames.size() == 1 ? fileNames.get(0) : null, 0, 0);
+        var files = new ArrayList<Path>();
+        var channels = new HashSet<FileChannel>();
+        for (var fileName : fileNames) {
+            var channel = segments == null ? null : segments.channelOf(fileName);
+            if (channel == null) {
+                files.add(new File(dir, fileName).toPath());
+            } else {
+                channels.add(channel);
+            }
+        }
+        durability.sync(files, channels, dir.toPath());
+        transfer.commit();
+    }
+
+    // 各层的容量：热层已用字节数 热层剩余空间 冷层已用字节数 冷层剩余空间
+    private static String capacity() {
+        return hotBytes() + " " + dir.getUsableSpace()
+                + " " + (tiers == null ? 0 : tiers.coldDiskBytes()) + " " + (tiers == null ? 0 : tiers.coldFreeBytes());
+    }
+
+    // 定期向控制器发送心跳，附带当前的连接数量和各层的容量，连接关闭后停止
+    private static void sendHeartbeats(Socket controllerConnection) {
+        while (!controllerConnection.isClosed()) {
+            MessageWriter.send(controllerConnection, Protocol.HEARTBEAT_TOKEN + " " + activeConnections.get() + " " + capacity());
+            try {
+                Thread.sleep(heartbeatInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * 执行一次再平衡（或其中的一块）：把文件发送给其他 Dstore（接收方保存后会向控制器确认），删除不再需要的文件
+     */
+    private static void rebalance(FilesToSendAndToRemove t, String traceId) {
+        // files_to_send ：要发送的文件列表
+        var rebalanceStart = System.nanoTime();
+        // 获取要发送的文件列表，列表的值为文件名和对应的 dstore 列表
+        List<FileToSend> filesToSend = t.filesToSendList;
+
+        // 打包保存的小文件按目标 Dstore 分组，每个目标一个连接批量发送
+        var batches = new HashMap<String, List<String>>();
+        for (var fileToSend : filesToSend) {
+            Long fileSize = fileSizes.get(fileToSend.fileName);
+            if (fileSize == null) continue;
+            if (segments != null && segments.contains(fileToSend.fileName)) {
+                for (var dstorePort : fileToSend.dstores) {
+                    batches.computeIfAbsent(dstorePort, k -> new ArrayList<>()).add(fileToSend.fileName);
+                }
+                continue;
+            }
+            // 遍历要发送的 dstore 列表
+            for (var dstorePort : fileToSend.dstores) {
+                // 新建一个 socket，用于向另一个 dstore 发送文件
+                try (var dstoreSocket = new Socket(InetAddress.getLocalHost(), Integer.parseInt(dstorePort))) {
+                    dstoreSocket.setSoTimeout(timeout);
+                    // 发送 Rebalance Store 命令和文件信息
+                    MessageWriter.send(dstoreSocket, Protocol.REBALANCE_STORE_TOKEN + " " + fileToSend.fileName + " " + fileSize + Tracing.suffix(traceId));
+                    // 等待 ACK，如果在超时前收到 ACK，发送文件
+                    var in = new BufferedReader(new InputStreamReader(dstoreSocket.getInputStream()));
+                    if (Protocol.ACK_TOKEN.equals(in.readLine())) {
+                        var start = System.nanoTime();
+                        var transfer = Tracing.transfer(traceId, "REBALANCE_SEND", fileToSend.fileName, Integer.parseInt(dstorePort), fileSize);
+                        sendRebalanceFile(dstoreSocket, fileToSend.fileName);
+                        transfer.commit();
+                        Metrics.histogram("rebalance_send").recordSince(start);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        for (var dstorePort : batches.keySet()) {
+            sendRebalanceBatch(dstorePort, batches.get(dstorePort), traceId);
+        }
+
+        var filesToRemove = t.filesToRemoveList;
+        for (var fileToRemove : filesToRemove) {
+            if (filesInDstore.contains(fileToRemove)) {
+                if (deleteLocal(fileToRemove)) {
+                    forgetFile(fileToRemove);
+                }
+            }
+        }
+
+        Metrics.histogram("rebalance").recordSince(rebalanceStart);
+    }
+
+    // 文件所在分区的控制器
+    private static Socket controllerFor(String fileName) {
+        return controllerConnections[Partitioning.partitionOf(fileName, controllerConnections.length)];
+    }
+
+    // 返回当前的文件列表到 socket，只包含该控制器所在分区的文件
+    private static void listFilesInDstore(Socket controllerConnection, int partition, String[] words) {
+        // 不带版本号的 LIST：一行返回完整的文件列表
+        if (words.length < 3) {
+            var msg = new StringBuilder(Protocol.LIST_TOKEN);
+            for (var file : filesInDstore) {
+                if (Partitioning.partitionOf(file, controllerConnections.length) == partition) msg.append(" ").append(file);
+            }
+            MessageWriter.send(controllerConnection, msg.toString());
+            return;
+        }
+        /*
+         * LIST <epoch> <generation>：返回该版本之后的变化，分多行发送
+         *   LIST_BEGIN <epoch> <generation> FULL|DELTA
+         *   LIST_CHUNK +文件 -文件 ...
+         *   LIST_END
+         * 整个回复作为一批消息连续发送，确认消息只会在 LIST_BEGIN 之前或 LIST_END 之后
+         */
+        var listing = filesInDstore.listSince(Long.parseLong(words[1]), Long.parseLong(words[2]));
+        var reply = new ArrayList<String>();
+        reply.add(Protocol.LIST_BEGIN_TOKEN + " " + filesInDstore.epoch + " "
+                + listing.generation + " " + (listing.full ? Protocol.LIST_FULL : Protocol.LIST_DELTA));
+        for (int i = 0; i < listing.entries.size(); i += listChunkSize) {
+            var msg = new StringBuilder(Protocol.LIST_CHUNK_TOKEN);
+            for (var entry : listing.entries.subList(i, Math.min(i + listChunkSize, listing.entries.size()))) {
+                if (Partitioning.partitionOf(entry.substring(1), controllerConnections.length) == partition) {
+                    msg.append(" ").append(entry);
+                }
+            }
+            reply.add(msg.toString());
         }
-        Util.sendMessage(controllerConnection, msg.toString());
+        reply.add(Protocol.LIST_END_TOKEN);
+        MessageWriter.send(controllerConnection, reply);
+        Metrics.counter(listing.full ? "list_full" : "list_delta").increment();
     }
 
     // 删除文件，删除完成后回应controllerConnection
     private static void removeFileInDstore(String fileName, Socket controllerConnection) {
-        if (filesInDstore.contains(fileName)) {
-            var toRemove = new File(dir, fileName);
-
-            if (toRemove.delete()) {
-                filesInDstore.remove(fileName);
-                Util.sendMessage(controllerConnection, Protocol.REMOVE_ACK_TOKEN + " " + fileName);
+        // 纠删码：该文件的计划和分片位置都已失效
+        ecStorePlans.remove(fileName);
+        ecLoadLocations.remove(fileName);
+        // 分段上传的文件：删除本结点上保存的所有段
+        var parts = localPartsOf(fileName);
+        if (!parts.isEmpty() && !filesInDstore.contains(fileName)) {
+            for (var part : parts) {
+                if (deleteLocal(part)) {
+                    forgetFile(part);
+                }
+            }
+            MessageWriter.send(controllerConnection, Protocol.REMOVE_ACK_TOKEN + " " + fileName);
+            return;
+        }
+        // 纠删码文件在本结点上只保存了一个分片
+        var localName = filesInDstore.contains(fileName) ? fileName : localFragmentOf(fileName);
+        if (localName != null) {
+            if (deleteLocal(localName)) {
+                forgetFile(localName);
+                MessageWriter.send(controllerConnection, Protocol.REMOVE_ACK_TOKEN + " " + fileName);
             }
         } else {
-            Util.sendMessage(controllerConnection, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + fileName);
+            MessageWriter.send(controllerConnection, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + fileName);
+        }
+    }
+
+    /*
+     * 查找本结点保存的某个分段上传文件的所有段
+     */
+    private static List<String> localPartsOf(String fileName) {
+        var parts = new ArrayList<String>();
+        for (var name : piecesOfFile.getOrDefault(fileName, Set.of())) {
+            if (Multipart.isPartName(name)) parts.add(name);
+        }
+        return parts;
+    }
+
+    /*
+     * 查找本结点保存的某个纠删码文件的分片名，没有则返回 null
+     */
+    private static String localFragmentOf(String fileName) {
+        for (var name : piecesOfFile.getOrDefault(fileName, Set.of())) {
+            if (ReedSolomon.isFragmentName(name)) return name;
+        }
+        return null;
+    }
+
+    // 分段上传的段或纠删码分片所属的文件名，普通文件返回 null
+    private static String fileOfPiece(String name) {
+        if (Multipart.isPartName(name)) return Multipart.fileOfPart(name);
+        if (ReedSolomon.isFragmentName(name)) return ReedSolomon.fileOfFragment(name);
+        return null;
+    }
+
+    /*
+     * 纠删码编码：读取完整文件，编码成 k + m 个分片，按计划 EC_STORE 文件名 大小 k m 端口0 ... 发送到各个 Dstore，
+     * 最后删除本地的完整文件
+     */
+    private static void encodeAndDistribute(File file, String[] plan, String traceId) {
+        try {
+            var fileName = plan[1];
+            var rs = new ReedSolomon(Integer.parseInt(plan[3]), Integer.parseInt(plan[4]));
+            var shards = rs.encode(Files.readAllBytes(file.toPath()));
+            for (int i = 0; i < shards.length; i++) {
+                var fragmentName = ReedSolomon.fragmentName(fileName, i);
+                var dstorePort = Integer.parseInt(plan[5 + i]);
+                if (dstorePort == port) {
+                    saveFragment(fragmentName, shards[i]);
+                } else {
+                    sendBytesToDstore(dstorePort, Protocol.STORE_FRAGMENT_TOKEN + " " + fragmentName + " " + shards[i].length + Tracing.suffix(traceId), shards[i]);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (!file.delete()) {
+                System.err.println("Failed to delete encoded file: " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    // 在本地保存一个分片，并通知控制器
+    private static void saveFragment(String fragmentName, byte[] content) throws IOException {
+        Files.write(new File(dir, fragmentName).toPath(), content);
+        durability.sync(new File(dir, fragmentName).toPath());
+        recordFile(fragmentName, content.length);
+        MessageWriter.send(controllerFor(fragmentName), Protocol.FRAGMENT_ACK_TOKEN + " "
+                + ReedSolomon.fileOfFragment(fragmentName) + " " + ReedSolomon.indexOfFragment(fragmentName));
+    }
+
+    // 一条 EC_LOAD 命令及其到达的时间
+    private static class EcLoad {
+        final String[] words;
+        final long received = System.currentTimeMillis();
+
+        EcLoad(String[] words) {
+            this.words = words;
+        }
+    }
+
+    // 连接另一个 Dstore，发送命令，等待 ACK 后发送数据
+    private static void sendBytesToDstore(int dstorePort, String command, byte[] content) throws IOException {
+        try (var dstoreSocket = new Socket(InetAddress.getLocalHost(), dstorePort)) {
+            dstoreSocket.setSoTimeout(timeout);
+            MessageWriter.send(dstoreSocket, command);
+            var in = new BufferedReader(new InputStreamReader(dstoreSocket.getInputStream()));
+            var line = in.readLine();
+            if (!Protocol.ACK_TOKEN.equals(line)) {
+                throw new IOException("no ACK from dstore " + dstorePort);
+            }
+            dstoreSocket.getOutputStream().write(content);
+            Metrics.counter("bytes_out").add(content.length);
+        }
+    }
+
+    /*
+     * 按 EC_LOAD / EC_REPAIR 命令中的 "端口:分片编号" 列表收集分片，优先收集数据分片（无需解码），
+     * 收集到 k 个即停止，缺失的分片为 null
+     */
+    private static byte[][] collectFragments(String fileName, long size, int k, int m, String[] locations) {
+        var shards = new byte[k + m][];
+        var sorted = new ArrayList<>(List.of(locations));
+        sorted.sort((a, b) -> Integer.parseInt(a.split(":")[1]) - Integer.parseInt(b.split(":")[1]));
+        int found = 0;
+        for (var location : sorted) {
+            if (found == k) break;
+            var parts = location.split(":");
+            var index = Integer.parseInt(parts[1]);
+            var fragment = fetchFragment(Integer.parseInt(parts[0]), ReedSolomon.fragmentName(fileName, index), ReedSolomon.shardSize(size, k));
+            if (fragment != null) {
+                shards[index] = fragment;
+                found++;
+            }
+        }
+        return shards;
+    }
+
+    // 读取一个分片：本地分片直接读文件，其他 Dstore 上的分片通过 LOAD_DATA 获取
+    private static byte[] fetchFragment(int dstorePort, String fragmentName, int shardSize) {
+        try {
+            if (dstorePort == port) {
+                return Files.readAllBytes(new File(dir, fragmentName).toPath());
+            }
+            try (var dstoreSocket = new Socket(InetAddress.getLocalHost(), dstorePort)) {
+                dstoreSocket.setSoTimeout(timeout);
+                MessageWriter.send(dstoreSocket, Protocol.LOAD_DATA_TOKEN + " " + fragmentName);
+                var fragment = new byte[shardSize];
+                new DataInputStream(dstoreSocket.getInputStream()).readFully(fragment);
+                Metrics.counter("bytes_in").add(fragment.length);
+                return fragment;
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to fetch fragment " + fragmentName + " from dstore " + dstorePort);
+            return null;
+        }
+    }
+
+    /*
+     * 纠删码文件的加载：等待控制器发来的分片位置（EC_LOAD 文件名 大小 k m 端口:分片编号 ...），
+     * 收集 k 个分片还原出完整文件后发送给客户端。每次加载取走一条 EC_LOAD；超过 timeout 的记录属于没有来加载的客户端，
+     * 其中的大小和位置可能已经过时（例如文件被删除后重新存储），丢弃
+     */
+    private static void sendErasureCodedFile(Socket socket, String fileName) {
+        try {
+            var queue = ecLoadLocations.computeIfAbsent(fileName, k -> new LinkedBlockingQueue<>());
+            EcLoad load;
+            do {
+                load = queue.poll(timeout, TimeUnit.MILLISECONDS);
+            } while (load != null && System.currentTimeMillis() - load.received > timeout);
+            if (load == null) {
+                socket.close();
+                return;
+            }
+            var words = load.words;
+            long size = Long.parseLong(words[2]);
+            var rs = new ReedSolomon(Integer.parseInt(words[3]), Integer.parseInt(words[4]));
+            var shards = collectFragments(fileName, size, Integer.parseInt(words[3]), Integer.parseInt(words[4]),
+                    Arrays.copyOfRange(words, 5, words.length));
+            var content = rs.decode(shards, size);
+            new DataOutputStream(socket.getOutputStream()).write(content);
+            Metrics.counter("bytes_out").add(content.length);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * 纠删码分片修复：EC_REPAIR 文件名 大小 k m 分片编号 端口:分片编号 ...，收集 k 个分片重建指定的分片并保存在本地
+     */
+    private static void repairFragment(String[] words) {
+        try {
+            var fileName = words[1];
+            long size = Long.parseLong(words[2]);
+            int k = Integer.parseInt(words[3]);
+            int m = Integer.parseInt(words[4]);
+            int index = Integer.parseInt(words[5]);
+            var shards = collectFragments(fileName, size, k, m, Arrays.copyOfRange(words, 6, words.length));
+            saveFragment(ReedSolomon.fragmentName(fileName, index), new ReedSolomon(k, m).rebuildShard(shards, index));
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 
     // 将文件fileName发送到对应的 socket
-    private static void sendFile(Socket socket, String fileName) {
-        // 使用try-with-resources自动管理资源
-        try (var ignored = new FileInputStream(new File(dir, fileName));
-        ) {
-            var dataOut = new DataOutputStream(socket.getOutputStream());
-            // 直接使用Files.readAllBytes来读取文件内容到字节数组
-            byte[] fileContent = Files.readAllBytes(new File(dir, fileName).toPath());
-            dataOut.write(fileContent);
+    public static void sendFile(Socket socket, File dir, String fileName, String traceId) {
+        // 使用try-with-resources自动管理资源；分块读取发送，不把整个文件读入内存（文件可能超过 2 GB）
+        try (var in = openLocal(dir, fileName)) {
+            var out = socket.getOutputStream();
+            var start = System.nanoTime();
+            var transfer = Tracing.transfer(traceId, Protocol.LOAD_DATA_TOKEN, fileName, 0, 0);
+            var buffer = new byte[64 * 1024];
+            int bytesRead;
+            long sent = 0;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+                sent += bytesRead;
+            }
+            out.flush();
+            Metrics.histogram("send").recordSince(start);
+            Metrics.counter("bytes_out").add(sent);
+            transfer.bytes = sent;
+            transfer.commit();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -234,10 +992,14 @@ public class Dstore {
      * 仅解析命令，并将命令封装成：FilesToSendAndToRemove
      */
     public static FilesToSendAndToRemove parseSendFilesAndRemoveFiles(String line) {
-        // 将接收到的指令字符串按空格分割成多个部分
-        String[] parts = line.split(" ");
-        // 初始化索引，用于遍历parts数组
-        int index = 1; // 从第二个元素开始，因为第一个元素是协议的命令
+        // 将接收到的指令字符串按空格分割成多个部分，从第二个元素开始，因为第一个元素是协议的命令
+        return parseSendFilesAndRemoveFiles(line.split(" "), 1);
+    }
+
+    /*
+     * 从 parts[index] 开始解析计划（REBALANCE_CHUNK 的计划在轮次和序号之后）
+     */
+    public static FilesToSendAndToRemove parseSendFilesAndRemoveFiles(String[] parts, int index) {
         // 解析发送文件的数量
         int numberOfFilesToSend = Integer.parseInt(parts[index++]);
         // 创建一个列表，用于存储需要发送的文件信息
@@ -319,41 +1081,82 @@ public class Dstore {
     public static void receiveFile(Socket clientSocket, String[] words, File dir, Socket controllerConnection) {
         // 从传入的words数组中获取文件名
         String fileName = words[1];
-        // 从words数组中获取文件大小，并转换为整数
-        int fileSize = Integer.parseInt(words[2]);
+        // 从words数组中获取文件大小（可能超过 2 GB）
+        long fileSize = Long.parseLong(words[2]);
         // 根据文件名创建一个文件对象，这个文件将用于存储接收到的文件内容
         File outputFile = new File(dir, fileName);
+        // 客户端或者发送方 Dstore 附带的追踪编号（可以没有）
+        var traceId = Tracing.traceIdOrNull(words, 3);
+        // 小文件先接收到内存，再追加到段文件中（纠删码的分片和需要编码的文件仍然单独保存）
+        var packed = packs(fileSize) && !Protocol.STORE_FRAGMENT_TOKEN.equals(words[0]) && !ecStorePlans.containsKey(fileName);
+
+        String[] ecStorePlan = null;
 
-        // 使用try-with-resources语句自动管理资源，确保所有资源在使用后都被正确关闭
-        try (InputStream fileInStream = clientSocket.getInputStream(); // 获取客户端Socket的输入流
-             FileOutputStream out = new FileOutputStream(outputFile)) { // 创建一个文件输出流，用于将数据写入文件
+        // 使用try-with-resources语句自动管理资源；只读取 fileSize 个字节，不关闭连接，客户端可以在同一个连接上继续发送命令
+        try (OutputStream out = packed ? new ByteArrayOutputStream((int) fileSize) : new FileOutputStream(outputFile)) {
+            InputStream fileInStream = clientSocket.getInputStream(); // 获取客户端Socket的输入流
 
             // 向客户端发送确认消息，表示准备接收文件
-            Util.sendMessage(clientSocket, Protocol.ACK_TOKEN);
+            MessageWriter.send(clientSocket, Protocol.ACK_TOKEN);
 
             // 创建一个字节缓冲区用于读取数据
             byte[] buffer = new byte[4096]; // 缓冲区大小为4096字节
             int bytesRead; // 用于存储每次读取的字节数
 
             // 循环读取输入流直到文件传输完成
-            while ((bytesRead = fileInStream.read(buffer)) != -1) {
+            var start = System.nanoTime();
+            var transfer = Tracing.transfer(traceId, words[0], fileName, 0, fileSize);
+            var isRebalance = Protocol.REBALANCE_STORE_TOKEN.equals(words[0]);
+            long remaining = fileSize;
+            while (remaining > 0) {
+                bytesRead = fileInStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                // 发送方在文件传输完成之前断开：丢弃不完整的文件，不确认
+                if (bytesRead == -1) throw new EOFException("connection closed after " + (fileSize - remaining) + " of " + fileSize + " bytes: " + fileName);
+                remaining -= bytesRead;
+                // 再平衡接收的数据同样限速
+                if (isRebalance) throttleRebalance(bytesRead);
                 // 将读取到的数据写入文件
                 out.write(buffer, 0, bytesRead);
+                Metrics.counter("bytes_in").add(bytesRead);
             }
+            Metrics.histogram("receive").recordSince(start);
+            transfer.commit();
+            if (packed) segments.put(fileName, ((ByteArrayOutputStream) out).toByteArray());
 
-            // 根据接收到的命令类型发送不同的确认消息给控制器
-            if (Protocol.STORE_TOKEN.equals(words[0])) {
-                // 如果命令是STORE_TOKEN，发送存储确认消息
-                Util.sendMessage(controllerConnection, Protocol.STORE_ACK_TOKEN + " " + fileName);
-            }
+            // 纠删码：本结点负责编码，把文件切分成分片发送出去，本结点不保留完整文件（关闭文件之后再编码）
+            ecStorePlan = Protocol.STORE_TOKEN.equals(words[0]) ? ecStorePlans.remove(fileName) : null;
+            if (ecStorePlan == null) {
+                // 数据持久化之后才确认（fds.dstore.durability 为 none 时不等待）
+                syncLocal(List.of(fileName), traceId);
+
+                // 先更新Dstore的文件列表和文件大小映射，再确认，保证确认之后的 LIST 一定包含该文件
+                recordFile(fileName, fileSize); // 将文件名添加到文件列表中，并记录文件大小
 
-            // 更新Dstore的文件列表和文件大小映射
-            filesInDstore.add(fileName); // 将文件名添加到文件列表中
-            fileSizes.put(fileName, fileSize); // 将文件名和大小添加到文件大小映射中
+                // 根据接收到的命令类型发送不同的确认消息给控制器
+                if (Protocol.STORE_FRAGMENT_TOKEN.equals(words[0])) {
+                    // 如果命令是STORE_FRAGMENT_TOKEN，发送分片确认消息
+                    MessageWriter.send(controllerConnection, Protocol.FRAGMENT_ACK_TOKEN + " "
+                            + ReedSolomon.fileOfFragment(fileName) + " " + ReedSolomon.indexOfFragment(fileName));
+                } else if (Protocol.STORE_TOKEN.equals(words[0])) {
+                    // 如果命令是STORE_TOKEN，发送存储确认消息
+                    MessageWriter.send(controllerConnection, Protocol.STORE_ACK_TOKEN + " " + fileName);
+                }
 
+                // 再平衡收到的副本：保存完成后通知控制器，控制器确认新副本后才删除旧的副本
+                if (isRebalance) {
+                    MessageWriter.send(controllerConnection, Protocol.REBALANCE_STORE_ACK_TOKEN + " " + fileName);
+                }
+            }
         } catch (Exception e) {
-            // 捕获并打印可能发生的任何异常
+            // 捕获并打印可能发生的任何异常；连接中可能还有没读完的数据，关闭连接
             e.printStackTrace();
+            if (!packed && !filesInDstore.contains(fileName)) outputFile.delete();
+            try {
+                clientSocket.close();
+            } catch (IOException ignored) {
+            }
+            return;
         }
+        if (ecStorePlan != null) encodeAndDistribute(outputFile, ecStorePlan, traceId);
     }
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Controller 对单个 Dstore 负载和容量的估计，用于 LOAD 时选择副本、STORE 和再平衡时选择结点：
+ *   activeConnections：Dstore 在最近一次心跳中报告的活跃连接数
+ *   assignedLoads：上一次心跳之后分配给该 Dstore 的 LOAD 数量（还没有反映在心跳中）
+ *   latencyMicros：STORE_TO 到 STORE_ACK 的耗时的指数加权平均值（微秒）
+ *   hotBytes / hotFreeBytes / coldBytes / coldFreeBytes：JOIN 和心跳中报告的热层、冷层已经使用的字节数和剩余空间（没有冷层时为 0）
+ *   assignedBytes：分配给该 Dstore、还没有确认的 STORE 的字节数
+ *   ackedBytes：上一次报告容量之后确认的 STORE 的字节数（Dstore 先记录文件再发送确认，下一次报告中已经包含）
+ */
+public class DstoreLoad {
+    // 指数加权平均的权重，新样本占 1/8
+    private final static double ALPHA = 0.125;
+
+    public volatile int activeConnections;
+    public final AtomicInteger assignedLoads = new AtomicInteger();
+    public volatile double latencyMicros;
+    public volatile long hotBytes;
+    public volatile long hotFreeBytes;
+    public volatile long coldBytes;
+    public volatile long coldFreeBytes;
+    public final AtomicLong assignedBytes = new AtomicLong();
+    public final AtomicLong ackedBytes = new AtomicLong();
+    // 是否报告过容量；没有报告过的 Dstore 不按容量拒绝
+    public volatile boolean capacityReported;
+
+    // 估计的未完成请求数量
+    public int outstanding() {
+        return activeConnections + assignedLoads.get();
+    }
+
+    // 收到心跳：心跳中的连接数已经包含之前分配的 LOAD
+    public void heartbeat(int connections) {
+        activeConnections = connections;
+        assignedLoads.set(0);
+    }
+
+    // 心跳中的容量信息
+    public void capacity(long hotBytes, long hotFreeBytes, long coldBytes, long coldFreeBytes) {
+        this.hotBytes = hotBytes;
+        this.hotFreeBytes = hotFreeBytes;
+        this.coldBytes = coldBytes;
+        this.coldFreeBytes = coldFreeBytes;
+        capacityReported = true;
+        ackedBytes.set(0);
+    }
+
+    // 分配的 STORE 已经确认
+    public void stored(long bytes) {
+        assignedBytes.addAndGet(-bytes);
+        ackedBytes.addAndGet(bytes);
+    }
+
+    // 估计的已经使用的字节数
+    public long usedBytes() {
+        return hotBytes + coldBytes + assignedBytes.get() + ackedBytes.get();
+    }
+
+    // 新文件先写入热层：写入 bytes 个字节后，热层至少还剩 minFreeBytes 的空间
+    public boolean hasRoom(long bytes, long minFreeBytes) {
+        return !capacityReported || hotFreeBytes - assignedBytes.get() - ackedBytes.get() - bytes >= minFreeBytes;
+    }
+
+    // 记录一次 STORE 的确认耗时
+    public synchronized void recordLatency(long micros) {
+        latencyMicros = latencyMicros == 0 ? micros : latencyMicros + ALPHA * (micros - latencyMicros);
+    }
+}
@@ -0,0 +1,244 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Dstore 写入的持久化：确认（STORE_ACK 等）之前，保证数据和目录项已经写到磁盘上。
+ *   NONE：不调用 fsync，断电时可能丢失已经确认的数据（原来的做法）
+ *   FILE：每个文件写完后立即 fsync 文件和所在的目录
+ *   GROUP：组提交，一个窗口（window）内到达的所有请求由组提交线程一起提交：同一个段文件、同一个文件、同一个目录只 fsync 一次。
+ *          只有打包写入段文件的小文件共用数据的 fsync（Dstore 在该模式下默认打包小文件）；单独保存的文件是不同的文件，
+ *          仍然每个文件 fsync 一次（并发执行），组提交只为它们合并目录的 fsync，它们的耗时主要是写出数据本身
+ * 调用 sync 的线程阻塞到数据持久化为止，失败时抛出 IOException，调用者不发送确认。
+ */
+public class Durability {
+    public enum Mode {NONE, FILE, GROUP}
+
+    private final Mode mode;
+    private final long windowNanos;
+    private final int maxBatch;
+    // 同时进行的组提交批次数：磁盘可以并行处理多个 fsync，批次之间完全串行会增加等待时间
+    private final static int MAX_IN_FLIGHT = 8;
+
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    // 组提交时并发执行 fsync
+    private final ExecutorService syncExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public Durability(Mode mode, long windowMicros, int maxBatch) {
+        this.mode = mode;
+        this.windowNanos = windowMicros * 1000;
+        this.maxBatch = maxBatch;
+        if (mode == Mode.GROUP) {
+            Thread.ofPlatform().daemon().name("group-commit").start(this::commitLoop);
+        }
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    // 持久化一个单独保存的文件（内容和所在目录中的目录项）
+    public void sync(Path file) throws IOException {
+        sync(new Request(file, null, file.getParent()));
+    }
+
+    // 持久化追加到段文件中的数据，dir 为段文件所在的目录（新建的段文件需要持久化目录项）
+    public void sync(FileChannel channel, Path dir) throws IOException {
+        sync(new Request(null, channel, dir));
+    }
+
+    /*
+     * 一次持久化多个文件和段文件（它们都在 dir 中）：FILE 模式下目录只 fsync 一次，
+     * GROUP 模式下所有请求一起进入队列，通常在同一个窗口中提交
+     */
+    public void sync(Collection<Path> files, Collection<FileChannel> channels, Path dir) throws IOException {
+        var requests = new ArrayList<Request>();
+        for (var file : files) {
+            requests.add(new Request(file, null, requests.isEmpty() ? dir : null));
+        }
+        for (var channel : channels) {
+            requests.add(new Request(null, channel, requests.isEmpty() ? dir : null));
+        }
+        if (!requests.isEmpty()) sync(requests);
+    }
+
+    private void sync(Request request) throws IOException {
+        sync(List.of(request));
+    }
+
+    private void sync(List<Request> requests) throws IOException {
+        switch (mode) {
+            case NONE -> {
+            }
+            case FILE -> {
+                var start = System.nanoTime();
+                for (var request : requests) {
+                    request.force();
+                    forceDirectory(request.dir);
+                }
+                Metrics.histogram("fsync").recordSince(start);
+            }
+            case GROUP -> {
+                var start = System.nanoTime();
+                queue.addAll(requests);
+                try {
+                    for (var request : requests) {
+                        request.done.get();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for group commit", e);
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                }
+                Metrics.histogram("fsync").recordSince(start);
+            }
+        }
+    }
+
+    /*
+     * 组提交线程：取出第一个请求后再等待一个窗口，收集这段时间内到达的请求（最多 maxBatch 个），
+     * 去掉重复的段文件和目录后并发 fsync，再一起完成；提交在后台进行，最多 MAX_IN_FLIGHT 个批次同时提交
+     */
+    private void commitLoop() {
+        while (true) {
+            var batch = new ArrayList<Request>();
+            try {
+                // 同时提交的批次不超过 MAX_IN_FLIGHT 个，等待期间到达的请求进入下一批
+                inFlight.acquire();
+                batch.add(queue.take());
+                var deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatch) {
+                    var request = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (request == null) break;
+                    batch.add(request);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            var files = new LinkedHashSet<Path>();
+            var channels = new LinkedHashSet<FileChannel>();
+            var dirs = new LinkedHashSet<Path>();
+            var tasks = new ArrayList<CompletableFuture<Void>>();
+            for (var request : batch) {
+                if (request.file != null) {
+                    files.add(request.file);
+                } else {
+                    channels.add(request.channel);
+                }
+                if (request.dir != null) dirs.add(request.dir);
+            }
+            for (var file : files) {
+                tasks.add(CompletableFuture.runAsync(() -> uncheck(() -> forceFile(file)), syncExecutor));
+            }
+            for (var channel : channels) {
+                tasks.add(CompletableFuture.runAsync(() -> uncheck(() -> forceChannel(channel)), syncExecutor));
+            }
+            // 目录项与文件内容同时持久化，全部完成后才确认
+            for (var dir : dirs) {
+                tasks.add(CompletableFuture.runAsync(() -> uncheck(() -> forceDirectory(dir)), syncExecutor));
+            }
+            var committed = CompletableFuture.allOf(tasks.toArray(CompletableFuture<?>[]::new));
+            committed.whenComplete((ignored, e) -> {
+                inFlight.release();
+                for (var request : batch) {
+                    if (e == null) {
+                        request.done.complete(null);
+                    } else {
+                        request.done.completeExceptionally(unwrap(e));
+                    }
+                }
+            });
+            Metrics.counter("group_commits").increment();
+            Metrics.counter("group_commit_requests").add(batch.size());
+        }
+    }
+
+    // 文件内容的 fsync 次数记在 fsync_data_forces 中，与 group_commit_requests 比较可以看出共用的程度
+    private static void forceFile(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Metrics.counter("fsync_data_forces").increment();
+    }
+
+    private static void forceChannel(FileChannel channel) throws IOException {
+        try {
+            channel.force(true);
+            Metrics.counter("fsync_data_forces").increment();
+        } catch (ClosedChannelException e) {
+            // 段文件已经被压缩回收，其中的数据在复制到新的段后已经持久化
+        }
+    }
+
+    private static void forceDirectory(Path dir) throws IOException {
+        if (dir == null) return;
+        try (var channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private interface IOAction {
+        void run() throws IOException;
+    }
+
+    private static void uncheck(IOAction action) {
+        try {
+            action.run();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) e = e.getCause();
+        if (e instanceof UncheckedIOException) e = e.getCause();
+        return e;
+    }
+
+    // 一个持久化请求：单独的文件或者段文件，以及需要持久化目录项的目录（可以为 null）
+    private static class Request {
+        final Path file;
+        final FileChannel channel;
+        final Path dir;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Request(Path file, FileChannel channel, Path dir) {
+            this.file = file;
+            this.channel = channel;
+            this.dir = dir;
+        }
+
+        void force() throws IOException {
+            if (file != null) {
+                forceFile(file);
+            } else {
+                forceChannel(channel);
+            }
+        }
+    }
+
+    // 解析 fds.dstore.durability：none / file / group
+    public static Mode parseMode(String mode) {
+        return Mode.valueOf(mode.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,113 @@
+package org.example;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * φ accrual 故障检测器（Hayashibara 等人提出，Akka / Cassandra 使用的方案）。
+ *
+ * 每个 Dstore 定期发送心跳，检测器记录最近若干次心跳的到达间隔，估计其均值和标准差，
+ * 再根据距离上一次心跳已经过去的时间计算怀疑值 φ = -log10(P(间隔 > 已过去的时间))。
+ * φ 超过阈值即认为该结点可疑；结点本身越不稳定（间隔方差越大），判定所需的时间越长。
+ */
+public class FailureDetector {
+    // 怀疑阈值，φ = 8 表示误判的概率约为 10^-8
+    private final double threshold;
+    // 心跳间隔（毫秒），用作历史记录为空时的初始估计
+    private final long heartbeatInterval;
+    // 标准差的下限（毫秒），避免间隔非常稳定时稍有抖动就被怀疑
+    private final long minStdDeviation;
+    // 保留的心跳间隔数量
+    private final int windowSize;
+
+    private final ConcurrentHashMap<Integer, History> histories = new ConcurrentHashMap<>();
+
+    public FailureDetector(double threshold, long heartbeatInterval, long minStdDeviation, int windowSize) {
+        this.threshold = threshold;
+        this.heartbeatInterval = heartbeatInterval;
+        this.minStdDeviation = minStdDeviation;
+        this.windowSize = windowSize;
+    }
+
+    // 收到结点的心跳
+    public void heartbeat(int node) {
+        heartbeat(node, System.currentTimeMillis());
+    }
+
+    public void heartbeat(int node, long now) {
+        histories.computeIfAbsent(node, k -> new History(windowSize, heartbeatInterval)).arrive(now);
+    }
+
+    // 结点已断开，删除其心跳记录
+    public void remove(int node) {
+        histories.remove(node);
+    }
+
+    // 当前的怀疑值，从未收到过心跳的结点为 0
+    public double phi(int node) {
+        return phi(node, System.currentTimeMillis());
+    }
+
+    public double phi(int node, long now) {
+        var history = histories.get(node);
+        if (history == null) return 0;
+        return history.phi(now, minStdDeviation);
+    }
+
+    // 怀疑值是否超过阈值
+    public boolean isSuspected(int node) {
+        return phi(node) > threshold;
+    }
+
+    /*
+     * 单个结点的心跳历史：环形数组保存最近的到达间隔，同时维护总和与平方和
+     */
+    private static class History {
+        private final long[] intervals;
+        private int count;
+        private int next;
+        private double sum;
+        private double squaredSum;
+        private long lastArrival = -1;
+
+        History(int windowSize, long heartbeatInterval) {
+            intervals = new long[windowSize];
+            // 用两个偏离预期的间隔作为初始样本，使初始标准差约为预期间隔的 1/4
+            add(heartbeatInterval - heartbeatInterval / 4);
+            add(heartbeatInterval + heartbeatInterval / 4);
+        }
+
+        synchronized void arrive(long now) {
+            if (lastArrival >= 0) add(now - lastArrival);
+            lastArrival = now;
+        }
+
+        private void add(long interval) {
+            if (count == intervals.length) {
+                sum -= intervals[next];
+                squaredSum -= (double) intervals[next] * intervals[next];
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            sum += interval;
+            squaredSum += (double) interval * interval;
+            next = (next + 1) % intervals.length;
+        }
+
+        synchronized double phi(long now, long minStdDeviation) {
+            if (lastArrival < 0) return 0;
+            double mean = sum / count;
+            double variance = Math.max(0, squaredSum / count - mean * mean);
+            double stdDeviation = Math.max(Math.sqrt(variance), minStdDeviation);
+
+            // 用 logistic 函数近似正态分布的累积分布函数
+            double y = (now - lastArrival - mean) / stdDeviation;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            if (now - lastArrival > mean) {
+                return -Math.log10(e / (1.0 + e));
+            } else {
+                return -Math.log10(1.0 - 1.0 / (1.0 + e));
+            }
+        }
+    }
+}
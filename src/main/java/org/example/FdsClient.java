@@ -0,0 +1,534 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/*
+ * 客户端 SDK：异步的 STORE / LOAD / REMOVE / LIST，可以连接 Controller，也可以连接 Router。
+ *   连接池：与 Controller 的连接最多 maxControllerConnections 个，一个请求独占一个连接直到收到最终回复；
+ *          与每个 Dstore 的连接在 STORE、LOAD_DATA 之后放回池中复用，空闲超过 idleTimeout 的连接不再复用
+ *   异步：每个操作在一个虚拟线程中执行，返回 CompletableFuture，一个进程可以同时进行数千个操作
+ *   流式：store 从 InputStream 读取，同时写给所有 Dstore；load 边读边写到 OutputStream，不需要把整个文件放在内存中
+ *   分段上传：storeMultipart 把文件按 partSize 切分，每一段上传到 Controller 分配的 R 个 Dstore，load 自动按段加载
+ *   失败转移：LOAD_DATA 失败时发送 RELOAD 换一个 Dstore，从已经写出的位置继续；分段文件的一段失败时用 LOAD_PART 重新获取位置
+ *   BUSY：Controller 或 Dstore 回复 BUSY 时按建议的时间等待后重试，直到超过 retryTimeout；
+ *        Dstore 拒绝 LOAD_DATA 时不回复，直接关闭连接，客户端读到连接结束后发送 RELOAD 换一个 Dstore
+ *   追踪：每个操作生成一个追踪编号，附加在发给 Controller 和 Dstore 的命令末尾，见 Tracing
+ *
+ * 用法：
+ *   try (var client = new FdsClient(12345, new FdsClient.Options())) {
+ *       client.store("a.txt", data).join();
+ *       byte[] content = client.load("a.txt").join();
+ *   }
+ */
+public class FdsClient implements AutoCloseable {
+    // 客户端的配置，默认值适合在本机测试
+    public static class Options {
+        public InetAddress host = InetAddress.getLoopbackAddress();
+        // 建立连接和读取回复的超时时间（毫秒）
+        public int timeout = 10_000;
+        // 收到 BUSY 后重试的总时间（毫秒）
+        public int retryTimeout = 10_000;
+        // 与 Controller 的连接数上限，也是同时进行的操作数上限
+        public int maxControllerConnections = 64;
+        // 每个 Dstore 最多保留的空闲连接数
+        public int maxIdlePerDstore = 16;
+        // 空闲超过该时间的连接不再复用（应小于 Dstore 的 fds.dstore.idleTimeout）
+        public int idleTimeout = 1_000;
+        // 分段文件的一段加载失败时，最多重新获取位置的次数
+        public int partRetries = 3;
+    }
+
+    // 错误回复（ERROR_FILE_DOES_NOT_EXIST 等），reply 为完整的回复
+    public static class ReplyException extends IOException {
+        private final static long serialVersionUID = 1L;
+
+        public final String reply;
+
+        public ReplyException(String reply) {
+            super(reply);
+            this.reply = reply;
+        }
+    }
+
+    private final int controllerPort;
+    private final Options options;
+    private final Semaphore controllerPermits;
+    // 每个端口的空闲连接，最近使用的在前面
+    private final ConcurrentHashMap<Integer, ConcurrentLinkedDeque<Connection>> idle = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private volatile boolean closed;
+
+    public FdsClient(int controllerPort, Options options) {
+        this.controllerPort = controllerPort;
+        this.options = options;
+        this.controllerPermits = new Semaphore(options.maxControllerConnections);
+    }
+
+    public FdsClient(int controllerPort) {
+        this(controllerPort, new Options());
+    }
+
+    public CompletableFuture<Void> store(String name, byte[] content) {
+        return store(name, content.length, new ByteArrayInputStream(content));
+    }
+
+    // 从 content 中读取 size 个字节保存为 name，完成时 Controller 已经回复 STORE_COMPLETE
+    public CompletableFuture<Void> store(String name, long size, InputStream content) {
+        var traceId = Tracing.newTraceId();
+        return async(() -> withController(controller -> {
+            var reply = request(controller, Protocol.STORE_TOKEN + " " + name + " " + size + " " + traceId);
+            if (!reply.startsWith(Protocol.STORE_TO_TOKEN + " ")) throw new ReplyException(reply);
+            var words = reply.split(" ");
+            var ports = new int[words.length - 1];
+            for (int i = 1; i < words.length; i++) {
+                ports[i - 1] = Integer.parseInt(words[i]);
+            }
+            upload(Protocol.STORE_TOKEN + " " + name + " " + size + " " + traceId, size, content, ports);
+            reply = controller.readLine();
+            if (!Protocol.STORE_COMPLETE_TOKEN.equals(reply)) throw new ReplyException(reply);
+            return null;
+        }));
+    }
+
+    // 分段上传 content，每段 partSize 个字节，各段并行上传；完成时 Controller 已经回复 STORE_COMPLETE
+    public CompletableFuture<Void> storeMultipart(String name, byte[] content, long partSize) {
+        var traceId = Tracing.newTraceId();
+        return async(() -> withController(controller -> {
+            var ports = requestParts(controller, name, content.length, partSize, traceId);
+            var uploads = new ArrayList<CompletableFuture<Void>>();
+            for (int index = 0; index < ports.length; index++) {
+                var offset = (int) (index * partSize);
+                var length = (int) Multipart.partSize(content.length, partSize, index);
+                var command = Protocol.STORE_TOKEN + " " + Multipart.partName(name, index) + " " + length + " " + traceId;
+                var partPorts = ports[index];
+                uploads.add(async(() -> {
+                    upload(command, length, new ByteArrayInputStream(content, offset, length), partPorts);
+                    return null;
+                }));
+            }
+            try {
+                CompletableFuture.allOf(uploads.toArray(CompletableFuture<?>[]::new)).join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            }
+            var reply = controller.readLine();
+            if (!Protocol.STORE_COMPLETE_TOKEN.equals(reply)) throw new ReplyException(reply);
+            return null;
+        }));
+    }
+
+    // 从 content 中读取 size 个字节分段上传，依次上传每一段，不需要把整个文件放在内存中
+    public CompletableFuture<Void> storeMultipart(String name, long size, long partSize, InputStream content) {
+        var traceId = Tracing.newTraceId();
+        return async(() -> withController(controller -> {
+            var ports = requestParts(controller, name, size, partSize, traceId);
+            for (int index = 0; index < ports.length; index++) {
+                var length = Multipart.partSize(size, partSize, index);
+                upload(Protocol.STORE_TOKEN + " " + Multipart.partName(name, index) + " " + length + " " + traceId,
+                        length, content, ports[index]);
+            }
+            var reply = controller.readLine();
+            if (!Protocol.STORE_COMPLETE_TOKEN.equals(reply)) throw new ReplyException(reply);
+            return null;
+        }));
+    }
+
+    public CompletableFuture<byte[]> load(String name) {
+        return async(() -> {
+            var out = new ByteArrayOutputStream();
+            loadTo(name, out);
+            return out.toByteArray();
+        });
+    }
+
+    // 把文件内容写到 out，返回文件大小
+    public CompletableFuture<Long> load(String name, OutputStream out) {
+        return async(() -> loadTo(name, out));
+    }
+
+    public CompletableFuture<Void> remove(String name) {
+        var traceId = Tracing.newTraceId();
+        return async(() -> withController(controller -> {
+            var reply = request(controller, Protocol.REMOVE_TOKEN + " " + name + " " + traceId);
+            if (!Protocol.REMOVE_COMPLETE_TOKEN.equals(reply)) throw new ReplyException(reply);
+            return null;
+        }));
+    }
+
+    public CompletableFuture<List<String>> list() {
+        return async(() -> withController(controller -> {
+            var reply = request(controller, Protocol.LIST_TOKEN);
+            if (reply.equals(Protocol.LIST_TOKEN)) return List.<String>of();
+            if (!reply.startsWith(Protocol.LIST_TOKEN + " ")) throw new ReplyException(reply);
+            return List.of(reply.substring(Protocol.LIST_TOKEN.length() + 1).split(" "));
+        }));
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdown();
+        for (var connections : idle.values()) {
+            Connection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- STORE
+
+    /*
+     * 向所有 Dstore 发送同一个文件：先在每个连接上发送命令并等待 ACK，再把 content 分块同时写给所有 Dstore
+     */
+    private void upload(String command, long size, InputStream content, int[] ports) throws IOException, InterruptedException {
+        var connections = new ArrayList<Connection>();
+        try {
+            for (var port : ports) {
+                connections.add(openUpload(port, command));
+            }
+            var buffer = new byte[64 * 1024];
+            long remaining = size;
+            while (remaining > 0) {
+                int n = content.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n == -1) throw new EOFException("content ended " + remaining + " bytes early");
+                for (var connection : connections) {
+                    connection.out.write(buffer, 0, n);
+                }
+                remaining -= n;
+            }
+            for (var connection : connections) {
+                connection.out.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            connections.forEach(Connection::close);
+            throw e;
+        }
+        // Dstore 只读取 size 个字节，之后可以在同一个连接上继续发送命令
+        connections.forEach(this::release);
+    }
+
+    // 在一个 Dstore 连接上发送 STORE 并等待 ACK；Dstore 回复 BUSY 时等待后用新的连接重试
+    private Connection openUpload(int port, String command) throws IOException, InterruptedException {
+        var deadline = System.currentTimeMillis() + options.retryTimeout;
+        while (true) {
+            var connection = borrow(port);
+            String reply;
+            try {
+                connection.send(command);
+                reply = connection.readLine();
+            } catch (IOException e) {
+                connection.close();
+                // 复用的连接可能已经被 Dstore 因空闲关闭，换一个新的连接重试
+                if (connection.reused && !connection.received) continue;
+                throw e;
+            }
+            if (Protocol.ACK_TOKEN.equals(reply)) return connection;
+            connection.close();
+            // 不使用 ReplyException：Controller 上的 STORE 还没有结束，它的连接不能再复用
+            if (!reply.startsWith(Protocol.BUSY_TOKEN + " ") || System.currentTimeMillis() >= deadline) throw new IOException("Dstore " + port + " replied " + reply);
+            Thread.sleep(retryAfter(reply));
+        }
+    }
+
+    // 发送 STORE_MULTIPART，返回每一段的 R 个 Dstore 端口
+    private int[][] requestParts(Connection controller, String name, long size, long partSize, String traceId) throws IOException, InterruptedException {
+        var reply = request(controller, Protocol.STORE_MULTIPART_TOKEN + " " + name + " " + size + " " + partSize + " " + traceId);
+        if (!reply.startsWith(Protocol.STORE_PARTS_TO_TOKEN + " ")) throw new ReplyException(reply);
+        var words = reply.split(" ");
+        var parts = Integer.parseInt(words[1]);
+        var replicas = Integer.parseInt(words[2]);
+        var ports = new int[parts][replicas];
+        for (int i = 0; i < parts; i++) {
+            for (int j = 0; j < replicas; j++) {
+                ports[i][j] = Integer.parseInt(words[3 + i * replicas + j]);
+            }
+        }
+        return ports;
+    }
+
+    // ---------------------------------------------------------------- LOAD
+
+    private long loadTo(String name, OutputStream out) throws IOException, InterruptedException {
+        var traceId = Tracing.newTraceId();
+        return withController(controller -> {
+            // 已经写出的字节数，换一个 Dstore 之后跳过这些字节
+            var written = new long[1];
+            var reply = request(controller, Protocol.LOAD_TOKEN + " " + name + " " + traceId);
+            while (true) {
+                var words = reply.split(" ");
+                if (words[0].equals(Protocol.LOAD_PARTS_TOKEN)) {
+                    return loadParts(controller, name, words, out, traceId);
+                }
+                if (!words[0].equals(Protocol.LOAD_FROM_TOKEN)) throw new ReplyException(reply);
+                var size = Long.parseLong(words[2]);
+                try {
+                    download(Integer.parseInt(words[1]), name, size, out, written, traceId);
+                    return size;
+                } catch (IOException e) {
+                    // 该 Dstore 失败（断开、超时、过载或没有该文件时关闭连接），换一个 Dstore；没有其他副本时 Controller 回复 ERROR_LOAD
+                    reply = request(controller, Protocol.RELOAD_TOKEN + " " + name + " " + traceId);
+                }
+            }
+        });
+    }
+
+    // 分段上传的文件：依次加载每一段，一段失败时用 LOAD_PART 重新获取这一段的位置
+    private long loadParts(Connection controller, String name, String[] words, OutputStream out, String traceId) throws IOException, InterruptedException {
+        var size = Long.parseLong(words[1]);
+        var partSize = Long.parseLong(words[2]);
+        for (int index = 0; index < words.length - 3; index++) {
+            var partName = Multipart.partName(name, index);
+            var length = Multipart.partSize(size, partSize, index);
+            var written = new long[1];
+            var port = Integer.parseInt(words[3 + index]);
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    download(port, partName, length, out, written, traceId);
+                    break;
+                } catch (IOException e) {
+                    if (attempt >= options.partRetries) throw e;
+                    var reply = request(controller, Protocol.LOAD_PART_TOKEN + " " + name + " " + index);
+                    if (!reply.startsWith(Protocol.LOAD_FROM_TOKEN + " ")) throw new ReplyException(reply);
+                    port = Integer.parseInt(reply.split(" ")[1]);
+                }
+            }
+        }
+        return size;
+    }
+
+    /*
+     * 从一个 Dstore 读取 size 个字节，跳过前 written[0] 个已经写出的字节，其余写到 out 并累加到 written[0]。
+     * Dstore 拒绝（过载或没有该文件）时直接关闭连接，读到连接结束抛出 EOFException，由调用者换一个 Dstore。
+     * 写 out 时的异常是调用者的错误，包装成 UncheckedIOException，不触发失败转移。
+     */
+    private void download(int port, String name, long size, OutputStream out, long[] written, String traceId) throws IOException {
+        var connection = borrow(port);
+        try {
+            connection.send(Protocol.LOAD_DATA_TOKEN + " " + name + " " + traceId);
+            var buffer = new byte[64 * 1024];
+            long position = 0;
+            while (position < size) {
+                int n = connection.read(buffer, 0, (int) Math.min(buffer.length, size - position));
+                write(out, buffer, n, position, written);
+                position += n;
+            }
+        } catch (IOException e) {
+            connection.close();
+            // 复用的连接可能已经被 Dstore 因空闲关闭，换一个新的连接重试一次
+            if (connection.reused && !connection.received) {
+                download(port, name, size, out, written, traceId);
+                return;
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+        release(connection);
+    }
+
+    // 写出从文件的 position 位置开始的 n 个字节，跳过已经写出的部分
+    private static void write(OutputStream out, byte[] buffer, int n, long position, long[] written) {
+        var skip = (int) Math.max(0, Math.min(n, written[0] - position));
+        if (skip >= n) return;
+        try {
+            out.write(buffer, skip, n - skip);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        written[0] += n - skip;
+    }
+
+    // ---------------------------------------------------------------- 连接池
+
+    private interface Exchange<T> {
+        T run(Connection connection) throws IOException, InterruptedException;
+    }
+
+    private interface Operation<T> {
+        T run() throws IOException, InterruptedException;
+    }
+
+    /*
+     * 借用一个 Controller 连接完成一个操作。错误回复之后连接仍然可以复用；其他异常（断开、超时）时连接中可能还有
+     * 迟到的回复，关闭连接。复用的连接在收到任何回复之前失败时，换一个新的连接重试一次。
+     */
+    private <T> T withController(Exchange<T> exchange) throws IOException, InterruptedException {
+        controllerPermits.acquire();
+        try {
+            var connection = borrow(controllerPort);
+            try {
+                var result = exchange.run(connection);
+                release(connection);
+                return result;
+            } catch (ReplyException e) {
+                release(connection);
+                throw e;
+            } catch (IOException e) {
+                connection.close();
+                if (!connection.reused || connection.received) throw e;
+            } catch (InterruptedException | RuntimeException e) {
+                connection.close();
+                throw e;
+            }
+            connection = new Connection(options.host, controllerPort, options.timeout);
+            try {
+                var result = exchange.run(connection);
+                release(connection);
+                return result;
+            } catch (ReplyException e) {
+                release(connection);
+                throw e;
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                connection.close();
+                throw e;
+            }
+        } finally {
+            controllerPermits.release();
+        }
+    }
+
+    // 发送一个请求并读取回复；回复 BUSY 时等待建议的时间后重新发送
+    private String request(Connection connection, String message) throws IOException, InterruptedException {
+        var deadline = System.currentTimeMillis() + options.retryTimeout;
+        while (true) {
+            connection.send(message);
+            var reply = connection.readLine();
+            if (!reply.startsWith(Protocol.BUSY_TOKEN + " ") || System.currentTimeMillis() >= deadline) return reply;
+            Thread.sleep(retryAfter(reply));
+        }
+    }
+
+    private Connection borrow(int port) throws IOException {
+        if (closed) throw new IOException("client closed");
+        var connections = idle.get(port);
+        if (connections != null) {
+            Connection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                if (System.currentTimeMillis() - connection.lastUsed < options.idleTimeout) {
+                    connection.reused = true;
+                    connection.received = false;
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+        return new Connection(options.host, port, options.timeout);
+    }
+
+    private void release(Connection connection) {
+        var connections = idle.computeIfAbsent(connection.port, k -> new ConcurrentLinkedDeque<>());
+        var maxIdle = connection.port == controllerPort ? options.maxControllerConnections : options.maxIdlePerDstore;
+        if (closed || connections.size() >= maxIdle) {
+            connection.close();
+            return;
+        }
+        connection.lastUsed = System.currentTimeMillis();
+        connections.addFirst(connection);
+    }
+
+    private <T> CompletableFuture<T> async(Operation<T> operation) {
+        var future = new CompletableFuture<T>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(operation.run());
+                } catch (UncheckedIOException e) {
+                    future.completeExceptionally(e.getCause());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            future.completeExceptionally(new IOException("client closed", e));
+        }
+        return future;
+    }
+
+    private static long retryAfter(String busyReply) {
+        try {
+            return Math.max(1, Long.parseLong(busyReply.split(" ")[1]));
+        } catch (RuntimeException e) {
+            return 100;
+        }
+    }
+
+    // 一个连接：带缓冲的输入输出，按行读取回复时不会多读走后面的文件数据
+    private static class Connection {
+        final int port;
+        final Socket socket;
+        final BufferedInputStream in;
+        final BufferedOutputStream out;
+        long lastUsed;
+        // 是否从池中取出（可能已经被对方关闭），以及这次借用之后是否收到过数据
+        boolean reused;
+        boolean received;
+
+        Connection(InetAddress host, int port, int timeout) throws IOException {
+            this.port = port;
+            this.socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), timeout);
+                socket.setSoTimeout(timeout);
+                socket.setTcpNoDelay(true);
+                in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+                out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        void send(String message) throws IOException {
+            out.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        String readLine() throws IOException {
+            var line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) throw new EOFException("connection to " + port + " closed");
+                received = true;
+                if (b != '\r') line.write(b);
+            }
+            return line.toString(StandardCharsets.UTF_8);
+        }
+
+        int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = in.read(buffer, offset, length);
+            if (n == -1) throw new EOFException("connection to " + port + " closed");
+            received = true;
+            return n;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -2,30 +2,101 @@ package org.example;
 
 
 import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FileInfo {
-    public String size;
+    // 估计 LOAD 速率的时间窗口（毫秒）
+    private final static long LOAD_RATE_WINDOW = Long.getLong("fds.hot.window", 10000);
 
-    // 文件状态（3 态枚举）
-    public FileStatus status;
+    // 文件大小（字节）
+    public long size;
+
+    // 文件状态（3 态枚举），由确认和超时的回调修改
+    public volatile FileStatus status;
     // 存储哪些 Dstore 节点曾经被用来加载该文件。loadHistory 是一个 HashSet 集合，用于存储加载该文件的 Dstore 节点的端口号。
     public HashSet<Integer> loadHistory;
     // 存储当前保存该文件的 Dstore 节点
     public CopyOnWriteArraySet<Integer> dstoresSavingFiles;
-    // 文件存储操作的同步器、在文件开始存储时创建
-    public CountDownLatch storeLatch;
-    // 删除操作的同步器、在文件开始删除时创建
-    public CountDownLatch removeLatch;
+    // 等待存储确认的操作、在文件开始存储时创建
+    public PendingAcks storeAcks;
+    // 发出 STORE_TO 的时间（System.nanoTime），用于统计各 Dstore 的确认耗时
+    public long storeStartTime;
+    // 等待删除确认的操作、在文件开始删除时创建
+    public PendingAcks removeAcks;
+    // 纠删码模式下的数据分片数量 k，为 0 表示普通的多副本模式
+    public int dataFragments;
+    // 纠删码模式下的校验分片数量 m
+    public int parityFragments;
+    // 纠删码模式下每个 Dstore 保存的分片编号，键为 Dstore 端口号、值为分片编号
+    public ConcurrentHashMap<Integer, Integer> fragmentLocations;
+    // 纠删码模式下，负责编码的 Dstore 确认收到放置计划（EC_STORE_ACK）时完成，之后才让客户端上传
+    public final CompletableFuture<Void> encodePlanAcked = new CompletableFuture<>();
+    // 分段上传的每段大小，为 0 表示整个文件作为一个对象保存
+    public long partSize;
+    // 分段上传的文件每一段保存在哪些 Dstore 上，键为段编号
+    public ConcurrentHashMap<Integer, CopyOnWriteArraySet<Integer>> partLocations;
+    // 最近的 LOAD 速率
+    public final DecayingRate loadRate = new DecayingRate(LOAD_RATE_WINDOW);
+    // 热点文件在 R 个副本之外的额外副本数量，文件冷却后在再平衡时逐步收回
+    public final AtomicInteger extraReplicas = new AtomicInteger();
+    // 正在存储时，分配了该文件、还没有确认的 Dstore（计入它们的 DstoreLoad.assignedBytes），存储结束后为 null
+    public volatile Set<Integer> assignedDstores;
+    // 最近一次 STORE 或 REMOVE 的追踪编号，以及等待各个 Dstore 确认的 JFR 事件
+    public volatile String traceId;
+    public volatile Tracing.AckPhases storeAckPhases = Tracing.AckPhases.NONE;
+    public volatile Tracing.AckPhases removeAckPhases = Tracing.AckPhases.NONE;
 
-    public FileInfo(String size) {
+    public FileInfo(long size) {
         this.size = size;
         this.status = FileStatus.STORE_IN_PROGRESS;
         this.loadHistory = new HashSet<>();
         this.dstoresSavingFiles = new CopyOnWriteArraySet<>();
-        this.storeLatch = new CountDownLatch(0);
-        this.removeLatch = new CountDownLatch(0);
+        this.storeAcks = new PendingAcks(0);
+        this.removeAcks = new PendingAcks(0);
+        this.fragmentLocations = new ConcurrentHashMap<>();
+        this.partLocations = new ConcurrentHashMap<>();
+    }
+
+    // 是否以纠删码方式存储
+    public boolean isErasureCoded() {
+        return dataFragments > 0;
+    }
+
+    // 是否分段上传
+    public boolean isMultipart() {
+        return partSize > 0;
+    }
+
+    // 分段上传的段数量
+    public int parts() {
+        return Multipart.partCount(size, partSize);
+    }
+
+    // dstorePort 上是否还保存着该文件的某一段
+    public boolean holdsAnyPart(int dstorePort) {
+        for (var locations : partLocations.values()) {
+            if (locations.contains(dstorePort)) return true;
+        }
+        return false;
+    }
+
+    // 纠删码模式下的分片总数 k + m
+    public int totalFragments() {
+        return dataFragments + parityFragments;
+    }
+
+    // 按 "端口:分片编号" 的格式列出所有分片的位置，用于 EC_LOAD、EC_REPAIR 命令
+    public String fragmentLocationsToString() {
+        var s = new StringBuilder();
+        for (var entry : fragmentLocations.entrySet()) {
+            if (!s.isEmpty()) s.append(" ");
+            s.append(entry.getKey()).append(":").append(entry.getValue());
+        }
+        return s.toString();
     }
 
     @Override
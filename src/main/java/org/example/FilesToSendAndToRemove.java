@@ -1,5 +1,6 @@
 package org.example;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class FilesToSendAndToRemove {
@@ -12,4 +13,53 @@ public class FilesToSendAndToRemove {
         this.filesToSendList = filesToSendList;
         this.filesToRemoveList = filesToRemoveList;
     }
+
+    /*
+     * 构建 REBALANCE 命令：REBALANCE 发送文件数量 文件名1 目标数量 端口1 端口2 ... 删除文件数量 删除文件1 删除文件2 ...
+     * 与 Dstore.parseSendFilesAndRemoveFiles 互为逆操作
+     */
+    public String toMessage() {
+        return appendPlan(new StringBuilder(Protocol.REBALANCE_TOKEN)).toString();
+    }
+
+    /*
+     * 构建分块的再平衡命令：REBALANCE_CHUNK 轮次 序号 发送文件数量 ...，其余部分与 REBALANCE 相同
+     */
+    public String toChunkMessage(long round, int seq) {
+        var message = new StringBuilder(Protocol.REBALANCE_CHUNK_TOKEN);
+        message.append(" ").append(round).append(" ").append(seq);
+        return appendPlan(message).toString();
+    }
+
+    /*
+     * 把计划拆分成多个块，每块最多包含 chunkSize 个要发送或删除的文件
+     */
+    public List<FilesToSendAndToRemove> chunks(int chunkSize) {
+        var chunks = new ArrayList<FilesToSendAndToRemove>();
+        for (int i = 0; i < filesToSendList.size(); i += chunkSize) {
+            chunks.add(new FilesToSendAndToRemove(
+                    filesToSendList.subList(i, Math.min(i + chunkSize, filesToSendList.size())), new ArrayList<>()));
+        }
+        for (int i = 0; i < filesToRemoveList.size(); i += chunkSize) {
+            chunks.add(new FilesToSendAndToRemove(new ArrayList<>(),
+                    filesToRemoveList.subList(i, Math.min(i + chunkSize, filesToRemoveList.size()))));
+        }
+        return chunks;
+    }
+
+    private StringBuilder appendPlan(StringBuilder message) {
+        message.append(" ").append(filesToSendList.size());
+        for (var fileToSend : filesToSendList) {
+            message.append(" ").append(fileToSend.fileName);
+            message.append(" ").append(fileToSend.dstores.size());
+            for (var ds : fileToSend.dstores) {
+                message.append(" ").append(ds);
+            }
+        }
+        message.append(" ").append(filesToRemoveList.size());
+        for (var fileToRemove : filesToRemoveList) {
+            message.append(" ").append(fileToRemove);
+        }
+        return message;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,119 @@
+package org.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Dstore 的文件清单，带有版本号（generation），用于增量同步：
+ *   每次添加或删除文件，generation 加一，并在变更记录中记下这次变化；
+ *   Controller 在 LIST 中带上它上次看到的 epoch 和 generation，Dstore 只需要返回之后的变化。
+ * epoch 在每次启动时随机生成，Controller 记录的 epoch 不同（Dstore 重启）、
+ * 或者需要的变化已经不在变更记录中时，返回完整的文件列表。
+ */
+public class Inventory implements Iterable<String> {
+    public final long epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final Set<String> files = ConcurrentHashMap.newKeySet();
+    // 变更记录，最多保留 maxChanges 条
+    private final ArrayDeque<Change> changes = new ArrayDeque<>();
+    private final int maxChanges;
+    private long generation;
+
+    public Inventory(int maxChanges) {
+        this.maxChanges = maxChanges;
+    }
+
+    public synchronized boolean add(String file) {
+        if (!files.add(file)) return false;
+        record(file, true);
+        return true;
+    }
+
+    public synchronized boolean remove(String file) {
+        if (!files.remove(file)) return false;
+        record(file, false);
+        return true;
+    }
+
+    public boolean contains(String file) {
+        return files.contains(file);
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return files.iterator();
+    }
+
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /*
+     * 返回 (epoch, generation) 之后的变化；无法提供增量时返回完整的文件列表。
+     * 每一项以 "+" （存在）或 "-" （已删除）开头，同一个文件只保留最后一次变化。
+     */
+    public synchronized Listing listSince(long sinceEpoch, long sinceGeneration) {
+        var oldest = changes.isEmpty() ? generation : changes.peekFirst().generation - 1;
+        if (sinceEpoch != epoch || sinceGeneration < oldest || sinceGeneration > generation) {
+            var entries = new ArrayList<String>(files.size());
+            for (var file : files) {
+                entries.add("+" + file);
+            }
+            return new Listing(true, generation, entries);
+        }
+        var latest = new LinkedHashMap<String, Boolean>();
+        for (var change : changes) {
+            if (change.generation > sinceGeneration) {
+                latest.remove(change.file);
+                latest.put(change.file, change.added);
+            }
+        }
+        var entries = new ArrayList<String>(latest.size());
+        for (var file : latest.keySet()) {
+            entries.add((latest.get(file) ? "+" : "-") + file);
+        }
+        return new Listing(false, generation, entries);
+    }
+
+    private void record(String file, boolean added) {
+        generation++;
+        changes.addLast(new Change(generation, file, added));
+        if (changes.size() > maxChanges) changes.pollFirst();
+    }
+
+    private static class Change {
+        final long generation;
+        final String file;
+        final boolean added;
+
+        Change(long generation, String file, boolean added) {
+            this.generation = generation;
+            this.file = file;
+            this.added = added;
+        }
+    }
+
+    /*
+     * 一次 LIST 的结果：full 为 true 时 entries 是完整的文件列表，否则是 generation 之前的变化
+     */
+    public static class Listing {
+        public final boolean full;
+        public final long generation;
+        public final List<String> entries;
+
+        public Listing(boolean full, long generation, List<String> entries) {
+            this.full = full;
+            this.generation = generation;
+            this.entries = entries;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package org.example;
+
+// Controller 已经同步到的某个 Dstore 的文件清单版本（Inventory 的 epoch 和 generation），下一次 LIST 只获取之后的变化
+public class InventoryCursor {
+    public final long epoch;
+    public final long generation;
+
+    public InventoryCursor(long epoch, long generation) {
+        this.epoch = epoch;
+        this.generation = generation;
+    }
+}
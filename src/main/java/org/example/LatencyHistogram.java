@@ -0,0 +1,81 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * 低开销的延迟直方图：以微秒为单位记录，按 2 的幂分段，每段再分成 8 个子桶（相对误差约 6%），
+ * 记录时只需要一次原子自增，不加锁，可以在请求处理的热路径上使用。
+ */
+public class LatencyHistogram {
+    // 小于 16 微秒的值每个值一个桶
+    private final static int LINEAR_BUCKETS = 16;
+    // 每个 2 的幂分段中的子桶数量
+    private final static int SUB_BUCKETS = 8;
+    private final static int BUCKET_COUNT = LINEAR_BUCKETS + (63 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    // 记录一次耗时，startNanos 为 System.nanoTime() 得到的开始时间
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    // 记录一个以微秒为单位的值
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+        buckets.incrementAndGet(bucketIndex(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long m;
+        while (micros > (m = max.get()) && !max.compareAndSet(m, micros)) {
+            // 重试直到更新成功
+        }
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    // 总耗时（微秒）
+    public long sum() {
+        return sum.get();
+    }
+
+    // 最大耗时（微秒）
+    public long max() {
+        return max.get();
+    }
+
+    // 第 p（0 ~ 1）分位的耗时（微秒），取所在桶的中点
+    public long percentile(double p) {
+        long total = count.get();
+        if (total == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                return Math.min((lowerBound(i) + lowerBound(i + 1)) / 2, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int bucketIndex(long micros) {
+        if (micros < LINEAR_BUCKETS) return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >> (exponent - 3)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowerBound(int index) {
+        if (index < LINEAR_BUCKETS) return index;
+        int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int sub = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - 3);
+    }
+}
@@ -1,13 +0,0 @@
-package org.example;
-
-import java.net.Socket;
-
-class LoadOrReLoadRequest {
-    public Socket socket;
-    public String command;
-
-    public LoadOrReLoadRequest(Socket socket, String command) {
-        this.socket = socket;
-        this.command = command;
-    }
-}
\ No newline at end of file
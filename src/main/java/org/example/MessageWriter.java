@@ -0,0 +1,186 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * 每个连接一个的消息写入器：Controller、Dstore 和 Router 发送的所有文本消息（一行一条）都经过它。
+ *   线程安全：多个线程可以同时向同一个连接发送消息（例如心跳、LIST 回复、REMOVE 和再平衡命令），消息不会交错
+ *   合并写入：同一时刻只有一个线程在写 socket，它写的时候其他线程的消息先追加到缓冲区，
+ *            写完后把缓冲区中积累的所有消息用一次 write 发出去，大量的小控制消息不需要每条一次系统调用
+ *   send 返回时消息已经写入 socket，调用者可以接着关闭连接，或者在同一个连接上写文件数据
+ *   一次 send 多条消息时，这些消息连续发出，中间不会插入其他线程的消息（例如分多行的 LIST 回复）
+ * 文件数据等原始字节由调用者直接写 socket 的输出流（这些连接上此时没有其他线程发送消息）。
+ *
+ * 写入器按 socket 保存在 writers 中；数量增长到 sweepAt 时清理已经关闭的连接，不需要在每个关闭连接的地方显式删除。
+ */
+public class MessageWriter {
+    private final static ConcurrentHashMap<Socket, MessageWriter> writers = new ConcurrentHashMap<>();
+    private static volatile int sweepAt = 1024;
+    // 已经进入缓冲区、还没有写入 socket 的消息数（所有连接）
+    private final static LongAdder queued = new LongAdder();
+    // 写完后保留的缓冲区的最大大小，偶尔很大的消息（例如 LIST 回复）不会让缓冲区一直占用内存
+    private final static int KEEP_BUFFER = 64 * 1024;
+    // 没有连接时使用的写入器，丢弃所有消息
+    private final static MessageWriter DISCARD = new MessageWriter(null);
+
+    static {
+        Metrics.gauge("send_queue_messages", queued::sum);
+        Metrics.gauge("message_writers", MessageWriter::writerCount);
+    }
+
+    private final Socket socket;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition written = lock.newCondition();
+    // 等待写出的消息，只在持有 lock 时访问
+    private byte[] buffer = new byte[256];
+    private int length;
+    private int bufferedMessages;
+    // 写完的缓冲区，交换后复用
+    private byte[] spare;
+    // 进入缓冲区的消息数和已经写出的消息数，用于等待自己的消息写出
+    private long enqueuedCount;
+    private long writtenCount;
+    // 是否有线程正在写 socket
+    private boolean flushing;
+    // 写入失败后不再发送，之后的消息直接丢弃（与原来忽略写入错误一致）
+    private boolean failed;
+
+    private MessageWriter(Socket socket) {
+        this.socket = socket;
+        this.failed = socket == null;
+    }
+
+    // 向 socket 发送一条消息
+    public static void send(Socket socket, String msg) {
+        of(socket).send(msg);
+    }
+
+    // 向 socket 连续发送多条消息
+    public static void send(Socket socket, List<String> msgs) {
+        of(socket).send(msgs);
+    }
+
+    // socket 对应的写入器，第一次使用时创建；socket 为 null（例如 Dstore 已经断开）时打印调用位置，消息丢弃
+    public static MessageWriter of(Socket socket) {
+        if (socket == null) {
+            new NullPointerException("socket is null, message dropped").printStackTrace();
+            return DISCARD;
+        }
+        var writer = writers.get(socket);
+        if (writer != null) return writer;
+        if (writers.size() >= sweepAt) sweep();
+        return writers.computeIfAbsent(socket, MessageWriter::new);
+    }
+
+    // 当前保存的写入器数量
+    static int writerCount() {
+        return writers.size();
+    }
+
+    // 去掉已经关闭的连接的写入器
+    private static void sweep() {
+        writers.values().removeIf(writer -> writer.socket.isClosed());
+        sweepAt = Math.max(1024, writers.size() * 2);
+    }
+
+    public void send(String msg) {
+        send(List.of(msg));
+    }
+
+    /*
+     * 连续发送多条消息，返回时消息已经写入 socket（或者连接已经失败）。
+     * 没有其他线程在写时由当前线程写；否则追加到缓冲区，等待正在写的线程在下一次写入时一起发出
+     */
+    public void send(List<String> msgs) {
+        var start = System.nanoTime();
+        var lines = new byte[msgs.size()][];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = (msgs.get(i) + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        lock.lock();
+        try {
+            if (failed) return;
+            for (var line : lines) {
+                append(line);
+            }
+            enqueuedCount += lines.length;
+            var sequence = enqueuedCount;
+            bufferedMessages += lines.length;
+            queued.add(lines.length);
+            if (flushing) {
+                while (writtenCount < sequence && !failed) {
+                    written.awaitUninterruptibly();
+                }
+            } else {
+                flush();
+            }
+        } finally {
+            lock.unlock();
+        }
+        Metrics.histogram("message_send").recordSince(start);
+    }
+
+    // 持有 lock 时调用：反复交换缓冲区并在锁外写出，直到缓冲区为空；写的期间到达的消息在下一轮一起写出
+    private void flush() {
+        flushing = true;
+        try {
+            while (length > 0 && !failed) {
+                var data = buffer;
+                var size = length;
+                var messages = bufferedMessages;
+                var upTo = enqueuedCount;
+                buffer = spare != null ? spare : new byte[256];
+                spare = null;
+                length = 0;
+                bufferedMessages = 0;
+
+                lock.unlock();
+                IOException error = null;
+                try {
+                    var out = socket.getOutputStream();
+                    out.write(data, 0, size);
+                    out.flush();
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    lock.lock();
+                }
+
+                if (data.length <= KEEP_BUFFER) spare = data;
+                writtenCount = upTo;
+                queued.add(-messages);
+                if (error != null) {
+                    // 连接已经断开：打印一次，丢弃缓冲区中剩下的消息
+                    error.printStackTrace();
+                    failed = true;
+                    queued.add(-bufferedMessages);
+                    length = 0;
+                    bufferedMessages = 0;
+                } else {
+                    Metrics.counter("messages_sent").add(messages);
+                    Metrics.counter("message_flushes").increment();
+                }
+                written.signalAll();
+            }
+        } finally {
+            flushing = false;
+        }
+    }
+
+    private void append(byte[] bytes) {
+        if (length + bytes.length > buffer.length) {
+            var grown = new byte[Math.max(buffer.length * 2, length + bytes.length)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+}
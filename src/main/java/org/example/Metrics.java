@@ -0,0 +1,188 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/*
+ * 进程内的指标注册表（Controller 和 Dstore 各自一份）：
+ *   histogram：延迟直方图（STORE、LOAD、REMOVE、LIST、再平衡各阶段、队列等待时间等）
+ *   counter：累加计数（收发字节数等）
+ *   gauge：瞬时值（活跃连接数、线程数、队列长度等）
+ *
+ * 通过 JMX（org.example:type=Metrics,component=组件名）以及纯文本的 HTTP 接口（-Dfds.metrics.port=端口，路径 /metrics）导出。
+ */
+public class Metrics {
+    // 指标名前缀，即组件名（controller / dstore）
+    private static String component = "fds";
+
+    private final static ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final static ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final static ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    // 导出的分位数
+    private final static double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    public static void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /*
+     * 启动指标导出：注册 JMX MBean，如果设置了 fds.metrics.port 则启动 HTTP 接口
+     */
+    public static void start(String componentName) {
+        component = componentName;
+        var threads = ManagementFactory.getThreadMXBean();
+        gauge("jvm_threads", threads::getThreadCount);
+        gauge("jvm_heap_used_bytes", () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+
+        try {
+            var name = new ObjectName("org.example:type=Metrics,component=" + componentName);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+
+        var port = Integer.getInteger("fds.metrics.port");
+        if (port != null) {
+            try {
+                var server = HttpServer.create(new InetSocketAddress(port), 0);
+                server.createContext("/metrics", exchange -> {
+                    var body = scrape().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (var out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                server.start();
+                System.out.println("metrics endpoint: http://localhost:" + port + "/metrics");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /*
+     * 所有指标的当前值，键为指标名（直方图展开为 _p50、_p99、_count 等）
+     */
+    public static Map<String, Long> snapshot() {
+        var result = new TreeMap<String, Long>();
+        for (var entry : histograms.entrySet()) {
+            var h = entry.getValue();
+            for (var q : QUANTILES) {
+                result.put(entry.getKey() + "_us_p" + quantileSuffix(q), h.percentile(q));
+            }
+            result.put(entry.getKey() + "_us_max", h.max());
+            result.put(entry.getKey() + "_us_sum", h.sum());
+            result.put(entry.getKey() + "_count", h.count());
+        }
+        for (var entry : counters.entrySet()) {
+            result.put(entry.getKey() + "_total", entry.getValue().sum());
+        }
+        for (var entry : gauges.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+        return result;
+    }
+
+    /*
+     * 纯文本格式的指标（兼容 Prometheus 文本格式）
+     */
+    public static String scrape() {
+        var s = new StringBuilder();
+        for (var name : new TreeMap<>(histograms).keySet()) {
+            var h = histograms.get(name);
+            var metric = component + "_" + name + "_latency_us";
+            s.append("# TYPE ").append(metric).append(" summary\n");
+            for (var q : QUANTILES) {
+                s.append(metric).append("{quantile=\"").append(q).append("\"} ").append(h.percentile(q)).append("\n");
+            }
+            s.append(metric).append("_sum ").append(h.sum()).append("\n");
+            s.append(metric).append("_count ").append(h.count()).append("\n");
+            s.append(metric).append("_max ").append(h.max()).append("\n");
+        }
+        for (var name : new TreeMap<>(counters).keySet()) {
+            var metric = component + "_" + name + "_total";
+            s.append("# TYPE ").append(metric).append(" counter\n");
+            s.append(metric).append(" ").append(counters.get(name).sum()).append("\n");
+        }
+        for (var name : new TreeMap<>(gauges).keySet()) {
+            var metric = component + "_" + name;
+            s.append("# TYPE ").append(metric).append(" gauge\n");
+            s.append(metric).append(" ").append(gauges.get(name).getAsLong()).append("\n");
+        }
+        return s.toString();
+    }
+
+    // 0.5 -> 50，0.99 -> 99，0.999 -> 999
+    private static String quantileSuffix(double q) {
+        var digits = String.valueOf(q).substring(2);
+        return digits.length() == 1 ? digits + "0" : digits;
+    }
+
+    /*
+     * 以 JMX 动态 MBean 的形式导出 snapshot() 中的所有指标，每个指标一个只读属性
+     */
+    private static class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            var value = snapshot().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            var snapshot = snapshot();
+            var list = new AttributeList();
+            for (var attribute : attributes) {
+                if (snapshot.containsKey(attribute)) list.add(new Attribute(attribute, snapshot.get(attribute)));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("read only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            var attributes = new ArrayList<MBeanAttributeInfo>();
+            for (var name : snapshot().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "File distribution system metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.example;
+
+/*
+ * 分段上传：大文件按 partSize 切分成多个段，每个段作为一个普通文件（文件名@段编号）保存在 R 个 Dstore 上，
+ * 不同的段可以并行上传到不同的 Dstore。所有段的所有副本确认后，文件才对 LIST 和 LOAD 可见。
+ */
+public class Multipart {
+    public final static String PART_SEPARATOR = "@";
+
+    // 段的数量（空文件也有一段）
+    public static int partCount(long size, long partSize) {
+        return (int) (size <= 0 ? 1 : (size - 1) / partSize + 1);
+    }
+
+    // 大小不为负、段大小为正，并且段数不超过 maxParts
+    public static boolean validParts(long size, long partSize, int maxParts) {
+        return size >= 0 && partSize > 0 && (size <= 0 ? 1 : (size - 1) / partSize + 1) <= maxParts;
+    }
+
+    // 第 index 段的大小（最后一段可能较小）
+    public static long partSize(long size, long partSize, int index) {
+        return Math.min(partSize, size - index * partSize);
+    }
+
+    // 段文件名：文件名@段编号
+    public static String partName(String fileName, int index) {
+        return fileName + PART_SEPARATOR + index;
+    }
+
+    // 判断是否为段文件名
+    public static boolean isPartName(String name) {
+        int i = name.lastIndexOf(PART_SEPARATOR);
+        if (i <= 0 || i == name.length() - 1) return false;
+        for (int c = i + 1; c < name.length(); c++) {
+            if (!Character.isDigit(name.charAt(c))) return false;
+        }
+        return true;
+    }
+
+    // 从段文件名中取出原文件名
+    public static String fileOfPart(String name) {
+        return name.substring(0, name.lastIndexOf(PART_SEPARATOR));
+    }
+
+    // 从段文件名中取出段编号
+    public static int indexOfPart(String name) {
+        return Integer.parseInt(name.substring(name.lastIndexOf(PART_SEPARATOR) + 1));
+    }
+}
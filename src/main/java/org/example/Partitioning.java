@@ -0,0 +1,29 @@
+package org.example;
+
+/*
+ * 命名空间分区：按文件名的哈希把文件分给 n 个 Controller，每个 Controller 只管理自己分区中的文件，
+ * 元数据的吞吐量随 Controller 的数量增加。Dstore 加入所有分区，客户端（或 Router）把请求发给文件所在分区的 Controller。
+ * 纠删码的分片和分段上传的段按原文件名计算，与文件在同一个分区。
+ */
+public class Partitioning {
+    // 文件所在的分区编号
+    public static int partitionOf(String name, int partitions) {
+        if (partitions <= 1) return 0;
+        if (ReedSolomon.isFragmentName(name)) {
+            name = ReedSolomon.fileOfFragment(name);
+        } else if (Multipart.isPartName(name)) {
+            name = Multipart.fileOfPart(name);
+        }
+        return (name.hashCode() & 0x7fffffff) % partitions;
+    }
+
+    // 解析 Controller 端口列表：端口0,端口1,...（按分区编号排列）
+    public static int[] parsePorts(String ports) {
+        var parts = ports.split(",");
+        var result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    }
+}
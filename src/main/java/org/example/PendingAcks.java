@@ -0,0 +1,60 @@
+package org.example;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * 等待若干个 Dstore 确认（STORE_ACK、FRAGMENT_ACK、REMOVE_ACK）的操作。
+ *
+ * 收到确认的线程直接调用 ack(来源)：第 quorumAcks 个确认完成 quorum，最后一个确认完成 future；
+ * 来源是发送确认的 Dstore 端口号（分段上传时是段和端口号），同一来源的重复确认只计一次。
+ * 超时由 TimerWheel 触发，尚未完成的 quorum 和 future 以 TimeoutException 结束。
+ * 等待期间不占用任何线程，完成后的处理注册在 future / quorum 上。
+ */
+public class PendingAcks {
+    // 达到法定数量的确认
+    public final CompletableFuture<Void> quorum = new CompletableFuture<>();
+    // 收到全部确认
+    public final CompletableFuture<Void> future = new CompletableFuture<>();
+    private final int acks;
+    private final int quorumAcks;
+    private final Set<Object> acked = ConcurrentHashMap.newKeySet();
+
+    public PendingAcks(int acks) {
+        this(acks, acks);
+    }
+
+    public PendingAcks(int acks, int quorumAcks) {
+        this.acks = acks;
+        this.quorumAcks = Math.min(quorumAcks, acks);
+        if (this.quorumAcks <= 0) quorum.complete(null);
+        if (acks <= 0) future.complete(null);
+    }
+
+    // 收到 source 的一个确认，重复的确认忽略
+    public void ack(Object source) {
+        if (!acked.add(source)) return;
+        var n = acked.size();
+        if (n >= quorumAcks) quorum.complete(null);
+        if (n >= acks) future.complete(null);
+    }
+
+    // 已收到的确认数量
+    public int acked() {
+        return acked.size();
+    }
+
+    // timeoutMillis 毫秒内没有收到全部确认则以超时结束，完成后自动取消超时任务
+    public PendingAcks withTimeout(TimerWheel timerWheel, long timeoutMillis) {
+        if (future.isDone()) return this;
+        var timeout = timerWheel.schedule(() -> {
+            // 先结束 quorum，保证 future 的回调能看到写入是否已经成功
+            quorum.completeExceptionally(new TimeoutException());
+            future.completeExceptionally(new TimeoutException());
+        }, timeoutMillis);
+        future.whenComplete((ignored, e) -> timeout.cancel());
+        return this;
+    }
+}
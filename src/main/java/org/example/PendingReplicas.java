@@ -0,0 +1,17 @@
+package org.example;
+
+import java.util.Set;
+
+// 再平衡中某个文件等待确认的新副本：目标 Dstore 以及对应的确认
+class PendingReplicas {
+    public Set<Integer> targets;
+    public PendingAcks acks;
+    // 每个新副本从发出计划到确认的耗时（JFR 事件）
+    public Tracing.AckPhases phases;
+
+    public PendingReplicas(Set<Integer> targets, PendingAcks acks, Tracing.AckPhases phases) {
+        this.targets = targets;
+        this.acks = acks;
+        this.phases = phases;
+    }
+}
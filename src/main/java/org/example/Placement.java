@@ -0,0 +1,259 @@
+package org.example;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * 文件放置策略：为新文件选择存储的 Dstore，以及计算再平衡计划。
+ * 这里只根据传入的文件信息和 Dstore 列表进行计算，不发送任何消息，便于单独测量和复用。
+ */
+public class Placement {
+
+    /*
+     * 统计每个 Dstore 当前保存的文件列表，键为 Dstore 端口号
+     */
+    public static HashMap<Integer, HashSet<String>> filesInDstore(Map<String, FileInfo> fileInfoMap) {
+        var filesInDstore = new HashMap<Integer, HashSet<String>>();
+        for (var fileName : fileInfoMap.keySet()) {
+            var fileInfo = fileInfoMap.get(fileName);
+            for (var dp : fileInfo.dstoresSavingFiles) {
+                filesInDstore.computeIfAbsent(dp, k -> new HashSet<>()).add(fileName);
+            }
+        }
+        return filesInDstore;
+    }
+
+    /*
+     * 为新文件选择 count 个用于存储的 Dstore：在还有空间（写入 bytes 个字节后热层至少剩下 minFreeBytes）的结点中，
+     * 选择估计使用字节数最少的，使各个结点的磁盘均匀地填满。空间不足的结点不参与，选不够时返回的结点少于 count 个
+     */
+    public static List<Integer> selectDstoresForStore(Collection<Integer> dstores, FileInfo fileInfo, long bytes, int count,
+                                                      Map<Integer, DstoreLoad> loads, long minFreeBytes) {
+        var candidates = new ArrayList<Integer>();
+        for (var dstorePort : dstores) {
+            if (fileInfo.dstoresSavingFiles.contains(dstorePort)) continue;
+            var load = loads.get(dstorePort);
+            if (load == null || load.hasRoom(bytes, minFreeBytes)) candidates.add(dstorePort);
+        }
+        candidates.sort(Comparator.comparingLong(dstorePort -> usedBytes(dstorePort, loads)));
+        return new ArrayList<>(candidates.subList(0, Math.min(count, candidates.size())));
+    }
+
+    // 估计的已经使用的字节数，没有报告过的 Dstore 为 0
+    public static long usedBytes(Integer dstorePort, Map<Integer, DstoreLoad> loads) {
+        var load = loads.get(dstorePort);
+        return load == null ? 0 : load.usedBytes();
+    }
+
+    // 文件在某个 Dstore 上占用的字节数：一个副本、一个纠删码分片，或者分段上传文件保存在该结点上的段
+    public static long bytesOn(FileInfo fileInfo, int dstorePort) {
+        if (fileInfo.isErasureCoded()) return ReedSolomon.shardSize(fileInfo.size, fileInfo.dataFragments);
+        if (!fileInfo.isMultipart()) return fileInfo.size;
+        long bytes = 0;
+        for (var part : fileInfo.partLocations.entrySet()) {
+            if (part.getValue().contains(dstorePort)) bytes += Multipart.partSize(fileInfo.size, fileInfo.partSize, part.getKey());
+        }
+        return bytes;
+    }
+
+    // 文件的所有副本（分片、段）应该占用的总字节数
+    private static long expectedBytes(FileInfo fileInfo, int replicaNumber) {
+        if (fileInfo.status == null) return 0;
+        if (fileInfo.isErasureCoded()) {
+            return (long) ReedSolomon.shardSize(fileInfo.size, fileInfo.dataFragments) * fileInfo.totalFragments();
+        }
+        return fileInfo.size * (replicaNumber + (fileInfo.isMultipart() ? 0 : fileInfo.extraReplicas.get()));
+    }
+
+    /*
+     * 计算再平衡计划：每个 Dstore 需要发送给其他 Dstore 的文件和需要删除的文件。
+     * 按字节数平衡：每个 Dstore 应保存的字节数为所有副本的总字节数 / 结点数量，超过 (1 + tolerance) 倍的结点把文件移到
+     * 移入后仍不超过平均值的结点，补齐副本时优先选择字节数最少的结点；热层剩余空间不足 minFreeBytes 的结点不接收文件。
+     * 只在 filesInDstore 和文件副本位置的快照上计算，不修改 FileInfo：副本的变化要等新的副本确认后才由 Controller 逐个文件提交。
+     * 正在存储或删除的文件不参与计划；返回的计划中只包含有任务的 Dstore。
+     */
+    public static LinkedHashMap<Integer, FilesToSendAndToRemove> planRebalance(Map<String, FileInfo> fileInfoMap,
+                                                                              HashMap<Integer, HashSet<String>> filesInDstore,
+                                                                              Collection<Integer> dstores, int replicaNumber,
+                                                                              Map<Integer, DstoreLoad> loads, long minFreeBytes,
+                                                                              double tolerance) {
+        var plans = new LinkedHashMap<Integer, FilesToSendAndToRemove>();
+
+        // 没有文件的 Dstore 也要能接收文件（补齐副本、分担负载）
+        for (var dstore : dstores) {
+            filesInDstore.computeIfAbsent(dstore, k -> new HashSet<>());
+        }
+
+        // 每个 Dstore 当前保存的字节数，计划过程中随着移动、复制和删除更新
+        var bytesInDstore = new HashMap<Integer, Long>();
+        for (var dstore : dstores) {
+            long bytes = 0;
+            for (var file : filesInDstore.get(dstore)) {
+                var fileInfo = fileInfoMap.get(file);
+                if (fileInfo != null && fileInfo.status != null) bytes += bytesOn(fileInfo, dstore);
+            }
+            bytesInDstore.put(dstore, bytes);
+        }
+        // 计划中复制到每个 Dstore 的字节数，用于检查剩余空间
+        var incomingBytes = new HashMap<Integer, Long>();
+
+        // 每个 Dstore 应保存的字节数：所有文件的所有副本（包括热点文件的额外副本）平均分到每个结点
+        long totalBytes = 0;
+        for (var fileInfo : fileInfoMap.values()) {
+            totalBytes += expectedBytes(fileInfo, replicaNumber);
+        }
+        var average = (double) totalBytes / dstores.size();
+        var high = average * (1 + tolerance);
+        // 每个文件副本位置的快照，计划过程中只修改快照
+        var replicas = new HashMap<String, HashSet<Integer>>();
+
+        // 遍历每个 Dstore，检查并调整它们的文件分布
+        for (var dstore : dstores) {
+            // 用来记录需要从该 Dstore 发送到其他 Dstore 的文件及目标 Dstore 列表
+            var filesToSendToDstore = new HashMap<String, HashSet<Integer>>();
+            // 用来记录需要从该 Dstore 删除的文件列表
+            var filesToRemoveInDstore = new HashSet<String>();
+
+            // 遍历当前 Dstore 保存的文件（复制一份，遍历过程中会修改 filesInDstore），检查是否需要移动或删除
+            for (var file : new ArrayList<>(filesInDstore.get(dstore))) {
+                var fileInfo = fileInfoMap.get(file);
+                if (fileInfo == null) continue;
+
+                // Case 1: （文件异常、不要了）如果文件未完成存储或删除，则从该 Dstore 删除该文件
+                if (fileInfo.status == null) {
+                    filesToRemoveInDstore.add(file);
+                    filesInDstore.get(dstore).remove(file);
+                    continue;
+                }
+
+                // 正在存储或删除的文件由对应的操作负责，不参与再平衡
+                if (fileInfo.status != FileStatus.STORE_COMPLETE) continue;
+
+                // 纠删码文件的分片由 Controller.repairFragments 单独修复，分段上传的文件按段保存，都不参与副本的平衡
+                if (fileInfo.isErasureCoded() || fileInfo.isMultipart()) continue;
+
+                var fileReplicas = replicas.computeIfAbsent(file, k -> new HashSet<>(fileInfo.dstoresSavingFiles));
+                // 该文件需要的副本数：R 个，热点文件再加上额外的副本
+                var target = replicaNumber + fileInfo.extraReplicas.get();
+                var size = fileInfo.size;
+
+                // Case 2: （文件过多，删除）如果该文件的副本数量超过了所需的副本数，则删除该文件的副本
+                if (fileReplicas.size() > target) {
+                    filesToRemoveInDstore.add(file);
+                    fileReplicas.remove(dstore);
+                    filesInDstore.get(dstore).remove(file);
+                    bytesInDstore.merge(dstore, -size, Long::sum);
+                    continue;
+                }
+
+                // Case 3: （dstore 字节数过多，不过遍历的文件副本数量刚刚达标），则移动文件
+                if (bytesInDstore.get(dstore) > high && fileReplicas.size() == target) {
+                    // 接收的 Dstore：字节数最少、移入后不超过平均值、有足够的空间，找不到则保留该副本
+                    for (var anotherDstore : byBytes(dstores, bytesInDstore)) {
+                        if (anotherDstore.equals(dstore) || fileReplicas.contains(anotherDstore)) continue;
+                        if (bytesInDstore.get(anotherDstore) + size > average) break;
+                        if (!hasRoom(anotherDstore, size, loads, incomingBytes, minFreeBytes)) continue;
+
+                        // 添加到发送列表中，新的副本确认后再删除本结点的副本
+                        filesToSendToDstore.computeIfAbsent(file, k -> new HashSet<>()).add(anotherDstore);
+                        addToPlan(file, anotherDstore, size, fileReplicas, filesInDstore, bytesInDstore, incomingBytes);
+                        filesToRemoveInDstore.add(file);
+                        fileReplicas.remove(dstore);
+                        filesInDstore.get(dstore).remove(file);
+                        bytesInDstore.merge(dstore, -size, Long::sum);
+                        break;
+                    }
+                    continue;
+                }
+
+                // Case 4 / 5: 如果文件副本数不足，则复制到字节数最少、有足够空间的其他 Dstore
+                if (fileReplicas.size() < target) {
+                    for (var anotherDstore : byBytes(dstores, bytesInDstore)) {
+                        if (fileReplicas.size() >= target) break;
+                        if (fileReplicas.contains(anotherDstore)) continue;
+                        if (!hasRoom(anotherDstore, size, loads, incomingBytes, minFreeBytes)) continue;
+
+                        filesToSendToDstore.computeIfAbsent(file, k -> new HashSet<>()).add(anotherDstore);
+                        addToPlan(file, anotherDstore, size, fileReplicas, filesInDstore, bytesInDstore, incomingBytes);
+                    }
+                }
+            }
+
+            // 如果有文件需要发送或删除，则加入计划
+            if (!filesToSendToDstore.isEmpty() || !filesToRemoveInDstore.isEmpty()) {
+                var filesToSendList = new ArrayList<FileToSend>();
+                for (var file : filesToSendToDstore.keySet()) {
+                    var targets = new ArrayList<String>();
+                    for (var ds : filesToSendToDstore.get(file)) {
+                        targets.add(String.valueOf(ds));
+                    }
+                    filesToSendList.add(new FileToSend(file, targets));
+                }
+                plans.put(dstore, new FilesToSendAndToRemove(filesToSendList, new ArrayList<>(filesToRemoveInDstore)));
+            }
+        }
+        return plans;
+    }
+
+    // 按当前（计划中的）字节数从少到多排列的 Dstore
+    private static List<Integer> byBytes(Collection<Integer> dstores, HashMap<Integer, Long> bytesInDstore) {
+        var sorted = new ArrayList<>(dstores);
+        sorted.sort(Comparator.comparingLong(bytesInDstore::get));
+        return sorted;
+    }
+
+    // 接收计划中的文件之后，热层是否还有 minFreeBytes 的空间
+    private static boolean hasRoom(Integer dstore, long size, Map<Integer, DstoreLoad> loads,
+                                   HashMap<Integer, Long> incomingBytes, long minFreeBytes) {
+        var load = loads.get(dstore);
+        return load == null || load.hasRoom(incomingBytes.getOrDefault(dstore, 0L) + size, minFreeBytes);
+    }
+
+    // 在快照中记录一个新副本
+    private static void addToPlan(String file, Integer dstore, long size, HashSet<Integer> fileReplicas,
+                                  HashMap<Integer, HashSet<String>> filesInDstore, HashMap<Integer, Long> bytesInDstore,
+                                  HashMap<Integer, Long> incomingBytes) {
+        fileReplicas.add(dstore);
+        filesInDstore.get(dstore).add(file);
+        bytesInDstore.merge(dstore, size, Long::sum);
+        incomingBytes.merge(dstore, size, Long::sum);
+    }
+
+    /*
+     * 为 LOAD 选择一个副本，candidates 为可以使用的 Dstore，没有候选时返回 null。
+     *   first：原来的做法，直接使用第一个副本，热点文件的读取全部落在同一个结点上
+     *   least：选择估计负载最低的副本
+     *   p2c：随机选两个副本，取负载较低的一个（power of two choices），避免所有请求同时涌向同一个"最空闲"的结点
+     * 负载相同时选择 STORE 确认耗时较短的结点
+     */
+    public static Integer selectReplicaForLoad(List<Integer> candidates, Map<Integer, DstoreLoad> loads, String policy) {
+        if (candidates.isEmpty()) return null;
+        if (candidates.size() == 1 || policy.equals("first")) return candidates.get(0);
+        if (policy.equals("least")) {
+            var best = candidates.get(0);
+            for (var dstore : candidates) {
+                if (compareLoad(dstore, best, loads) < 0) best = dstore;
+            }
+            return best;
+        }
+        var random = ThreadLocalRandom.current();
+        int i = random.nextInt(candidates.size());
+        // 在其余的副本中再随机选一个，保证两个候选不同
+        int j = random.nextInt(candidates.size() - 1);
+        if (j >= i) j++;
+        var a = candidates.get(i);
+        var b = candidates.get(j);
+        return compareLoad(b, a, loads) < 0 ? b : a;
+    }
+
+    private static int compareLoad(Integer a, Integer b, Map<Integer, DstoreLoad> loads) {
+        var loadA = loads.get(a);
+        var loadB = loads.get(b);
+        int outstandingA = loadA == null ? 0 : loadA.outstanding();
+        int outstandingB = loadB == null ? 0 : loadB.outstanding();
+        if (outstandingA != outstandingB) return Integer.compare(outstandingA, outstandingB);
+        double latencyA = loadA == null ? 0 : loadA.latencyMicros;
+        double latencyB = loadB == null ? 0 : loadB.latencyMicros;
+        return Double.compare(latencyA, latencyB);
+    }
+}
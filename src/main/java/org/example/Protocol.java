@@ -20,6 +20,30 @@ public class Protocol {
     public final static String ERROR_FILE_ALREADY_EXISTS_TOKEN = "ERROR_FILE_ALREADY_EXISTS";
     public final static String ERROR_NOT_ENOUGH_DSTORES_TOKEN = "ERROR_NOT_ENOUGH_DSTORES";
     public final static String ERROR_LOAD_TOKEN = "ERROR_LOAD";
+    // 文件名中包含分片、分段使用的分隔符（#、@），或者为空
+    public final static String ERROR_INVALID_FILE_NAME_TOKEN = "ERROR_INVALID_FILE_NAME";
+    // 管理命令（REBALANCE_RATE）来自不受信任的地址
+    public final static String ERROR_NOT_PERMITTED_TOKEN = "ERROR_NOT_PERMITTED";
+    // 纠删码：通知负责编码的 Dstore 分片的放置位置 EC_STORE 文件名 大小 k m 端口0 ... 端口(k+m-1)，
+    // Dstore 记录计划后回复 EC_STORE_ACK 文件名，Controller 收到后才向客户端发送 STORE_TO
+    public final static String EC_STORE_TOKEN = "EC_STORE";
+    // 纠删码：通知 Dstore 分片位置以便还原文件 EC_LOAD 文件名 大小 k m 端口:分片编号 ...
+    public final static String EC_LOAD_TOKEN = "EC_LOAD";
+    // 纠删码：通知 Dstore 重建丢失的分片 EC_REPAIR 文件名 大小 k m 分片编号 端口:分片编号 ...
+    public final static String EC_REPAIR_TOKEN = "EC_REPAIR";
+    // 再平衡带宽 REBALANCE_RATE 字节/秒：客户端发给 Controller 时设置集群总带宽（回复 ACK），Controller 发给 Dstore 时为该结点的份额，0 表示不限速
+    // 这是管理命令，Controller 和 Router 只接受本机和 -Dfds.admin.hosts 中的地址发来的 REBALANCE_RATE，其他地址回复 ERROR_NOT_PERMITTED
+    public final static String REBALANCE_RATE_TOKEN = "REBALANCE_RATE";
+    // 分段上传 STORE_MULTIPART 文件名 大小 每段大小，回复 STORE_PARTS_TO 段数 R 段0的R个端口 段1的R个端口 ...
+    // 客户端向 Dstore 发送 STORE 文件名@段编号 段大小 上传每一段，全部确认后回复 STORE_COMPLETE
+    public final static String STORE_MULTIPART_TOKEN = "STORE_MULTIPART";
+    public final static String STORE_PARTS_TO_TOKEN = "STORE_PARTS_TO";
+    // STORE_MULTIPART 的大小为负、段大小不为正，或者段数超过 Controller 的上限 -Dfds.multipart.maxParts
+    public final static String ERROR_INVALID_PART_SIZE_TOKEN = "ERROR_INVALID_PART_SIZE";
+    // 加载分段上传的文件：LOAD 的回复 LOAD_PARTS 大小 每段大小 段0的端口 段1的端口 ...，客户端向 Dstore 发送 LOAD_DATA 文件名@段编号
+    public final static String LOAD_PARTS_TOKEN = "LOAD_PARTS";
+    // 只加载一段 LOAD_PART 文件名 段编号，回复 LOAD_FROM 端口 段大小
+    public final static String LOAD_PART_TOKEN = "LOAD_PART";
 
     // Dstores发送的消息
     public final static String ACK_TOKEN = "ACK";
@@ -28,4 +52,28 @@ public class Protocol {
     public final static String JOIN_TOKEN = "JOIN";
     public final static String REBALANCE_STORE_TOKEN = "REBALANCE_STORE";
     public final static String REBALANCE_COMPLETE_TOKEN = "REBALANCE_COMPLETE";
+    // 再平衡收到的副本已保存 REBALANCE_STORE_ACK 文件名
+    public final static String REBALANCE_STORE_ACK_TOKEN = "REBALANCE_STORE_ACK";
+    // 再平衡时批量发送打包保存的小文件 REBALANCE_STORE_BATCH 文件数量 文件名1 大小1 文件名2 大小2 ...，收到 ACK 后依次发送内容
+    public final static String REBALANCE_STORE_BATCH_TOKEN = "REBALANCE_STORE_BATCH";
+    // 分块的再平衡命令 REBALANCE_CHUNK 轮次 序号 <与 REBALANCE 相同的计划>，Dstore 处理完一块后回复 REBALANCE_CHUNK_ACK 轮次 序号
+    public final static String REBALANCE_CHUNK_TOKEN = "REBALANCE_CHUNK";
+    public final static String REBALANCE_CHUNK_ACK_TOKEN = "REBALANCE_CHUNK_ACK";
+    // 增量文件清单：LIST <epoch> <generation> 的回复，LIST_BEGIN <epoch> <generation> FULL|DELTA，若干行 LIST_CHUNK +文件 -文件，最后 LIST_END
+    public final static String LIST_BEGIN_TOKEN = "LIST_BEGIN";
+    public final static String LIST_CHUNK_TOKEN = "LIST_CHUNK";
+    public final static String LIST_END_TOKEN = "LIST_END";
+    public final static String LIST_FULL = "FULL";
+    public final static String LIST_DELTA = "DELTA";
+    // 纠删码：Dstore 之间传输分片 STORE_FRAGMENT 文件名#分片编号 分片大小
+    public final static String STORE_FRAGMENT_TOKEN = "STORE_FRAGMENT";
+    // 纠删码：已经记录分片的放置计划 EC_STORE_ACK 文件名
+    public final static String EC_STORE_ACK_TOKEN = "EC_STORE_ACK";
+    // 纠删码：分片保存完成 FRAGMENT_ACK 文件名 分片编号
+    public final static String FRAGMENT_ACK_TOKEN = "FRAGMENT_ACK";
+    // Dstore 的连接或传输数量达到上限 BUSY 建议的重试等待时间（毫秒），随后关闭连接
+    // LOAD_DATA 的回复是原始的文件数据，超过上限时不回复 BUSY，直接关闭连接
+    public final static String BUSY_TOKEN = "BUSY";
+    // 心跳 HEARTBEAT 当前连接数 热层已用字节数 热层剩余空间 冷层已用字节数 冷层剩余空间
+    public final static String HEARTBEAT_TOKEN = "HEARTBEAT";
 }
\ No newline at end of file
@@ -0,0 +1,256 @@
+package org.example;
+
+/*
+ * Reed-Solomon 纠删码（k 个数据分片 + m 个校验分片），基于 GF(2^8) 有限域运算。
+ *
+ * 编码矩阵由范德蒙矩阵变换为系统形式（前 k 行为单位矩阵），因此前 k 个分片就是原始数据本身，
+ * 任意 k 个分片都可以还原出完整的文件内容。
+ *
+ * 分片在 Dstore 上以 "文件名#分片编号" 的形式保存，例如 a.txt#0、a.txt#5。
+ */
+public class ReedSolomon {
+    // 分片文件名中文件名与分片编号之间的分隔符
+    public final static String FRAGMENT_SEPARATOR = "#";
+
+    // GF(2^8) 的本原多项式 x^8 + x^4 + x^3 + x^2 + 1
+    private final static int GENERATOR_POLYNOMIAL = 0x11D;
+    // 指数表（长度翻倍，省去乘法中的取模）和对数表
+    private final static byte[] EXP_TABLE = new byte[512];
+    private final static int[] LOG_TABLE = new int[256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP_TABLE[i] = (byte) x;
+            LOG_TABLE[x] = i;
+            x <<= 1;
+            if (x >= 256) x ^= GENERATOR_POLYNOMIAL;
+        }
+        for (int i = 255; i < EXP_TABLE.length; i++) {
+            EXP_TABLE[i] = EXP_TABLE[i - 255];
+        }
+    }
+
+    // 数据分片数量
+    private final int dataShards;
+    // 校验分片数量
+    private final int parityShards;
+    // 编码矩阵，(k + m) 行 k 列，前 k 行为单位矩阵
+    private final byte[][] matrix;
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards <= 0 || parityShards < 0 || dataShards + parityShards > 255) {
+            throw new IllegalArgumentException("invalid shard count: " + dataShards + "+" + parityShards);
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+
+        // 构造范德蒙矩阵，再乘以其前 k 行的逆矩阵，得到系统形式的编码矩阵
+        var vandermonde = new byte[dataShards + parityShards][dataShards];
+        for (int r = 0; r < vandermonde.length; r++) {
+            for (int c = 0; c < dataShards; c++) {
+                vandermonde[r][c] = power((byte) r, c);
+            }
+        }
+        var top = new byte[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    public int totalShards() {
+        return dataShards + parityShards;
+    }
+
+    /*
+     * 将文件内容切分成 k 个数据分片并计算 m 个校验分片，最后一个数据分片不足的部分补 0
+     */
+    public byte[][] encode(byte[] content) {
+        int shardSize = shardSize(content.length, dataShards);
+        var shards = new byte[totalShards()][shardSize];
+        for (int i = 0; i < dataShards; i++) {
+            int from = i * shardSize;
+            int length = Math.max(0, Math.min(shardSize, content.length - from));
+            if (length > 0) System.arraycopy(content, from, shards[i], 0, length);
+        }
+        for (int p = dataShards; p < totalShards(); p++) {
+            codeShard(matrix[p], shards, shards[p]);
+        }
+        return shards;
+    }
+
+    /*
+     * 根据至少 k 个存在的分片（缺失的分片为 null）还原出原始文件内容，size 为原始文件大小
+     */
+    public byte[] decode(byte[][] shards, long size) {
+        var dataShardsRecovered = recoverDataShards(shards);
+        var content = new byte[(int) size];
+        int shardSize = shardSize(size, dataShards);
+        for (int i = 0; i < dataShards; i++) {
+            int from = i * shardSize;
+            int length = (int) Math.max(0, Math.min(shardSize, size - from));
+            if (length > 0) System.arraycopy(dataShardsRecovered[i], 0, content, from, length);
+        }
+        return content;
+    }
+
+    /*
+     * 根据至少 k 个存在的分片，重新生成编号为 index 的分片（用于修复丢失的分片）
+     */
+    public byte[] rebuildShard(byte[][] shards, int index) {
+        var data = recoverDataShards(shards);
+        if (index < dataShards) return data[index];
+        var shard = new byte[data[0].length];
+        codeShard(matrix[index], data, shard);
+        return shard;
+    }
+
+    // 还原出全部 k 个数据分片
+    private byte[][] recoverDataShards(byte[][] shards) {
+        // 选出前 k 个存在的分片
+        var rows = new int[dataShards];
+        int found = 0;
+        for (int i = 0; i < shards.length && found < dataShards; i++) {
+            if (shards[i] != null) rows[found++] = i;
+        }
+        if (found < dataShards) {
+            throw new IllegalArgumentException("not enough shards: " + found + " < " + dataShards);
+        }
+
+        // 如果数据分片全部存在，无需解码
+        boolean allData = true;
+        for (int i = 0; i < dataShards; i++) {
+            if (rows[i] != i) {
+                allData = false;
+                break;
+            }
+        }
+        var data = new byte[dataShards][];
+        if (allData) {
+            System.arraycopy(shards, 0, data, 0, dataShards);
+            return data;
+        }
+
+        // 取出这 k 个分片对应的编码矩阵行，求逆后与这些分片相乘即可得到数据分片
+        var subMatrix = new byte[dataShards][];
+        var present = new byte[dataShards][];
+        for (int i = 0; i < dataShards; i++) {
+            subMatrix[i] = matrix[rows[i]];
+            present[i] = shards[rows[i]];
+        }
+        var decodeMatrix = invert(subMatrix);
+        int shardSize = present[0].length;
+        for (int i = 0; i < dataShards; i++) {
+            data[i] = new byte[shardSize];
+            codeShard(decodeMatrix[i], present, data[i]);
+        }
+        return data;
+    }
+
+    // output = Σ coefficients[i] * inputs[i]
+    private static void codeShard(byte[] coefficients, byte[][] inputs, byte[] output) {
+        for (int i = 0; i < coefficients.length; i++) {
+            int c = coefficients[i] & 0xFF;
+            if (c == 0) continue;
+            int logC = LOG_TABLE[c];
+            var input = inputs[i];
+            for (int b = 0; b < output.length; b++) {
+                int v = input[b] & 0xFF;
+                if (v != 0) output[b] ^= EXP_TABLE[logC + LOG_TABLE[v]];
+            }
+        }
+    }
+
+    private static byte mul(byte a, byte b) {
+        if (a == 0 || b == 0) return 0;
+        return EXP_TABLE[LOG_TABLE[a & 0xFF] + LOG_TABLE[b & 0xFF]];
+    }
+
+    private static byte div(byte a, byte b) {
+        if (b == 0) throw new ArithmeticException("divide by zero");
+        if (a == 0) return 0;
+        return EXP_TABLE[LOG_TABLE[a & 0xFF] - LOG_TABLE[b & 0xFF] + 255];
+    }
+
+    private static byte power(byte a, int n) {
+        if (n == 0) return 1;
+        if (a == 0) return 0;
+        return EXP_TABLE[(LOG_TABLE[a & 0xFF] * n) % 255];
+    }
+
+    private static byte[][] multiply(byte[][] a, byte[][] b) {
+        var result = new byte[a.length][b[0].length];
+        for (int r = 0; r < a.length; r++) {
+            for (int c = 0; c < b[0].length; c++) {
+                byte v = 0;
+                for (int i = 0; i < b.length; i++) {
+                    v ^= mul(a[r][i], b[i][c]);
+                }
+                result[r][c] = v;
+            }
+        }
+        return result;
+    }
+
+    // 高斯-若尔当消元求逆矩阵
+    private static byte[][] invert(byte[][] m) {
+        int n = m.length;
+        var work = new byte[n][2 * n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(m[r], 0, work[r], 0, n);
+            work[r][n + r] = 1;
+        }
+        for (int c = 0; c < n; c++) {
+            // 找到主元不为 0 的行，并交换到当前行
+            int pivot = c;
+            while (pivot < n && work[pivot][c] == 0) pivot++;
+            if (pivot == n) throw new IllegalArgumentException("matrix is singular");
+            var tmp = work[c];
+            work[c] = work[pivot];
+            work[pivot] = tmp;
+
+            // 主元归一
+            byte scale = work[c][c];
+            for (int i = 0; i < 2 * n; i++) work[c][i] = div(work[c][i], scale);
+
+            // 消去其他行的当前列
+            for (int r = 0; r < n; r++) {
+                if (r == c || work[r][c] == 0) continue;
+                byte factor = work[r][c];
+                for (int i = 0; i < 2 * n; i++) work[r][i] ^= mul(factor, work[c][i]);
+            }
+        }
+        var inverse = new byte[n][n];
+        for (int r = 0; r < n; r++) System.arraycopy(work[r], n, inverse[r], 0, n);
+        return inverse;
+    }
+
+    // 每个分片的大小（字节）
+    public static int shardSize(long size, int dataShards) {
+        return (int) ((size + dataShards - 1) / dataShards);
+    }
+
+    // 分片文件名：文件名#分片编号
+    public static String fragmentName(String fileName, int index) {
+        return fileName + FRAGMENT_SEPARATOR + index;
+    }
+
+    // 判断是否为分片文件名
+    public static boolean isFragmentName(String name) {
+        int i = name.lastIndexOf(FRAGMENT_SEPARATOR);
+        if (i <= 0 || i == name.length() - 1) return false;
+        for (int c = i + 1; c < name.length(); c++) {
+            if (!Character.isDigit(name.charAt(c))) return false;
+        }
+        return true;
+    }
+
+    // 从分片文件名中取出原文件名
+    public static String fileOfFragment(String name) {
+        return name.substring(0, name.lastIndexOf(FRAGMENT_SEPARATOR));
+    }
+
+    // 从分片文件名中取出分片编号
+    public static int indexOfFragment(String name) {
+        return Integer.parseInt(name.substring(name.lastIndexOf(FRAGMENT_SEPARATOR) + 1));
+    }
+}
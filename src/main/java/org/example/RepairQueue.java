@@ -0,0 +1,52 @@
+package org.example;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * 等待补齐副本的文件，剩余副本越少越先处理（只剩 1 个副本的文件最先），相同时按加入的顺序。
+ * 同一个文件在队列中只出现一次。
+ */
+public class RepairQueue {
+    private final PriorityBlockingQueue<Entry> queue = new PriorityBlockingQueue<>();
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private final AtomicLong sequence = new AtomicLong();
+
+    // 加入队列，replicas 为文件剩余的可用副本数量；文件已经在队列中时返回 false
+    public boolean offer(String file, int replicas) {
+        if (!queued.add(file)) return false;
+        queue.add(new Entry(file, replicas, sequence.incrementAndGet()));
+        return true;
+    }
+
+    // 取出优先级最高的文件，队列为空时阻塞
+    public String take() throws InterruptedException {
+        var entry = queue.take();
+        queued.remove(entry.file);
+        return entry.file;
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        final String file;
+        final int replicas;
+        final long sequence;
+
+        Entry(String file, int replicas, long sequence) {
+            this.file = file;
+            this.replicas = replicas;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (replicas != other.replicas) return Integer.compare(replicas, other.replicas);
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
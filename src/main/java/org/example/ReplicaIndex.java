@@ -0,0 +1,34 @@
+package org.example;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * 反向索引：每个 Dstore 保存了哪些文件，与 FileInfo.dstoresSavingFiles 同时维护。
+ * Dstore 断开时直接取出它的文件，不需要扫描全部文件。
+ * 索引中可能残留已经删除的文件，使用时以 FileInfo 为准。
+ */
+public class ReplicaIndex {
+    private final ConcurrentHashMap<Integer, Set<String>> filesByDstore = new ConcurrentHashMap<>();
+
+    public void add(int dstore, String file) {
+        filesByDstore.computeIfAbsent(dstore, k -> ConcurrentHashMap.newKeySet()).add(file);
+    }
+
+    public void remove(int dstore, String file) {
+        var files = filesByDstore.get(dstore);
+        if (files != null) files.remove(file);
+    }
+
+    // 删除并返回某个 Dstore 的全部文件
+    public Set<String> removeDstore(int dstore) {
+        var files = filesByDstore.remove(dstore);
+        return files == null ? Set.of() : files;
+    }
+
+    // 某个 Dstore 保存的文件数量
+    public int size(int dstore) {
+        var files = filesByDstore.get(dstore);
+        return files == null ? 0 : files.size();
+    }
+}
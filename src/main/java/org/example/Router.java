@@ -0,0 +1,185 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+
+/*
+ * 多个 Controller 分区部署时的路由：客户端连接 Router，与连接一个 Controller 相同。
+ *   带文件名的请求（STORE、STORE_MULTIPART、LOAD、RELOAD、LOAD_PART、REMOVE）转发给文件所在分区的 Controller，回复原样转回客户端；
+ *   LIST 发给所有分区，合并各分区的文件列表；REBALANCE_RATE 发给所有分区。
+ * Controller 看到的是 Router 的地址，因此管理命令（REBALANCE_RATE）在 Router 按客户端的地址检查，规则与 Controller 相同：
+ * 只接受本机和 -Dfds.admin.hosts 中的地址。
+ * Router 不保存文件的元数据，可以部署多个；客户端也可以按 Partitioning 直接连接对应分区的 Controller。
+ *
+ * java org.example.Router 端口 Controller端口0 Controller端口1 ...（按分区编号排列）
+ */
+public class Router {
+    private static int[] controllerPorts;
+    // 除本机以外，可以发送管理命令的客户端地址
+    private static Set<String> adminHosts = Set.of(System.getProperty("fds.admin.hosts", "").split(","));
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            throw new RuntimeException("wrong number of args");
+        }
+        var port = Integer.parseInt(args[0]);
+        controllerPorts = new int[args.length - 1];
+        for (int i = 1; i < args.length; i++) {
+            controllerPorts[i - 1] = Integer.parseInt(args[i]);
+        }
+        Metrics.start("router");
+        Metrics.gauge("partitions", () -> controllerPorts.length);
+
+        try (var serverSocket = new ServerSocket(port)) {
+            while (true) {
+                var client = serverSocket.accept();
+                Thread.ofVirtual().start(() -> new Session(client).run());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // 管理命令是否来自本机或 adminHosts 中的地址
+    static boolean isAdmin(InetAddress address) {
+        return address.isLoopbackAddress() || adminHosts.contains(address.getHostAddress());
+    }
+
+    /*
+     * 一个客户端连接：每个分区最多一个转发连接（回复由单独的线程转回客户端），
+     * 以及一个用于 LIST 等广播请求的连接（发送后同步读取回复，不与转发的回复混在一起）
+     */
+    private static class Session {
+        private final Socket client;
+        private final Socket[] routes = new Socket[controllerPorts.length];
+        private final Socket[] broadcasts = new Socket[controllerPorts.length];
+        private final BufferedReader[] broadcastReaders = new BufferedReader[controllerPorts.length];
+
+        Session(Socket client) {
+            this.client = client;
+        }
+
+        void run() {
+            try (var in = new BufferedReader(new InputStreamReader(client.getInputStream()))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    var tokens = line.split(" ");
+                    try {
+                        switch (tokens[0]) {
+                            case Protocol.LIST_TOKEN -> list();
+                            case Protocol.REBALANCE_RATE_TOKEN -> {
+                                if (isAdmin(client.getInetAddress())) {
+                                    MessageWriter.send(client, broadcastAll(line));
+                                } else {
+                                    Metrics.counter("admin_rejections").increment();
+                                    MessageWriter.send(client, Protocol.ERROR_NOT_PERMITTED_TOKEN);
+                                }
+                            }
+                            default -> forward(tokens.length > 1 ? Partitioning.partitionOf(tokens[1], routes.length) : 0, line);
+                        }
+                    } catch (IOException e) {
+                        // 分区的 Controller 连接不上：只有这个请求失败，客户端的其他请求仍然可以发给其他分区
+                        System.err.println("Partition unreachable for: " + line + " (" + e.getMessage() + ")");
+                        Metrics.counter("route_errors").increment();
+                        MessageWriter.send(client, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+                    }
+                }
+            } catch (IOException e) {
+                // 客户端断开
+            } finally {
+                close();
+            }
+        }
+
+        // 把请求转发给一个分区，第一次使用时建立连接并启动转回回复的线程
+        private void forward(int partition, String line) throws IOException {
+            var route = routes[partition];
+            if (route == null || route.isClosed()) {
+                var socket = new Socket(InetAddress.getLocalHost(), controllerPorts[partition]);
+                routes[partition] = route = socket;
+                Thread.ofVirtual().start(() -> relay(socket));
+            }
+            MessageWriter.send(route, line);
+            Metrics.counter("routed_requests").increment();
+        }
+
+        // 把一个分区的回复原样转回客户端
+        private void relay(Socket route) {
+            try (var in = new BufferedReader(new InputStreamReader(route.getInputStream()))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    MessageWriter.send(client, line);
+                }
+            } catch (IOException e) {
+                // 分区的 Controller 或客户端断开
+            } finally {
+                try {
+                    route.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        // 合并所有分区的文件列表；任何一个分区回复错误时把错误转回客户端
+        private void list() throws IOException {
+            var message = new StringBuilder(Protocol.LIST_TOKEN);
+            for (int partition = 0; partition < controllerPorts.length; partition++) {
+                var reply = broadcast(partition, Protocol.LIST_TOKEN);
+                if (reply == null || !(reply.equals(Protocol.LIST_TOKEN) || reply.startsWith(Protocol.LIST_TOKEN + " "))) {
+                    MessageWriter.send(client, reply == null ? Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN : reply);
+                    return;
+                }
+                message.append(reply, Protocol.LIST_TOKEN.length(), reply.length());
+            }
+            MessageWriter.send(client, message.toString());
+            Metrics.counter("list_requests").increment();
+        }
+
+        // 发给所有分区，返回最后一个分区的回复；有分区断开时返回 ERROR_NOT_ENOUGH_DSTORES
+        private String broadcastAll(String line) throws IOException {
+            String reply = null;
+            for (int partition = 0; partition < controllerPorts.length; partition++) {
+                reply = broadcast(partition, line);
+                if (reply == null) return Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN;
+            }
+            return reply;
+        }
+
+        // 通过广播连接发送请求并等待回复，分区断开时返回 null
+        private String broadcast(int partition, String line) throws IOException {
+            if (broadcasts[partition] == null) {
+                broadcasts[partition] = new Socket(InetAddress.getLocalHost(), controllerPorts[partition]);
+                broadcastReaders[partition] = new BufferedReader(new InputStreamReader(broadcasts[partition].getInputStream()));
+            }
+            MessageWriter.send(broadcasts[partition], line);
+            String reply;
+            try {
+                reply = broadcastReaders[partition].readLine();
+            } catch (IOException e) {
+                reply = null;
+            }
+            if (reply == null) {
+                broadcasts[partition].close();
+                broadcasts[partition] = null;
+            }
+            return reply;
+        }
+
+        private void close() {
+            for (var sockets : new Socket[][]{routes, broadcasts}) {
+                for (var socket : sockets) {
+                    if (socket == null) continue;
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * 小文件的打包存储：小文件追加写入较大的段文件（segment-编号.dat），内存中的索引记录每个文件所在的段、偏移和长度，
+ * 读取时按位置读（positional read），不需要为每个小文件创建、打开和删除一个文件。
+ *
+ * 删除只从索引中去掉（墓碑），并累计该段的垃圾字节数；后台压缩把垃圾比例超过 compactRatio 的段中仍然有效的文件
+ * 复制到当前的段，再删除旧的段文件。读取和追加持有读锁，删除段文件时持有写锁，保证不会读到已经关闭的段。
+ * Dstore 启动时会清空文件夹，因此索引只保存在内存中。
+ */
+public class SegmentStore {
+    private final File dir;
+    private final long segmentSize;
+    private final double compactRatio;
+    private final ConcurrentHashMap<String, Entry> index = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // 当前追加写入的段，只在 synchronized (this) 中修改
+    private Segment active;
+    private int nextSegmentId;
+
+    public SegmentStore(File dir, long segmentSize, double compactRatio) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.compactRatio = compactRatio;
+    }
+
+    // 保存一个小文件，同名的旧内容成为垃圾
+    public void put(String name, byte[] data) throws IOException {
+        lock.readLock().lock();
+        try {
+            var entry = append(data);
+            var old = index.put(name, entry);
+            if (old != null) old.segment.garbage.addAndGet(old.length);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // 读取一个小文件，不存在时返回 null
+    public byte[] get(String name) throws IOException {
+        lock.readLock().lock();
+        try {
+            var entry = index.get(name);
+            return entry == null ? null : read(entry);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // 删除一个小文件（墓碑），返回之前是否存在
+    public boolean remove(String name) {
+        var entry = index.remove(name);
+        if (entry == null) return false;
+        entry.segment.garbage.addAndGet(entry.length);
+        return true;
+    }
+
+    public boolean contains(String name) {
+        return index.containsKey(name);
+    }
+
+    // 保存该文件的段文件，用于持久化（fsync），不存在时返回 null
+    public FileChannel channelOf(String name) {
+        var entry = index.get(name);
+        return entry == null ? null : entry.segment.channel;
+    }
+
+    // 打包保存的文件数量
+    public int files() {
+        return index.size();
+    }
+
+    // 段文件数量
+    public int segments() {
+        return segments.size();
+    }
+
+    // 所有段中的垃圾字节数
+    public long garbageBytes() {
+        long garbage = 0;
+        for (var segment : segments.values()) {
+            garbage += segment.garbage.get();
+        }
+        return garbage;
+    }
+
+    /*
+     * 压缩垃圾比例超过 compactRatio 的段（当前追加的段除外），返回回收的段数量
+     */
+    public int compact() throws IOException {
+        int compacted = 0;
+        for (var segment : new ArrayList<>(segments.values())) {
+            long size;
+            synchronized (this) {
+                if (segment == active) continue;
+                size = segment.size;
+            }
+            if (segment.garbage.get() < size * compactRatio) continue;
+
+            // 把仍然有效的文件复制到当前的段；复制期间被删除或覆盖的文件，新写入的内容直接成为垃圾
+            var targets = new HashSet<Segment>();
+            lock.readLock().lock();
+            try {
+                for (var name : new ArrayList<>(index.keySet())) {
+                    var entry = index.get(name);
+                    if (entry == null || entry.segment != segment) continue;
+                    var moved = append(read(entry));
+                    targets.add(moved.segment);
+                    if (!index.replace(name, entry, moved)) moved.segment.garbage.addAndGet(moved.length);
+                }
+                // 复制的数据持久化之后才删除旧的段，已经确认过的文件不会因为压缩而丢失
+                for (var target : targets) {
+                    target.channel.force(true);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            // 等正在进行的读取结束后关闭并删除旧的段文件
+            lock.writeLock().lock();
+            try {
+                segments.remove(segment.id);
+                segment.channel.close();
+                if (!segment.file.delete()) System.err.println("Failed to delete segment: " + segment.file);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            compacted++;
+        }
+        return compacted;
+    }
+
+    // 在当前的段末尾预留空间并写入数据，当前的段写满时换一个新的段
+    private Entry append(byte[] data) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            if (active == null || (active.size > 0 && active.size + data.length > segmentSize)) {
+                var id = nextSegmentId++;
+                active = new Segment(id, new File(dir, "segment-" + id + ".dat"));
+                segments.put(id, active);
+            }
+            entry = new Entry(active, active.size, data.length);
+            active.size += data.length;
+        }
+        // 不同文件写入各自预留的位置，可以并发写入
+        var buffer = ByteBuffer.wrap(data);
+        var position = entry.offset;
+        while (buffer.hasRemaining()) {
+            position += entry.segment.channel.write(buffer, position);
+        }
+        return entry;
+    }
+
+    private byte[] read(Entry entry) throws IOException {
+        var buffer = ByteBuffer.allocate(entry.length);
+        var position = entry.offset;
+        while (buffer.hasRemaining()) {
+            var n = entry.segment.channel.read(buffer, position);
+            if (n < 0) throw new IOException("Unexpected end of segment " + entry.segment.file);
+            position += n;
+        }
+        return buffer.array();
+    }
+
+    // 一个文件在段中的位置
+    private static class Entry {
+        final Segment segment;
+        final long offset;
+        final int length;
+
+        Entry(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        // 已经分配的字节数，只在 synchronized (SegmentStore.this) 中读写
+        long size;
+        final AtomicLong garbage = new AtomicLong();
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+}
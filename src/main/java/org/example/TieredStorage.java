@@ -0,0 +1,203 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Dstore 的分层存储：热层是 Dstore 的文件夹（通常在 SSD 上），冷层是另一个文件夹（通常在容量大、较慢的磁盘上）。
+ *   超过 demoteAfter 没有被访问的文件降级到冷层，可以选择用 GZIP 压缩；
+ *   冷层的文件被加载时直接从冷层读取（需要时边读边解压），同时由 Dstore 在后台提升回热层。
+ *
+ * 降级和提升都先在目标层写好完整的临时文件再改名，然后才删除原来的文件，因此任何时刻至少有一层保存着完整的文件，
+ * 读取时先找热层再找冷层，不需要加锁。同一个文件的降级、提升和删除持有同一把锁。
+ * 新的副本按 Durability 的设置持久化之后，才删除原来的文件。
+ * 与 SegmentStore 一样，Dstore 启动时清空两个文件夹，冷层的索引只保存在内存中。
+ */
+public class TieredStorage {
+    // 临时文件的前缀，写完后改名为正式的文件名
+    private final static String TEMP_PREFIX = ".tier-";
+
+    private final File hotDir;
+    private final File coldDir;
+    private final long demoteAfter;
+    private final boolean compress;
+    private final Durability durability;
+    // 冷层中的文件
+    private final ConcurrentHashMap<String, Cold> coldFiles = new ConcurrentHashMap<>();
+    // 文件最近一次被访问（保存或加载）的时间，删除后去掉
+    private final ConcurrentHashMap<String, Long> lastAccess = new ConcurrentHashMap<>();
+    // 冷层文件的原始大小之和，以及在冷层上实际占用的字节数
+    private final AtomicLong coldBytes = new AtomicLong();
+    private final AtomicLong coldDiskBytes = new AtomicLong();
+    private final Object[] locks = new Object[64];
+
+    public TieredStorage(File hotDir, File coldDir, long demoteAfter, boolean compress, Durability durability) {
+        this.hotDir = hotDir;
+        this.coldDir = coldDir;
+        this.demoteAfter = demoteAfter;
+        this.compress = compress;
+        this.durability = durability;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    // 记录一次访问，返回文件当前是否在冷层
+    public boolean touch(String name) {
+        lastAccess.put(name, System.currentTimeMillis());
+        return coldFiles.containsKey(name);
+    }
+
+    public boolean isCold(String name) {
+        return coldFiles.containsKey(name);
+    }
+
+    // 打开文件用于读取：先找热层，再找冷层；两次之间文件可能刚好被提升，因此再找一次热层
+    public InputStream open(String name) throws IOException {
+        var hot = new File(hotDir, name);
+        try {
+            return new FileInputStream(hot);
+        } catch (FileNotFoundException e) {
+            var cold = coldFiles.get(name);
+            if (cold != null) {
+                try {
+                    return openCold(cold);
+                } catch (FileNotFoundException ignored) {
+                    // 已经提升回热层
+                }
+            }
+            return new FileInputStream(hot);
+        }
+    }
+
+    // 删除两层中的文件，返回之前是否存在
+    public boolean delete(String name) {
+        synchronized (lockFor(name)) {
+            lastAccess.remove(name);
+            var deleted = new File(hotDir, name).delete();
+            var cold = coldFiles.remove(name);
+            if (cold != null) {
+                forget(cold);
+                deleted |= cold.file.delete();
+            }
+            return deleted;
+        }
+    }
+
+    // 文件是否已经超过 demoteAfter 没有被访问
+    public boolean idle(String name) {
+        var accessed = lastAccess.putIfAbsent(name, System.currentTimeMillis());
+        return accessed != null && System.currentTimeMillis() - accessed >= demoteAfter;
+    }
+
+    /*
+     * 把热层的文件降级到冷层，返回是否降级；文件已经被删除、不再空闲或已经在冷层时不降级
+     */
+    public boolean demote(String name, long size) throws IOException {
+        synchronized (lockFor(name)) {
+            var hot = new File(hotDir, name);
+            if (!lastAccess.containsKey(name) || !idle(name) || coldFiles.containsKey(name) || !hot.exists()) return false;
+            var cold = new File(coldDir, compress ? name + ".gz" : name);
+            var temp = new File(coldDir, TEMP_PREFIX + cold.getName());
+            try (InputStream in = new FileInputStream(hot);
+                 OutputStream out = compress ? new GZIPOutputStream(new FileOutputStream(temp), 64 * 1024)
+                         : new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024)) {
+                in.transferTo(out);
+            }
+            Files.move(temp.toPath(), cold.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            durability.sync(cold.toPath());
+            var entry = new Cold(cold, compress, size, cold.length());
+            coldFiles.put(name, entry);
+            coldBytes.addAndGet(entry.size);
+            coldDiskBytes.addAndGet(entry.diskBytes);
+            if (!hot.delete()) System.err.println("Failed to delete demoted file: " + hot);
+            return true;
+        }
+    }
+
+    /*
+     * 把冷层的文件提升回热层，返回是否提升
+     */
+    public boolean promote(String name) throws IOException {
+        synchronized (lockFor(name)) {
+            var cold = coldFiles.get(name);
+            if (cold == null) return false;
+            var temp = new File(hotDir, TEMP_PREFIX + name);
+            try (var in = openCold(cold)) {
+                Files.copy(in, temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(temp.toPath(), new File(hotDir, name).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            durability.sync(new File(hotDir, name).toPath());
+            coldFiles.remove(name);
+            forget(cold);
+            if (!cold.file.delete()) System.err.println("Failed to delete promoted file: " + cold.file);
+            return true;
+        }
+    }
+
+    // 冷层的文件数量
+    public int coldFiles() {
+        return coldFiles.size();
+    }
+
+    // 冷层文件的原始大小之和
+    public long coldBytes() {
+        return coldBytes.get();
+    }
+
+    // 冷层文件在磁盘上占用的字节数（压缩后）
+    public long coldDiskBytes() {
+        return coldDiskBytes.get();
+    }
+
+    // 两层所在磁盘的剩余空间
+    public long hotFreeBytes() {
+        return hotDir.getUsableSpace();
+    }
+
+    public long coldFreeBytes() {
+        return coldDir.getUsableSpace();
+    }
+
+    private InputStream openCold(Cold cold) throws IOException {
+        var in = new FileInputStream(cold.file);
+        return cold.compressed ? new GZIPInputStream(in, 64 * 1024) : new BufferedInputStream(in, 64 * 1024);
+    }
+
+    private void forget(Cold cold) {
+        coldBytes.addAndGet(-cold.size);
+        coldDiskBytes.addAndGet(-cold.diskBytes);
+    }
+
+    private Object lockFor(String name) {
+        return locks[(name.hashCode() & 0x7fffffff) % locks.length];
+    }
+
+    // 冷层中的一个文件
+    private static class Cold {
+        final File file;
+        final boolean compressed;
+        final long size;
+        final long diskBytes;
+
+        Cold(File file, boolean compressed, long size, long diskBytes) {
+            this.file = file;
+            this.compressed = compressed;
+            this.size = size;
+            this.diskBytes = diskBytes;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * 哈希时间轮（hashed timing wheel），所有的超时共用一个线程。
+ *
+ * 时间轮有 wheelSize 个槽，每 tickMillis 毫秒前进一格；超时任务按到期时间放入对应的槽，
+ * 超过一圈的任务记录还需要转几圈。添加和取消都是 O(1)，每次前进只检查当前槽中的任务，
+ * 因此几万个同时等待的操作也只需要一个线程，精度为一个 tick。
+ *
+ * 到期的任务交给 executor 执行（默认每个任务一个虚拟线程）：任务中的回调可能发送消息、等待 socket，
+ * 不会推迟同一个 tick 中其他任务的到期，时间轮线程只负责按到期时间顺序提交任务。
+ */
+public class TimerWheel {
+    private final long tickMillis;
+    private final ArrayList<ArrayList<Timeout>> wheel;
+    private final Executor executor;
+    private final int mask;
+    // 新加入的任务先放在这里，由时间轮线程在下一次前进时放入对应的槽
+    private final ConcurrentLinkedQueue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    // 等待中的任务数量
+    private final AtomicInteger pending = new AtomicInteger();
+    private final long startTime = System.nanoTime();
+    private long tick;
+
+    public TimerWheel(String name, long tickMillis, int wheelSize) {
+        this(name, tickMillis, wheelSize, Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    public TimerWheel(String name, long tickMillis, int wheelSize, Executor executor) {
+        // 槽的数量取 2 的幂，方便用位运算取模
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickMillis = tickMillis;
+        this.wheel = new ArrayList<>(size);
+        this.mask = size - 1;
+        this.executor = executor;
+        for (int i = 0; i < size; i++) {
+            wheel.add(new ArrayList<>());
+        }
+        Thread.ofPlatform().daemon().name(name).start(this::run);
+    }
+
+    /*
+     * delayMillis 毫秒后执行 task，返回的 Timeout 可以用来取消
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        var timeout = new Timeout(task, System.nanoTime() + delayMillis * 1_000_000);
+        pending.incrementAndGet();
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    // 等待中（未到期且未取消）的任务数量
+    public int size() {
+        return pending.get();
+    }
+
+    private void run() {
+        while (true) {
+            // 等到下一个 tick 的时间点
+            var deadline = startTime + (tick + 1) * tickMillis * 1_000_000;
+            var sleep = deadline - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep / 1_000_000, (int) (sleep % 1_000_000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            transferNewTimeouts();
+            expire(wheel.get((int) (tick & mask)));
+            tick++;
+        }
+    }
+
+    private void transferNewTimeouts() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.state.get() != Timeout.WAITING) continue;
+            // 到期时间对应的 tick，已经过期的任务放在当前槽中立即执行
+            var expireTick = Math.max(tick, (timeout.deadline - startTime) / (tickMillis * 1_000_000));
+            timeout.remainingRounds = (expireTick - tick) / wheel.size();
+            wheel.get((int) (expireTick & mask)).add(timeout);
+        }
+    }
+
+    private void expire(ArrayList<Timeout> bucket) {
+        for (Iterator<Timeout> it = bucket.iterator(); it.hasNext(); ) {
+            var timeout = it.next();
+            if (timeout.state.get() != Timeout.WAITING) {
+                it.remove();
+            } else if (timeout.remainingRounds <= 0) {
+                it.remove();
+                if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+                    pending.decrementAndGet();
+                    try {
+                        executor.execute(() -> runTask(timeout.task));
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+
+    private static void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * 一个等待中的超时任务
+     */
+    public class Timeout {
+        private final static int WAITING = 0;
+        private final static int CANCELLED = 1;
+        private final static int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        // 还需要转几圈才到期，只由时间轮线程访问
+        private long remainingRounds;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // 取消任务，任务已经执行或已经取消时返回 false
+        public boolean cancel() {
+            if (state.compareAndSet(WAITING, CANCELLED)) {
+                pending.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
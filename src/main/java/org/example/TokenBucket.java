@@ -0,0 +1,51 @@
+package org.example;
+
+/*
+ * 令牌桶限速器：每秒补充 rate 个令牌（字节），最多积累 1 秒的令牌。
+ *
+ * acquire 先扣除令牌（允许暂时为负），再睡眠到欠下的令牌补齐为止，
+ * 因此多个线程同时传输时按到达顺序分摊带宽。rate 为 0 表示不限速，可以随时修改。
+ */
+public class TokenBucket {
+    private long rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    public TokenBucket(long rate) {
+        this.rate = rate;
+        this.tokens = rate;
+    }
+
+    public synchronized long rate() {
+        return rate;
+    }
+
+    public synchronized void setRate(long rate) {
+        if (this.rate == rate) return;
+        refill();
+        this.rate = rate;
+        tokens = Math.min(tokens, rate);
+    }
+
+    // 取得 permits 个令牌，不够时阻塞等待
+    public void acquire(long permits) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            if (rate <= 0) return;
+            refill();
+            tokens -= permits;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens * 1_000_000_000L / rate);
+        }
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        }
+    }
+
+    private void refill() {
+        var now = System.nanoTime();
+        if (rate > 0) {
+            tokens = Math.min(rate, tokens + (double) (now - lastRefill) * rate / 1_000_000_000L);
+        }
+        lastRefill = now;
+    }
+}
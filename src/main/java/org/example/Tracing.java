@@ -0,0 +1,158 @@
+package org.example;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * 基于 JFR（Java Flight Recorder）的操作追踪：Controller 记录每个操作的各个阶段，Dstore 记录每次接收、发送和持久化，
+ * 同一个操作的事件带有相同的追踪编号（traceId），可以在 JMC 中按 traceId 过滤，看出时间花在排队、等待确认、磁盘还是网络上。
+ *   开启：java -XX:StartFlightRecording:filename=fds.jfr ...（也可以用 jcmd <pid> JFR.start 随时开启）
+ *   查看：jfr print --events org.example.ControllerPhase,org.example.DstoreTransfer fds.jfr
+ * 没有开启记录时事件的 begin/commit 几乎没有开销。
+ *
+ * 追踪编号在协议中作为可选的最后一个参数传递，旧的客户端不发送时由 Controller 生成：
+ *   客户端 -> Controller：STORE 文件名 大小 [traceId]、STORE_MULTIPART 文件名 大小 每段大小 [traceId]、LOAD/RELOAD/REMOVE 文件名 [traceId]
+ *   客户端 -> Dstore：STORE 文件名 大小 [traceId]、LOAD_DATA 文件名 [traceId]
+ *   Controller -> Dstore：REMOVE 文件名 [traceId]
+ *   Dstore -> Dstore：REBALANCE_STORE 文件名 大小 [traceId]、REBALANCE_STORE_BATCH ... [traceId]
+ * 再平衡的追踪编号由 Controller 端口和轮次得出（rebalance-端口-轮次），Dstore 从 REBALANCE_CHUNK 中得到同一个编号。
+ */
+public class Tracing {
+    private final static EventType CONTROLLER_PHASE = EventType.getEventType(ControllerPhase.class);
+
+    @Name("org.example.ControllerPhase")
+    @Label("Controller Phase")
+    @Description("Controller 处理一个操作的一个阶段，持续时间为该阶段的耗时")
+    @Category({"File Distribution System", "Controller"})
+    @StackTrace(false)
+    public static class ControllerPhase extends Event {
+        @Label("Trace Id")
+        public String traceId;
+        // STORE、STORE_MULTIPART、LOAD、REMOVE、REBALANCE、REPAIR
+        @Label("Operation")
+        public String operation;
+        // STORE：store_to（选择结点并发送 STORE_TO）、ack（从 STORE_TO 到该 Dstore 确认）、complete（整个操作，到回复客户端为止）
+        // LOAD：queue（在文件的请求队列中等待）、load_from；REMOVE：ack、complete
+        // REBALANCE：list、plan、dispatch（把计划发送给一个 Dstore）、ack（一个新副本确认）、complete；REPAIR：ack
+        // 超时结束的 complete 阶段记为 timeout
+        @Label("Phase")
+        public String phase;
+        @Label("File")
+        public String file;
+        @Label("Dstore")
+        public int dstore;
+    }
+
+    @Name("org.example.DstoreTransfer")
+    @Label("Dstore Transfer")
+    @Description("Dstore 接收、发送、持久化或删除一个文件，持续时间为该操作的耗时")
+    @Category({"File Distribution System", "Dstore"})
+    @StackTrace(false)
+    public static class DstoreTransfer extends Event {
+        @Label("Trace Id")
+        public String traceId;
+        // 收到的命令（STORE、REBALANCE_STORE、STORE_FRAGMENT、REBALANCE_STORE_BATCH、LOAD_DATA、REMOVE），
+        // 或者 REBALANCE_SEND（再平衡发送）、SYNC（持久化）
+        @Label("Operation")
+        public String operation;
+        @Label("File")
+        public String file;
+        // 发送的目标 Dstore，接收时为 0
+        @Label("Peer")
+        public int peer;
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    /*
+     * 等待多个 Dstore 确认的阶段：每个 Dstore 一个事件，创建时开始，该 Dstore 确认时结束；
+     * 没有开启记录时不创建事件（NONE）。没有确认的 Dstore（超时）不记录
+     */
+    public static class AckPhases {
+        public final static AckPhases NONE = new AckPhases(null);
+
+        private final ConcurrentHashMap<Integer, ControllerPhase> phases;
+
+        private AckPhases(ConcurrentHashMap<Integer, ControllerPhase> phases) {
+            this.phases = phases;
+        }
+
+        public static AckPhases begin(String traceId, String operation, String file, Collection<Integer> dstores) {
+            if (!phasesEnabled()) return NONE;
+            var phases = new ConcurrentHashMap<Integer, ControllerPhase>();
+            for (var dstore : dstores) {
+                phases.put(dstore, phase(traceId, operation, "ack", file, dstore));
+            }
+            return new AckPhases(phases);
+        }
+
+        public void ack(int dstore) {
+            if (phases == null) return;
+            var phase = phases.remove(dstore);
+            if (phase != null) phase.commit();
+        }
+    }
+
+    // 开始 Controller 的一个阶段，调用 commit() 时结束
+    public static ControllerPhase phase(String traceId, String operation, String phase, String file, int dstore) {
+        var event = new ControllerPhase();
+        event.traceId = traceId;
+        event.operation = operation;
+        event.phase = phase;
+        event.file = file;
+        event.dstore = dstore;
+        event.begin();
+        return event;
+    }
+
+    // 开始 Dstore 的一次传输，调用 commit() 时结束，bytes 可以在结束前更新
+    public static DstoreTransfer transfer(String traceId, String operation, String file, int peer, long bytes) {
+        var event = new DstoreTransfer();
+        event.traceId = traceId;
+        event.operation = operation;
+        event.file = file;
+        event.peer = peer;
+        event.bytes = bytes;
+        event.begin();
+        return event;
+    }
+
+    // 是否有正在进行的记录开启了 Controller 的阶段事件，没有时不为每个 Dstore 的确认创建事件
+    public static boolean phasesEnabled() {
+        return CONTROLLER_PHASE.isEnabled();
+    }
+
+    public static String newTraceId() {
+        return Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+    }
+
+    // 取出命令中第 index 个参数作为追踪编号，没有时生成一个新的编号
+    public static String traceId(String[] words, int index) {
+        return words.length > index ? words[index] : newTraceId();
+    }
+
+    // 取出命令中第 index 个参数作为追踪编号，没有时返回 null
+    public static String traceIdOrNull(String[] words, int index) {
+        return words.length > index ? words[index] : null;
+    }
+
+    // 附加在命令末尾的追踪编号参数
+    public static String suffix(String traceId) {
+        return traceId == null ? "" : " " + traceId;
+    }
+
+    public static String rebalanceTraceId(int controllerPort, long round) {
+        return "rebalance-" + controllerPort + "-" + round;
+    }
+}
@@ -0,0 +1,72 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionControlTest {
+
+    // 每个客户端最多 maxInFlightPerClient 个请求，其他客户端不受影响
+    @Test
+    void perClientLimit() {
+        var admission = new AdmissionControl(10, 2);
+        assertTrue(admission.tryAcquire("a"));
+        assertTrue(admission.tryAcquire("a"));
+        assertFalse(admission.tryAcquire("a"));
+        assertTrue(admission.tryAcquire("b"));
+        assertEquals(3, admission.inFlight());
+        admission.release("a");
+        assertTrue(admission.tryAcquire("a"));
+    }
+
+    // 全局上限：被拒绝的请求不占用名额，释放之后可以再接收
+    @Test
+    void globalLimit() {
+        var admission = new AdmissionControl(2, 2);
+        assertTrue(admission.tryAcquire("a"));
+        assertTrue(admission.tryAcquire("b"));
+        assertFalse(admission.tryAcquire("c"));
+        assertFalse(admission.tryAcquire("a"));
+        assertEquals(2, admission.inFlight());
+        admission.release("b");
+        assertTrue(admission.tryAcquire("c"));
+        admission.release("a");
+        admission.release("c");
+        assertEquals(0, admission.inFlight());
+    }
+
+    // 并发的获取和释放之后计数回到 0
+    @Test
+    void concurrentAcquireAndRelease() throws InterruptedException {
+        var admission = new AdmissionControl(8, 4);
+        // 同时被接收的请求数的最大值（inFlight 在拒绝前会短暂超过上限，不能直接用它判断）
+        var admitted = new AtomicInteger();
+        var maxAdmitted = new AtomicInteger();
+        var threads = new Thread[16];
+        for (int t = 0; t < threads.length; t++) {
+            var client = "c" + (t % 4);
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    if (admission.tryAcquire(client)) {
+                        maxAdmitted.accumulateAndGet(admitted.incrementAndGet(), Math::max);
+                        admitted.decrementAndGet();
+                        admission.release(client);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        assertTrue(maxAdmitted.get() <= 8, "admitted " + maxAdmitted.get());
+        assertEquals(0, admission.inFlight());
+        // 每个客户端的计数也回到 0
+        for (int i = 0; i < 4; i++) {
+            assertTrue(admission.tryAcquire("c0"));
+        }
+        assertFalse(admission.tryAcquire("c0"));
+    }
+}
@@ -0,0 +1,110 @@
+package org.example;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ControllerTest {
+    private static int controllerPort;
+
+    // 在本进程中启动一个 Controller：R = 1，超时 500 毫秒，测试期间不定期再平衡
+    @BeforeAll
+    static void startController() throws Exception {
+        try (var probe = new ServerSocket(0)) {
+            controllerPort = probe.getLocalPort();
+        }
+        Thread.ofPlatform().daemon().start(() -> Controller.main(new String[]{String.valueOf(controllerPort), "1", "500", "3600"}));
+        assertTrue(waitUntil(() -> {
+            try (var ignored = connect()) {
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }));
+    }
+
+    private static Socket connect() throws IOException {
+        var socket = new Socket(InetAddress.getLoopbackAddress(), controllerPort);
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static void send(Socket socket, String message) throws IOException {
+        socket.getOutputStream().write((message + "\n").getBytes(StandardCharsets.UTF_8));
+        socket.getOutputStream().flush();
+    }
+
+    // 在一个新的客户端连接上发送一条命令，返回回复
+    private static String request(String message) throws IOException {
+        try (var client = connect()) {
+            send(client, message);
+            return reader(client).readLine();
+        }
+    }
+
+    private static boolean waitUntil(BooleanSupplier condition) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (condition.getAsBoolean()) return true;
+            Thread.sleep(20);
+        }
+        return false;
+    }
+
+    private static String listOrError() {
+        try {
+            return request(Protocol.LIST_TOKEN);
+        } catch (IOException e) {
+            return e.toString();
+        }
+    }
+
+    // 假的 Dstore 加入，等到 Controller 的再平衡发来 LIST，说明连接已经交给 DstoreHandler
+    private static Socket join(int dstorePort) throws IOException {
+        var dstore = connect();
+        send(dstore, Protocol.JOIN_TOKEN + " " + dstorePort);
+        var in = reader(dstore);
+        String line;
+        while ((line = in.readLine()) != null && !line.startsWith(Protocol.LIST_TOKEN)) {
+            // 跳过 REBALANCE_RATE 等其他命令
+        }
+        assertNotNull(line);
+        return dstore;
+    }
+
+    // 格式错误的心跳不结束 Dstore 连接的读取：之后断开时 Controller 仍然清理该 Dstore
+    @Test
+    void malformedHeartbeatDoesNotSkipCleanup() throws Exception {
+        try (var dstore = join(19001)) {
+            send(dstore, Protocol.HEARTBEAT_TOKEN + " not-a-number");
+            send(dstore, Protocol.HEARTBEAT_TOKEN + " 0");
+            assertEquals(Protocol.LIST_TOKEN, request(Protocol.LIST_TOKEN));
+        }
+        assertTrue(waitUntil(() -> Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN.equals(listOrError())));
+    }
+
+    // 段大小为 0、为负或者段数过多时回复错误，不留下文件记录，之后仍然可以用这个文件名上传
+    @Test
+    void invalidPartSizeIsRejected() throws Exception {
+        try (var ignored = join(19002)) {
+            assertEquals(Protocol.ERROR_INVALID_PART_SIZE_TOKEN, request(Protocol.STORE_MULTIPART_TOKEN + " f 100 0"));
+            assertEquals(Protocol.ERROR_INVALID_PART_SIZE_TOKEN, request(Protocol.STORE_MULTIPART_TOKEN + " f 100 -50"));
+            assertEquals(Protocol.ERROR_INVALID_PART_SIZE_TOKEN, request(Protocol.STORE_MULTIPART_TOKEN + " f " + Long.MAX_VALUE + " 1"));
+            assertTrue(request(Protocol.STORE_MULTIPART_TOKEN + " f 100 50").startsWith(Protocol.STORE_PARTS_TO_TOKEN));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DurabilityTest {
+    private static final int WRITERS = 16;
+
+    @TempDir
+    File dir;
+
+    private static long dataForces() {
+        return Metrics.counter("fsync_data_forces").sum();
+    }
+
+    // WRITERS 个线程同时开始执行 write，等待全部完成，抛出第一个异常
+    private static void concurrently(Writer write) throws Exception {
+        var start = new CountDownLatch(1);
+        var errors = new CopyOnWriteArrayList<Exception>();
+        var threads = new ArrayList<Thread>();
+        for (int i = 0; i < WRITERS; i++) {
+            var writer = i;
+            threads.add(Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                    write.write(writer);
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        start.countDown();
+        for (var thread : threads) {
+            thread.join();
+        }
+        if (!errors.isEmpty()) throw errors.get(0);
+    }
+
+    private interface Writer {
+        void write(int writer) throws Exception;
+    }
+
+    // 并发写入同一个段的小文件在组提交中共用段文件的 fsync：数据 fsync 的次数少于写入的次数
+    @Test
+    void packedWritersShareDataForces() throws Exception {
+        var durability = new Durability(Durability.Mode.GROUP, 50_000, 1024);
+        var segments = new SegmentStore(dir, 1 << 20, 0.5);
+        var before = dataForces();
+        concurrently(writer -> {
+            var name = "file" + writer;
+            segments.put(name, new byte[100]);
+            durability.sync(segments.channelOf(name), dir.toPath());
+        });
+        var forces = dataForces() - before;
+        assertTrue(forces >= 1);
+        assertTrue(forces < WRITERS, forces + " data forces for " + WRITERS + " writers");
+    }
+
+    // 单独保存的文件每个 fsync 一次，同一批中重复的文件只 fsync 一次
+    @Test
+    void standaloneFilesAreForcedOncePerFile() throws Exception {
+        var durability = new Durability(Durability.Mode.GROUP, 50_000, 1024);
+        var files = new ArrayList<Path>();
+        for (int i = 0; i < 4; i++) {
+            files.add(Files.write(dir.toPath().resolve("file" + i), new byte[100]));
+        }
+        var before = dataForces();
+        var repeated = new ArrayList<>(files);
+        repeated.addAll(files);
+        durability.sync(repeated, List.of(), dir.toPath());
+        assertEquals(files.size(), dataForces() - before);
+    }
+}
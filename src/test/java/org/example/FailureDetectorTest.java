@@ -0,0 +1,62 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FailureDetectorTest {
+    private static final double THRESHOLD = 8;
+
+    // 与 Controller 的默认配置相同：心跳间隔 100 毫秒，标准差下限 50 毫秒
+    private static FailureDetector detector() {
+        return new FailureDetector(THRESHOLD, 100, 50, 100);
+    }
+
+    // 从未收到过心跳、或者已经删除的结点怀疑值为 0
+    @Test
+    void unknownNodesAreNotSuspected() {
+        var detector = detector();
+        assertEquals(0, detector.phi(1, 1_000_000));
+        detector.heartbeat(1, 0);
+        detector.heartbeat(1, 100);
+        assertTrue(detector.phi(1, 10_000) > THRESHOLD);
+        detector.remove(1);
+        assertEquals(0, detector.phi(1, 10_000));
+    }
+
+    // 按时到达的心跳之后不可疑，停止心跳后怀疑值随时间增大，超过阈值
+    @Test
+    void silenceRaisesPhi() {
+        var detector = detector();
+        long now = 0;
+        for (int i = 0; i < 50; i++) {
+            detector.heartbeat(1, now);
+            now += 100;
+        }
+        var last = now - 100;
+        assertTrue(detector.phi(1, last + 100) < 1);
+        var previous = 0.0;
+        for (long elapsed = 100; elapsed <= 1000; elapsed += 100) {
+            var phi = detector.phi(1, last + elapsed);
+            assertTrue(phi >= previous, "phi at " + elapsed + " ms");
+            previous = phi;
+        }
+        assertTrue(previous > THRESHOLD);
+    }
+
+    // 心跳间隔波动大的结点需要更长的沉默才被怀疑
+    @Test
+    void jitterDelaysSuspicion() {
+        var detector = detector();
+        long steady = 0;
+        long jittery = 0;
+        for (int i = 0; i < 50; i++) {
+            detector.heartbeat(1, steady);
+            detector.heartbeat(2, jittery);
+            steady += 100;
+            jittery += i % 2 == 0 ? 20 : 380;
+        }
+        var silence = 500;
+        assertTrue(detector.phi(1, steady - 100 + silence) > detector.phi(2, jittery - 380 + silence));
+    }
+}
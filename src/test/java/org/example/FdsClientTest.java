@@ -0,0 +1,222 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FdsClientTest {
+    private final List<FakeServer> servers = new ArrayList<>();
+
+    @AfterEach
+    void closeServers() {
+        servers.forEach(FakeServer::close);
+    }
+
+    // 一个命令的处理：line 为收到的命令，in 中紧接着的是命令后面的数据，回复写到 out
+    private interface Handler {
+        void handle(String line, InputStream in, OutputStream out) throws IOException;
+    }
+
+    // 本进程中的假 Controller 或 Dstore：每个连接一个虚拟线程，按行读取命令交给 handler
+    private static class FakeServer {
+        final ServerSocket serverSocket;
+        final List<String> commands = new CopyOnWriteArrayList<>();
+
+        FakeServer(Handler handler) throws IOException {
+            serverSocket = new ServerSocket(0);
+            Thread.ofVirtual().start(() -> {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        var socket = serverSocket.accept();
+                        Thread.ofVirtual().start(() -> serve(socket, handler));
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+        }
+
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void serve(Socket socket, Handler handler) {
+            try (socket) {
+                var in = socket.getInputStream();
+                var out = socket.getOutputStream();
+                String line;
+                while ((line = readLine(in)) != null) {
+                    commands.add(line);
+                    handler.handle(line, in, out);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // 客户端断开，或者 handler 关闭了连接
+            }
+        }
+
+        void close() {
+            try {
+                serverSocket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private FakeServer server(Handler handler) throws IOException {
+        var server = new FakeServer(handler);
+        servers.add(server);
+        return server;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        var line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) return null;
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void reply(OutputStream out, String message) throws IOException {
+        out.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // 正常的 Dstore：STORE 回复 ACK 后读取数据，LOAD_DATA 返回保存的数据，不关闭连接
+    private FakeServer dstore(Map<String, byte[]> files) throws IOException {
+        return server((line, in, out) -> {
+            var words = line.split(" ");
+            if (words[0].equals(Protocol.STORE_TOKEN)) {
+                reply(out, Protocol.ACK_TOKEN);
+                out.flush();
+                files.put(words[1], in.readNBytes(Integer.parseInt(words[2])));
+            } else if (words[0].equals(Protocol.LOAD_DATA_TOKEN)) {
+                out.write(files.get(words[1]));
+            }
+        });
+    }
+
+    // 过载的 Dstore：LOAD_DATA 不回复任何数据，直接关闭连接
+    private FakeServer busyDstore() throws IOException {
+        return server((line, in, out) -> {
+            throw new IOException("close");
+        });
+    }
+
+    // Controller：LOAD 回复第一个 Dstore，RELOAD 依次回复之后的 Dstore
+    private FakeServer controller(long size, FakeServer... dstores) throws IOException {
+        var next = new AtomicInteger();
+        return server((line, in, out) -> {
+            var words = line.split(" ");
+            if (words[0].equals(Protocol.LOAD_TOKEN)) next.set(0);
+            var i = next.getAndIncrement();
+            reply(out, i < dstores.length ? Protocol.LOAD_FROM_TOKEN + " " + dstores[i].port() + " " + size : Protocol.ERROR_LOAD_TOKEN);
+        });
+    }
+
+    private static byte[] random(int size) {
+        var data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    // Dstore 过载时关闭连接：发送 RELOAD 换一个 Dstore 加载完整的文件
+    @Test
+    void busyDstoreTriggersReload() throws Exception {
+        var data = random(200_000);
+        var busy = busyDstore();
+        var dstore = dstore(new ConcurrentHashMap<>(Map.of("a", data)));
+        var controller = controller(data.length, busy, dstore);
+        try (var client = new FdsClient(controller.port())) {
+            assertArrayEquals(data, client.load("a").get());
+        }
+        assertEquals(1, busy.commands.size());
+        assertTrue(controller.commands.get(1).startsWith(Protocol.RELOAD_TOKEN + " a"));
+    }
+
+    // 传输中途断开：换一个 Dstore 后跳过已经写出的字节
+    @Test
+    void reloadResumesAfterPartialTransfer() throws Exception {
+        var data = random(300_000);
+        var broken = server((line, in, out) -> {
+            out.write(data, 0, 100_000);
+            throw new IOException("close");
+        });
+        var dstore = dstore(new ConcurrentHashMap<>(Map.of("a", data)));
+        try (var client = new FdsClient(controller(data.length, broken, dstore).port())) {
+            var out = new ByteArrayOutputStream();
+            assertEquals(data.length, client.load("a", out).get());
+            assertArrayEquals(data, out.toByteArray());
+        }
+    }
+
+    // 分段上传后按段加载：每一段上传到两个 Dstore，其中一个第一次回复 BUSY
+    @Test
+    void multipartRoundTrip() throws Exception {
+        var data = random(250_000);
+        var partSize = 100_000;
+        var files = new ConcurrentHashMap<String, byte[]>();
+        var dstore = dstore(files);
+        var rejected = new AtomicInteger();
+        var throttled = server((line, in, out) -> {
+            if (rejected.getAndIncrement() == 0) {
+                reply(out, Protocol.BUSY_TOKEN + " 10");
+                throw new IOException("close");
+            }
+            reply(out, Protocol.ACK_TOKEN);
+            out.flush();
+            var words = line.split(" ");
+            in.readNBytes(Integer.parseInt(words[2]));
+        });
+        var parts = Multipart.partCount(data.length, partSize);
+        var controller = server((line, in, out) -> {
+            var words = line.split(" ");
+            if (words[0].equals(Protocol.STORE_MULTIPART_TOKEN)) {
+                var message = new StringBuilder(Protocol.STORE_PARTS_TO_TOKEN + " " + parts + " 2");
+                for (int i = 0; i < parts; i++) {
+                    message.append(" ").append(dstore.port()).append(" ").append(throttled.port());
+                }
+                reply(out, message.toString());
+                out.flush();
+                // 所有段都保存之后才完成
+                while (files.size() < parts) {
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                reply(out, Protocol.STORE_COMPLETE_TOKEN);
+            } else {
+                var message = new StringBuilder(Protocol.LOAD_PARTS_TOKEN + " " + data.length + " " + partSize);
+                for (int i = 0; i < parts; i++) {
+                    message.append(" ").append(dstore.port());
+                }
+                reply(out, message.toString());
+            }
+        });
+        try (var client = new FdsClient(controller.port())) {
+            client.storeMultipart("big", data, partSize).get();
+            assertEquals(parts, files.size());
+            assertArrayEquals(data, client.load("big").get());
+        }
+        assertTrue(rejected.get() > parts);
+    }
+}
@@ -0,0 +1,106 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InventoryTest {
+
+    // 与 Controller 处理 LIST 回复的方式相同：完整清单替换原来的集合，增量清单逐项添加或删除
+    private static Set<String> apply(Set<String> known, Inventory.Listing listing) {
+        var result = listing.full ? new HashSet<String>() : new HashSet<>(known);
+        for (var entry : listing.entries) {
+            if (entry.charAt(0) == '+') {
+                result.add(entry.substring(1));
+            } else {
+                result.remove(entry.substring(1));
+            }
+        }
+        return result;
+    }
+
+    private static Set<String> files(Inventory inventory) {
+        var files = new HashSet<String>();
+        inventory.forEach(files::add);
+        return files;
+    }
+
+    // 增量清单只包含之后的变化，同一个文件只保留最后一次
+    @Test
+    void deltaHoldsLatestChangePerFile() {
+        var inventory = new Inventory(100);
+        inventory.add("a");
+        inventory.add("b");
+        var generation = inventory.generation();
+        inventory.remove("a");
+        inventory.add("c");
+        inventory.add("a");
+        inventory.remove("c");
+
+        var listing = inventory.listSince(inventory.epoch, generation);
+        assertFalse(listing.full);
+        assertEquals(6, listing.generation);
+        assertEquals(List.of("+a", "-c"), listing.entries);
+    }
+
+    // 随机的添加和删除之后，把每次的清单应用到 Controller 的副本上，结果与 Dstore 的文件一致
+    @Test
+    void applyingListingsTracksFiles() {
+        var inventory = new Inventory(50);
+        var random = new Random(3);
+        Set<String> known = new HashSet<>();
+        var cursor = new InventoryCursor(0, 0);
+        var deltas = 0;
+        for (int round = 0; round < 200; round++) {
+            for (int i = random.nextInt(40); i > 0; i--) {
+                var file = "f" + random.nextInt(30);
+                if (random.nextBoolean()) inventory.add(file); else inventory.remove(file);
+            }
+            var listing = inventory.listSince(cursor.epoch, cursor.generation);
+            if (!listing.full) deltas++;
+            known = apply(known, listing);
+            cursor = new InventoryCursor(inventory.epoch, listing.generation);
+            assertEquals(files(inventory), known, "round " + round);
+        }
+        assertTrue(deltas > 0);
+    }
+
+    // 需要的变化已经不在变更记录中（相差超过 maxChanges 次）时返回完整清单；正好在边界上时仍然是增量
+    @Test
+    void generationGapFallsBackToFullListing() {
+        var inventory = new Inventory(4);
+        inventory.add("a");
+        var generation = inventory.generation();
+        for (var file : new String[]{"b", "c", "d", "e"}) {
+            inventory.add(file);
+        }
+        var atBoundary = inventory.listSince(inventory.epoch, generation);
+        assertFalse(atBoundary.full);
+        assertEquals(List.of("+b", "+c", "+d", "+e"), atBoundary.entries);
+
+        inventory.remove("a");
+        var gap = inventory.listSince(inventory.epoch, generation);
+        assertTrue(gap.full);
+        assertEquals(Set.of("+b", "+c", "+d", "+e"), new HashSet<>(gap.entries));
+        assertEquals(inventory.generation(), gap.generation);
+    }
+
+    // Dstore 重启（epoch 不同）或者 Controller 记录的版本比当前还新时，返回完整清单
+    @Test
+    void unknownCursorFallsBackToFullListing() {
+        var inventory = new Inventory(100);
+        inventory.add("a");
+        assertTrue(inventory.listSince(inventory.epoch + 1, 1).full);
+        assertTrue(inventory.listSince(inventory.epoch, 2).full);
+        assertTrue(inventory.listSince(0, 0).full);
+
+        var empty = inventory.listSince(inventory.epoch, 1);
+        assertFalse(empty.full);
+        assertTrue(empty.entries.isEmpty());
+    }
+}
@@ -0,0 +1,137 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageWriterTest {
+    // 一对连接好的 socket：[0] 发送，[1] 接收
+    private static Socket[] connectedPair() throws IOException {
+        try (var server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            var sender = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            var receiver = server.accept();
+            receiver.setSoTimeout(10_000);
+            return new Socket[]{sender, receiver};
+        }
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    // 多个线程同时发送：每个线程的消息按顺序到达，一次发送的多条消息连续到达，不与其他线程的消息交错
+    @Test
+    void concurrentSendsDoNotInterleave() throws Exception {
+        var pair = connectedPair();
+        try (var sender = pair[0]; var receiver = pair[1]) {
+            var threads = new ArrayList<Thread>();
+            for (int t = 0; t < 8; t++) {
+                var id = t;
+                threads.add(Thread.ofPlatform().start(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        MessageWriter.send(sender, List.of(id + " " + i + " a", id + " " + i + " b", id + " " + i + " c"));
+                    }
+                }));
+            }
+            var in = reader(receiver);
+            var next = new HashMap<Integer, Integer>();
+            for (int n = 0; n < 8 * 200; n++) {
+                var first = in.readLine().split(" ");
+                var id = Integer.parseInt(first[0]);
+                var i = Integer.parseInt(first[1]);
+                assertEquals(next.getOrDefault(id, 0), i);
+                assertEquals("a", first[2]);
+                assertEquals(id + " " + i + " b", in.readLine());
+                assertEquals(id + " " + i + " c", in.readLine());
+                next.put(id, i + 1);
+            }
+            for (var thread : threads) {
+                thread.join();
+            }
+        }
+    }
+
+    // 一个线程写 socket 被阻塞时，其他线程的消息进入缓冲区，之后用一次写入全部发出
+    @Test
+    void blockedWriteCoalescesLaterMessages() throws Exception {
+        var pair = connectedPair();
+        try (var sender = pair[0]; var receiver = pair[1]) {
+            var flushes = Metrics.counter("message_flushes").sum();
+            // 超过 socket 缓冲区的大消息：接收方开始读之前，写它的线程一直阻塞
+            var large = "x".repeat(32 << 20);
+            var blocked = Thread.ofPlatform().start(() -> MessageWriter.send(sender, large));
+            Thread.sleep(200);
+            var small = new ArrayList<Thread>();
+            for (int i = 0; i < 10; i++) {
+                var message = "small " + i;
+                small.add(Thread.ofPlatform().start(() -> MessageWriter.send(sender, message)));
+            }
+            // 等到所有小消息的线程都在等待正在写的线程把它们发出
+            var deadline = System.currentTimeMillis() + 5000;
+            while (!small.stream().allMatch(thread -> thread.getState() == Thread.State.WAITING)) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            Thread.sleep(50);
+            assertTrue(blocked.isAlive());
+
+            var in = reader(receiver);
+            assertEquals(large.length(), in.readLine().length());
+            var received = new ArrayList<String>();
+            for (int i = 0; i < 10; i++) {
+                received.add(in.readLine());
+            }
+            blocked.join();
+            for (var thread : small) {
+                thread.join();
+            }
+            for (int i = 0; i < 10; i++) {
+                assertTrue(received.contains("small " + i));
+            }
+            // 大消息一次，积累的 10 条小消息一次（留一次余量给测试期间其他连接的发送）
+            var used = Metrics.counter("message_flushes").sum() - flushes;
+            assertTrue(used <= 3, used + " flushes for 11 messages");
+        }
+    }
+
+    // 写入器数量增长到上限时清理已经关闭的连接，打开的连接保留原来的写入器
+    @Test
+    void sweepRemovesClosedSockets() throws Exception {
+        var open = new Socket();
+        var openWriter = MessageWriter.of(open);
+        var closed = new ArrayList<Socket>();
+        for (int i = 0; i < 1100; i++) {
+            var socket = new Socket();
+            MessageWriter.of(socket);
+            closed.add(socket);
+        }
+        for (var socket : closed) {
+            socket.close();
+        }
+        // 继续为新的连接创建写入器，直到触发一次清理
+        var withClosed = MessageWriter.writerCount();
+        var fresh = new ArrayList<Socket>();
+        for (int i = 0; i < 10_000 && MessageWriter.writerCount() >= withClosed; i++) {
+            var socket = new Socket();
+            MessageWriter.of(socket);
+            fresh.add(socket);
+        }
+        assertTrue(MessageWriter.writerCount() <= withClosed + fresh.size() - closed.size());
+        assertSame(openWriter, MessageWriter.of(open));
+        open.close();
+        for (var socket : fresh) {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PendingAcksTest {
+
+    // 同一个 Dstore 的重复确认只计一次
+    @Test
+    void duplicateAcksCountOnce() {
+        var pending = new PendingAcks(3, 2);
+        pending.ack(13001);
+        pending.ack(13001);
+        assertFalse(pending.quorum.isDone());
+        pending.ack(13002);
+        assertTrue(pending.quorum.isDone());
+        assertFalse(pending.future.isDone());
+        pending.ack(13002);
+        assertEquals(2, pending.acked());
+        pending.ack(13003);
+        assertTrue(pending.future.isDone());
+    }
+}
@@ -0,0 +1,78 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PlacementTest {
+    private static final long MB = 1L << 20;
+
+    // 报告了容量的 Dstore：热层已用 used、剩余 free
+    private static DstoreLoad load(long used, long free) {
+        var load = new DstoreLoad();
+        load.capacity(used, free, 0, 0);
+        return load;
+    }
+
+    private static FileInfo stored(long size, Integer... dstores) {
+        var fileInfo = new FileInfo(size);
+        fileInfo.status = FileStatus.STORE_COMPLETE;
+        fileInfo.dstoresSavingFiles.addAll(List.of(dstores));
+        return fileInfo;
+    }
+
+    // 写入后剩余空间不足 minFreeBytes 的 Dstore 不参与存储，选不够时返回的结点少于 count 个
+    @Test
+    void storeSkipsFullDstores() {
+        var loads = Map.of(
+                1, load(0, 100 * MB),
+                2, load(0, 10 * MB),
+                3, load(50 * MB, 100 * MB));
+        var chosen = Placement.selectDstoresForStore(List.of(1, 2, 3), new FileInfo(8 * MB), 8 * MB, 3, loads, 4 * MB);
+        assertEquals(List.of(1, 3), chosen);
+    }
+
+    // 没有报告过容量的 Dstore 视为有空间
+    @Test
+    void storeAcceptsUnreportedDstores() {
+        var loads = Map.of(1, load(0, 0));
+        var chosen = Placement.selectDstoresForStore(List.of(1, 2), new FileInfo(MB), MB, 2, loads, 0);
+        assertEquals(List.of(2), chosen);
+    }
+
+    // 已经分配但还没有确认的写入也计入占用的空间
+    @Test
+    void storeCountsAssignedBytes() {
+        var full = load(0, 20 * MB);
+        full.assignedBytes.addAndGet(15 * MB);
+        var loads = Map.of(1, full, 2, load(0, 20 * MB));
+        var chosen = Placement.selectDstoresForStore(List.of(1, 2), new FileInfo(8 * MB), 8 * MB, 2, loads, 0);
+        assertEquals(List.of(2), chosen);
+    }
+
+    // 再平衡补齐副本时不把文件复制到空间不足的 Dstore，同一次计划中复制的字节数也计入剩余空间
+    @Test
+    void rebalanceRefusesFullTargets() {
+        var fileInfoMap = new HashMap<String, FileInfo>();
+        fileInfoMap.put("a", stored(6 * MB, 1));
+        fileInfoMap.put("b", stored(6 * MB, 1));
+        var loads = Map.of(
+                1, load(12 * MB, 100 * MB),
+                2, load(0, MB),
+                3, load(0, 10 * MB));
+        var plans = Placement.planRebalance(fileInfoMap, Placement.filesInDstore(fileInfoMap), List.of(1, 2, 3), 2,
+                loads, 0, 0.05);
+
+        // 只有 Dstore 3 有空间，而且只够一个文件
+        var plan = plans.get(1);
+        assertNotNull(plan);
+        assertEquals(1, plan.filesToSendList.size());
+        assertEquals(List.of("3"), plan.filesToSendList.get(0).dstores);
+        assertTrue(plan.filesToRemoveList.isEmpty());
+        assertFalse(plans.containsKey(2));
+    }
+}
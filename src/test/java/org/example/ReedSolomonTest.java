@@ -0,0 +1,69 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReedSolomonTest {
+
+    // 丢失任意 m 个分片后，剩下的 k 个分片都能还原出原始内容
+    @Test
+    void decodesAfterAnyErasures() {
+        var rs = new ReedSolomon(4, 2);
+        var random = new Random(1);
+        for (var size : new int[]{0, 1, 3, 4, 1000, 4097}) {
+            var content = new byte[size];
+            random.nextBytes(content);
+            var shards = rs.encode(content);
+            assertEquals(6, shards.length);
+            for (int a = 0; a < 6; a++) {
+                for (int b = a + 1; b < 6; b++) {
+                    var erased = shards.clone();
+                    erased[a] = null;
+                    erased[b] = null;
+                    assertArrayEquals(content, rs.decode(erased, size), "size " + size + " erased " + a + "," + b);
+                }
+            }
+        }
+    }
+
+    // 前 k 个分片就是原始数据（系统形式），最后一个分片不足的部分补 0
+    @Test
+    void dataShardsHoldOriginalContent() {
+        var rs = new ReedSolomon(3, 2);
+        var content = new byte[]{1, 2, 3, 4, 5, 6, 7};
+        var shards = rs.encode(content);
+        assertArrayEquals(new byte[]{1, 2, 3}, shards[0]);
+        assertArrayEquals(new byte[]{4, 5, 6}, shards[1]);
+        assertArrayEquals(new byte[]{7, 0, 0}, shards[2]);
+    }
+
+    // 重建的分片与编码时的分片相同
+    @Test
+    void rebuildsLostShard() {
+        var rs = new ReedSolomon(4, 2);
+        var content = new byte[5000];
+        new Random(2).nextBytes(content);
+        var shards = rs.encode(content);
+        for (int lost = 0; lost < 6; lost++) {
+            var erased = shards.clone();
+            erased[lost] = null;
+            erased[(lost + 3) % 6] = null;
+            assertArrayEquals(shards[lost], rs.rebuildShard(erased, lost), "shard " + lost);
+        }
+    }
+
+    @Test
+    void fragmentNames() {
+        var name = ReedSolomon.fragmentName("a.txt", 5);
+        assertEquals("a.txt#5", name);
+        assertTrue(ReedSolomon.isFragmentName(name));
+        assertEquals("a.txt", ReedSolomon.fileOfFragment(name));
+        assertEquals(5, ReedSolomon.indexOfFragment(name));
+        assertFalse(ReedSolomon.isFragmentName("a.txt"));
+        assertFalse(ReedSolomon.isFragmentName("a#b"));
+        assertFalse(ReedSolomon.isFragmentName("#1"));
+    }
+}
@@ -0,0 +1,140 @@
+package org.example;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class RouterTest {
+    private static int routerPort;
+    // 假的 Controller 收到的命令
+    private static final List<String> controllerCommands = new CopyOnWriteArrayList<>();
+
+    // 分区 0 是一个假的 Controller（LIST 回复空列表，其他命令回复 ACK），分区 1 的端口没有 Controller 监听；在本进程中启动 Router
+    @BeforeAll
+    static void startRouter() throws Exception {
+        var controller = new ServerSocket(0);
+        Thread.ofPlatform().daemon().start(() -> {
+            while (true) {
+                try {
+                    var socket = controller.accept();
+                    Thread.ofVirtual().start(() -> {
+                        try (socket; var in = reader(socket)) {
+                            String line;
+                            while ((line = in.readLine()) != null) {
+                                controllerCommands.add(line);
+                                send(socket, line.equals(Protocol.LIST_TOKEN) ? Protocol.LIST_TOKEN : Protocol.ACK_TOKEN);
+                            }
+                        } catch (IOException ignored) {
+                        }
+                    });
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        int unreachablePort;
+        try (var probe = new ServerSocket(0)) {
+            unreachablePort = probe.getLocalPort();
+        }
+        try (var probe = new ServerSocket(0)) {
+            routerPort = probe.getLocalPort();
+        }
+        Thread.ofPlatform().daemon().start(() -> Router.main(new String[]{String.valueOf(routerPort),
+                String.valueOf(controller.getLocalPort()), String.valueOf(unreachablePort)}));
+        var deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try (var ignored = new Socket(InetAddress.getLoopbackAddress(), routerPort)) {
+                return;
+            } catch (IOException e) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static void send(Socket socket, String message) throws IOException {
+        socket.getOutputStream().write((message + "\n").getBytes(StandardCharsets.UTF_8));
+        socket.getOutputStream().flush();
+    }
+
+    // 从 address 连接 Router 发送一条命令，返回回复
+    private static String request(InetAddress address, String message) throws IOException {
+        try (var client = new Socket(address, routerPort)) {
+            client.setSoTimeout(5000);
+            send(client, message);
+            return reader(client).readLine();
+        }
+    }
+
+    // 本机的一个非回环地址，没有时返回 null
+    private static InetAddress nonLoopbackAddress() throws SocketException {
+        for (var networkInterface : NetworkInterface.networkInterfaces().toList()) {
+            if (!networkInterface.isUp()) continue;
+            for (var address : networkInterface.inetAddresses().toList()) {
+                if (address instanceof Inet4Address && !address.isLoopbackAddress()) return address;
+            }
+        }
+        return null;
+    }
+
+    // 与 Controller 相同：本机地址和 fds.admin.hosts 以外的地址不能发送管理命令
+    @Test
+    void adminAddresses() throws Exception {
+        assertTrue(Router.isAdmin(InetAddress.getLoopbackAddress()));
+        assertFalse(Router.isAdmin(InetAddress.getByName("203.0.113.7")));
+    }
+
+    // 本机的 REBALANCE_RATE 转发给分区（分区 1 连接不上，因此回复错误）；从非回环地址连接时 Router 直接拒绝，不转发
+    @Test
+    void rebalanceRateRequiresAdmin() throws Exception {
+        assertEquals(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, request(InetAddress.getLoopbackAddress(), Protocol.REBALANCE_RATE_TOKEN + " 1000"));
+        assertTrue(controllerCommands.contains(Protocol.REBALANCE_RATE_TOKEN + " 1000"));
+
+        var address = nonLoopbackAddress();
+        assumeTrue(address != null, "no non-loopback address");
+        assertEquals(Protocol.ERROR_NOT_PERMITTED_TOKEN, request(address, Protocol.REBALANCE_RATE_TOKEN + " 1"));
+        assertFalse(controllerCommands.contains(Protocol.REBALANCE_RATE_TOKEN + " 1"));
+    }
+
+    // 第一个属于该分区的文件名
+    private static String fileIn(int partition) {
+        for (int i = 0; ; i++) {
+            if (Partitioning.partitionOf("f" + i, 2) == partition) return "f" + i;
+        }
+    }
+
+    // 分区连接不上时只有该请求回复错误，同一个连接上发给其他分区的请求仍然转发
+    @Test
+    void unreachablePartitionFailsOnlyItsRequests() throws Exception {
+        try (var client = new Socket(InetAddress.getLoopbackAddress(), routerPort)) {
+            client.setSoTimeout(5000);
+            var in = reader(client);
+            send(client, Protocol.LOAD_TOKEN + " " + fileIn(1));
+            assertEquals(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, in.readLine());
+            send(client, Protocol.LIST_TOKEN);
+            assertEquals(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, in.readLine());
+            send(client, Protocol.LOAD_TOKEN + " " + fileIn(0));
+            assertEquals(Protocol.ACK_TOKEN, in.readLine());
+            assertTrue(controllerCommands.contains(Protocol.LOAD_TOKEN + " " + fileIn(0)));
+        }
+    }
+}
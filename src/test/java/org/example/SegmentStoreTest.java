@@ -0,0 +1,102 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentStoreTest {
+    @TempDir
+    File dir;
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] filled(int size, char c) {
+        return bytes(String.valueOf(c).repeat(size));
+    }
+
+    // 保存、读取、覆盖和删除：覆盖和删除的旧内容计入垃圾字节
+    @Test
+    void putGetRemove() throws Exception {
+        var store = new SegmentStore(dir, 1024, 0.5);
+        store.put("a", bytes("hello"));
+        store.put("b", bytes("world!"));
+        assertArrayEquals(bytes("hello"), store.get("a"));
+        assertArrayEquals(bytes("world!"), store.get("b"));
+        assertEquals(2, store.files());
+        assertEquals(0, store.garbageBytes());
+
+        store.put("a", bytes("hi"));
+        assertArrayEquals(bytes("hi"), store.get("a"));
+        assertEquals(5, store.garbageBytes());
+
+        assertTrue(store.remove("b"));
+        assertFalse(store.remove("b"));
+        assertFalse(store.contains("b"));
+        assertNull(store.get("b"));
+        assertNull(store.channelOf("b"));
+        assertEquals(11, store.garbageBytes());
+        assertEquals(1, store.files());
+    }
+
+    // 当前的段写满后换一个新的段，大于段大小的文件单独占一个段
+    @Test
+    void fullSegmentRollsOver() throws Exception {
+        var store = new SegmentStore(dir, 100, 0.5);
+        store.put("a", filled(60, 'a'));
+        store.put("b", filled(60, 'b'));
+        store.put("c", filled(250, 'c'));
+        assertEquals(3, store.segments());
+        assertArrayEquals(filled(60, 'a'), store.get("a"));
+        assertArrayEquals(filled(60, 'b'), store.get("b"));
+        assertArrayEquals(filled(250, 'c'), store.get("c"));
+        assertNotSame(store.channelOf("a"), store.channelOf("b"));
+    }
+
+    // 压缩把垃圾比例达到阈值的段中仍然有效的文件移到当前的段，删除旧的段文件；当前的段不压缩
+    @Test
+    void compactionMovesLiveFiles() throws Exception {
+        var store = new SegmentStore(dir, 100, 0.5);
+        store.put("a", filled(40, 'a'));
+        store.put("b", filled(40, 'b'));
+        store.put("c", filled(40, 'c'));
+        assertEquals(2, store.segments());
+        var old = new File(dir, "segment-0.dat");
+        assertTrue(old.exists());
+
+        // 删除 a 之后第一个段的垃圾比例为 40 / 80，达到阈值
+        store.remove("a");
+        assertEquals(1, store.compact());
+        assertEquals(1, store.segments());
+        assertFalse(old.exists());
+        assertEquals(0, store.garbageBytes());
+        assertArrayEquals(filled(40, 'b'), store.get("b"));
+        assertArrayEquals(filled(40, 'c'), store.get("c"));
+        assertSame(store.channelOf("b"), store.channelOf("c"));
+
+        // 当前的段即使全部是垃圾也不压缩
+        store.remove("b");
+        store.remove("c");
+        assertEquals(0, store.compact());
+        assertEquals(1, store.segments());
+    }
+
+    // 垃圾比例低于阈值的段保持不变
+    @Test
+    void compactionSkipsMostlyLiveSegments() throws Exception {
+        var store = new SegmentStore(dir, 100, 0.5);
+        store.put("a", filled(30, 'a'));
+        store.put("b", filled(60, 'b'));
+        store.put("c", filled(40, 'c'));
+        store.remove("a");
+        assertEquals(0, store.compact());
+        assertEquals(2, store.segments());
+        assertEquals(30, store.garbageBytes());
+        assertArrayEquals(filled(60, 'b'), store.get("b"));
+    }
+}
@@ -0,0 +1,109 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TieredStorageTest {
+    @TempDir
+    File hotDir;
+    @TempDir
+    File coldDir;
+
+    private static byte[] data() {
+        // 可压缩的内容：重复的随机块
+        var block = new byte[4096];
+        new Random(1).nextBytes(block);
+        var data = new byte[64 * 1024];
+        for (int i = 0; i < data.length; i += block.length) {
+            System.arraycopy(block, 0, data, i, block.length);
+        }
+        return data;
+    }
+
+    private TieredStorage storage(long demoteAfter, boolean compress) {
+        return new TieredStorage(hotDir, coldDir, demoteAfter, compress, new Durability(Durability.Mode.FILE, 0, 1));
+    }
+
+    private static byte[] read(TieredStorage storage, String name) throws Exception {
+        try (var in = storage.open(name)) {
+            return in.readAllBytes();
+        }
+    }
+
+    // 降级后热层没有文件，从冷层读到原来的内容；提升后回到热层，冷层的文件和统计清空
+    private void roundTrip(boolean compress) throws Exception {
+        var data = data();
+        var storage = storage(0, compress);
+        Files.write(new File(hotDir, "a").toPath(), data);
+        assertFalse(storage.touch("a"));
+
+        assertTrue(storage.demote("a", data.length));
+        assertTrue(storage.isCold("a"));
+        assertFalse(new File(hotDir, "a").exists());
+        assertEquals(1, storage.coldFiles());
+        assertEquals(data.length, storage.coldBytes());
+        if (compress) assertTrue(storage.coldDiskBytes() < data.length);
+        else assertEquals(data.length, storage.coldDiskBytes());
+        assertArrayEquals(data, read(storage, "a"));
+        // 已经在冷层的文件不再降级
+        assertFalse(storage.demote("a", data.length));
+
+        assertTrue(storage.promote("a"));
+        assertFalse(storage.isCold("a"));
+        assertArrayEquals(data, Files.readAllBytes(new File(hotDir, "a").toPath()));
+        assertArrayEquals(data, read(storage, "a"));
+        assertEquals(0, storage.coldFiles());
+        assertEquals(0, storage.coldBytes());
+        assertEquals(0, storage.coldDiskBytes());
+        assertArrayEquals(new String[0], coldDir.list());
+        assertFalse(storage.promote("a"));
+    }
+
+    // 冷层用 GZIP 压缩
+    @Test
+    void compressedRoundTrip() throws Exception {
+        roundTrip(true);
+    }
+
+    // 冷层不压缩
+    @Test
+    void uncompressedRoundTrip() throws Exception {
+        roundTrip(false);
+    }
+
+    // 最近访问过、或者从未访问过的文件不降级
+    @Test
+    void recentlyAccessedFilesStayHot() throws Exception {
+        var storage = storage(60_000, true);
+        Files.write(new File(hotDir, "a").toPath(), data());
+        assertFalse(storage.demote("a", data().length));
+        storage.touch("a");
+        assertFalse(storage.demote("a", data().length));
+        assertTrue(new File(hotDir, "a").exists());
+        assertEquals(0, storage.coldFiles());
+    }
+
+    // 删除冷层的文件同时去掉统计，之后打开失败
+    @Test
+    void deleteRemovesColdFile() throws Exception {
+        var data = data();
+        var storage = storage(0, true);
+        Files.write(new File(hotDir, "a").toPath(), data);
+        storage.touch("a");
+        assertTrue(storage.demote("a", data.length));
+
+        assertTrue(storage.delete("a"));
+        assertFalse(storage.delete("a"));
+        assertEquals(0, storage.coldFiles());
+        assertEquals(0, storage.coldBytes());
+        assertArrayEquals(new String[0], coldDir.list());
+        assertThrows(FileNotFoundException.class, () -> storage.open("a"));
+    }
+}
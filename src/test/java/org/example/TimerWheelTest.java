@@ -0,0 +1,85 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimerWheelTest {
+
+    // 任务在时间轮线程上直接执行，执行顺序就是到期顺序
+    private static TimerWheel wheel(int wheelSize) {
+        return new TimerWheel("test timeouts", 5, wheelSize, Runnable::run);
+    }
+
+    // 按到期时间顺序执行，与加入的顺序无关；超过一圈的任务在之后的圈中到期
+    @Test
+    void expiresInDeadlineOrder() throws InterruptedException {
+        var wheel = wheel(8);
+        var expired = new CopyOnWriteArrayList<Long>();
+        var done = new CountDownLatch(5);
+        for (var delay : new long[]{120, 10, 65, 35, 200}) {
+            wheel.schedule(() -> {
+                expired.add(delay);
+                done.countDown();
+            }, delay);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(10L, 35L, 65L, 120L, 200L), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    // 不会早于到期时间执行
+    @Test
+    void neverExpiresEarly() throws InterruptedException {
+        var wheel = wheel(4);
+        var start = System.nanoTime();
+        var elapsed = new long[1];
+        var done = new CountDownLatch(1);
+        wheel.schedule(() -> {
+            elapsed[0] = (System.nanoTime() - start) / 1_000_000;
+            done.countDown();
+        }, 100);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(elapsed[0] >= 100, "expired after " + elapsed[0] + " ms");
+    }
+
+    // 取消的任务不执行，也不再计入等待中的任务
+    @Test
+    void cancelledTimeoutsDoNotRun() throws InterruptedException {
+        var wheel = wheel(8);
+        var expired = new CopyOnWriteArrayList<String>();
+        var done = new CountDownLatch(1);
+        var cancelled = wheel.schedule(() -> expired.add("cancelled"), 30);
+        wheel.schedule(() -> {
+            expired.add("kept");
+            done.countDown();
+        }, 60);
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertEquals(1, wheel.size());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("kept"), expired);
+    }
+
+    // 默认的 executor 不在时间轮线程上执行：阻塞的任务不影响其他任务按时到期
+    @Test
+    void blockingTaskDoesNotDelayOthers() throws InterruptedException {
+        var wheel = new TimerWheel("test timeouts", 5, 8);
+        var release = new CountDownLatch(1);
+        var done = new CountDownLatch(1);
+        wheel.schedule(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+        }, 10);
+        wheel.schedule(done::countDown, 30);
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        release.countDown();
+    }
+}
@@ -0,0 +1,43 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTest {
+
+    private static long millisToAcquire(TokenBucket bucket, long permits) throws InterruptedException {
+        var start = System.nanoTime();
+        bucket.acquire(permits);
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    // rate 为 0 时不限速
+    @Test
+    void zeroRateIsUnlimited() throws InterruptedException {
+        var bucket = new TokenBucket(0);
+        assertTrue(millisToAcquire(bucket, 1L << 40) < 50);
+    }
+
+    // 初始有 1 秒的令牌；用完之后按 rate 等待欠下的令牌
+    @Test
+    void waitsForMissingTokens() throws InterruptedException {
+        var bucket = new TokenBucket(100_000);
+        assertTrue(millisToAcquire(bucket, 100_000) < 50);
+        var waited = millisToAcquire(bucket, 20_000);
+        assertTrue(waited >= 150 && waited < 1000, "waited " + waited + " ms");
+    }
+
+    // 降低 rate 时积累的令牌不超过新的 rate，改为 0 后不再等待
+    @Test
+    void changingRate() throws InterruptedException {
+        var bucket = new TokenBucket(1_000_000);
+        bucket.setRate(10_000);
+        assertEquals(10_000, bucket.rate());
+        assertTrue(millisToAcquire(bucket, 10_000) < 50);
+        var waited = millisToAcquire(bucket, 2_000);
+        assertTrue(waited >= 150, "waited " + waited + " ms");
+        bucket.setRate(0);
+        assertTrue(millisToAcquire(bucket, 1_000_000) < 50);
+    }
+}